@@ -0,0 +1,151 @@
+package net.koeppster.dctm.commands.exporter;
+
+import com.documentum.fc.client.DfQuery;
+import com.documentum.fc.client.IDfCollection;
+import com.documentum.fc.client.IDfQuery;
+import com.documentum.fc.client.IDfSession;
+import com.documentum.fc.common.DfException;
+import com.documentum.fc.common.DfLogger;
+import com.documentum.fc.common.IDfId;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Reads <code>dm_audittrail</code> in r_object_id order to find the chronicles that were saved,
+ * checked in or destroyed since the last poll.  The r_object_id of the last audit entry consumed
+ * is kept as a checkpoint in the Queue Items database, so following resumes where it stopped.
+ *
+ * <p>The events must be registered for auditing in the repository and the export user needs to be
+ * able to read the audit trail.
+ */
+public class AuditTrailFollower {
+
+  public static final String EVENT_SAVE = "dm_save";
+  public static final String EVENT_CHECKIN = "dm_checkin";
+  public static final String EVENT_DESTROY = "dm_destroy";
+
+  /** The chronicles affected by one batch of audit entries. */
+  public static class ChangeSet {
+    private final Set<String> chronicleIds = new LinkedHashSet<String>();
+    private final List<String> destroyedObjectIds = new ArrayList<String>();
+    private int eventCount = 0;
+    private String lastAuditId = null;
+
+    public Set<String> getChronicleIds() {
+      return chronicleIds;
+    }
+
+    public List<String> getDestroyedObjectIds() {
+      return destroyedObjectIds;
+    }
+
+    public int getEventCount() {
+      return eventCount;
+    }
+
+    public String getLastAuditId() {
+      return lastAuditId;
+    }
+  }
+
+  private final QueueStore queueManager;
+  private final String checkpointKey;
+  private final int batchSize;
+  private String lastAuditId = null;
+
+  /**
+   * @param queueManager Database holding the follow checkpoint
+   * @param checkpointKey Key of the follow checkpoint
+   * @param batchSize Maximum number of audit entries read per poll
+   */
+  public AuditTrailFollower(
+      QueueStore queueManager, String checkpointKey, int batchSize) {
+    this.queueManager = queueManager;
+    this.checkpointKey = checkpointKey;
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * Load the follow checkpoint.  If there is none the newest audit entry becomes the starting
+   * point, so changes made while the initial listing runs are still picked up.
+   */
+  public void start(IDfSession session) throws DfException {
+    lastAuditId = queueManager.getCheckpoint(checkpointKey);
+    if (null == lastAuditId) {
+      lastAuditId =
+          queryFirstId(
+              session,
+              "SELECT r_object_id FROM dm_audittrail ORDER BY r_object_id DESC"
+                  + " ENABLE (RETURN_TOP 1)");
+      if (null != lastAuditId) {
+        queueManager.putCheckpoint(checkpointKey, lastAuditId);
+      }
+    }
+    DfLogger.info(this, "Following audit trail after {0}", new String[] {lastAuditId}, null);
+  }
+
+  /**
+   * Read the next batch of audit entries.  The checkpoint is not moved until {@link
+   * #commit(ChangeSet)} is called.
+   */
+  public ChangeSet poll(IDfSession session) throws DfException {
+    ChangeSet changes = new ChangeSet();
+    StringBuilder dql =
+        new StringBuilder("SELECT r_object_id, audited_obj_id, chronicle_id, event_name")
+            .append(" FROM dm_audittrail WHERE event_name IN ('")
+            .append(String.join("','", EVENT_SAVE, EVENT_CHECKIN, EVENT_DESTROY))
+            .append("')");
+    if (null != lastAuditId) {
+      dql.append(" AND r_object_id > '").append(lastAuditId).append("'");
+    }
+    dql.append(" ORDER BY r_object_id ENABLE (RETURN_TOP ").append(batchSize).append(")");
+    DfLogger.debug(this, "Polling audit trail with {0}", new String[] {dql.toString()}, null);
+
+    IDfCollection coll = null;
+    try {
+      IDfQuery query = new DfQuery();
+      query.setDQL(dql.toString());
+      coll = query.execute(session, IDfQuery.DF_READ_QUERY);
+      while (coll.next()) {
+        changes.eventCount++;
+        changes.lastAuditId = coll.getId("r_object_id").getId();
+        IDfId chronicleId = coll.getId("chronicle_id");
+        if (EVENT_DESTROY.equals(coll.getString("event_name"))) {
+          changes.destroyedObjectIds.add(coll.getId("audited_obj_id").getId());
+        }
+        if ((null != chronicleId) && !chronicleId.isNull()) {
+          changes.chronicleIds.add(chronicleId.getId());
+        }
+      }
+    } finally {
+      if (null != coll) {
+        coll.close();
+      }
+    }
+    return changes;
+  }
+
+  /** Move the checkpoint past a change set once its chronicles are in the queue. */
+  public void commit(ChangeSet arg0) {
+    if (null != arg0.lastAuditId) {
+      lastAuditId = arg0.lastAuditId;
+      queueManager.putCheckpoint(checkpointKey, lastAuditId);
+    }
+  }
+
+  private String queryFirstId(IDfSession session, String dql) throws DfException {
+    IDfCollection coll = null;
+    try {
+      IDfQuery query = new DfQuery();
+      query.setDQL(dql);
+      coll = query.execute(session, IDfQuery.DF_READ_QUERY);
+      return coll.next() ? coll.getId("r_object_id").getId() : null;
+    } finally {
+      if (null != coll) {
+        coll.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,131 @@
+package net.koeppster.dctm.commands.exporter;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Builds the DQL used to list export candidates from the user supplied qualification (everything
+ * after <code>SELECT ... FROM</code>).  Extra conditions are ANDed with the qualification's own
+ * WHERE clause, which is split off at the first <code>WHERE</code> keyword.
+ *
+ * <p>Usage example:
+ *
+ * <pre>{@code
+ * String dql = new CandidateQueryBuilder("dm_document WHERE owner_name = 'dmadmin'")
+ *     .select("i_chronicle_id", "r_object_id", "r_modify_date")
+ *     .addCondition("r_object_id > '0900000180001234'")
+ *     .orderBy("r_object_id")
+ *     .returnTop(1000)
+ *     .build();
+ * }</pre>
+ */
+public class CandidateQueryBuilder {
+
+  private static final Pattern WHERE_PATTERN =
+      Pattern.compile("\\bWHERE\\b", Pattern.CASE_INSENSITIVE);
+  private static final Pattern TRAILING_CLAUSE_PATTERN =
+      Pattern.compile("\\b(ORDER\\s+BY|GROUP\\s+BY|UNION|ENABLE)\\b", Pattern.CASE_INSENSITIVE);
+
+  private static final String DQL_DATE_FORMAT = "yyyy/MM/dd HH:mm:ss";
+  private static final String DQL_DATE_PATTERN = "yyyy/mm/dd hh:mi:ss";
+
+  private final String fromClause;
+  private final String whereClause;
+  private final List<String> selectList = new ArrayList<String>();
+  private final List<String> conditions = new ArrayList<String>();
+  private String orderBy = null;
+  private int returnTop = 0;
+
+  /**
+   * @param arg0 The qualification (everything after 'SELECT * FROM ')
+   */
+  public CandidateQueryBuilder(String arg0) {
+    String qualification = arg0.trim();
+    Matcher matcher = WHERE_PATTERN.matcher(qualification);
+    if (matcher.find()) {
+      this.fromClause = qualification.substring(0, matcher.start()).trim();
+      this.whereClause = qualification.substring(matcher.end()).trim();
+    } else {
+      this.fromClause = qualification;
+      this.whereClause = null;
+    }
+  }
+
+  /**
+   * Check whether conditions, an ORDER BY or hints can be appended to a qualification.  Returns
+   * false when the qualification already ends in an ORDER BY, GROUP BY, UNION or ENABLE clause.
+   *
+   * @param arg0 The qualification to check
+   * @return true if the qualification can be extended
+   */
+  public static boolean canExtend(String arg0) {
+    return !TRAILING_CLAUSE_PATTERN.matcher(arg0).find();
+  }
+
+  /**
+   * Format a date as a DQL date literal (second resolution, local time zone).
+   *
+   * @param arg0 The date to format
+   * @return A <code>DATE(...)</code> expression
+   */
+  public static String dqlDate(Date arg0) {
+    SimpleDateFormat format = new SimpleDateFormat(DQL_DATE_FORMAT);
+    return String.format("DATE('%s','%s')", format.format(arg0), DQL_DATE_PATTERN);
+  }
+
+  public CandidateQueryBuilder select(String... arg0) {
+    for (String attr : arg0) {
+      selectList.add(attr);
+    }
+    return this;
+  }
+
+  public CandidateQueryBuilder addCondition(String arg0) {
+    conditions.add(arg0);
+    return this;
+  }
+
+  public CandidateQueryBuilder orderBy(String arg0) {
+    this.orderBy = arg0;
+    return this;
+  }
+
+  /**
+   * Limit the number of rows returned using the <code>RETURN_TOP</code> hint.
+   *
+   * @param arg0 Number of rows (0 or less means no limit)
+   */
+  public CandidateQueryBuilder returnTop(int arg0) {
+    this.returnTop = arg0;
+    return this;
+  }
+
+  public String build() {
+    StringBuilder dql = new StringBuilder("SELECT ");
+    dql.append(selectList.isEmpty() ? "*" : String.join(", ", selectList));
+    dql.append(" FROM ").append(fromClause);
+    List<String> where = new ArrayList<String>();
+    if (null != whereClause) {
+      where.add(conditions.isEmpty() ? whereClause : "(".concat(whereClause).concat(")"));
+    }
+    where.addAll(conditions);
+    if (!where.isEmpty()) {
+      dql.append(" WHERE ").append(String.join(" AND ", where));
+    }
+    if (null != orderBy) {
+      dql.append(" ORDER BY ").append(orderBy);
+    }
+    if (returnTop > 0) {
+      dql.append(" ENABLE (RETURN_TOP ").append(returnTop).append(")");
+    }
+    return dql.toString();
+  }
+
+  public String toString() {
+    return build();
+  }
+}
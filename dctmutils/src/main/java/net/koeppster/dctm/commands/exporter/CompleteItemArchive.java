@@ -0,0 +1,368 @@
+package net.koeppster.dctm.commands.exporter;
+
+import com.documentum.fc.common.DfLogger;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Read-only snapshot of COMPLETE queue items moved out of the Queue Items database.  The file holds
+ * one 24 byte record (chronicleId, objectId, modifiedDate) per chronicle sorted by chronicleId and
+ * is memory mapped, so a lookup is a binary search that does not load the archive into the heap.
+ *
+ * <p>An archive is never changed in place; {@link #write(File, CompleteItemArchive, List)} and
+ * {@link Writer} merge new items with the old archive into a new file and swap it in with an atomic
+ * rename.
+ */
+public class CompleteItemArchive {
+
+  private static final int MAGIC = 0x44434131; // "DCA1"
+  private static final int HEADER_SIZE = 12;
+  private static final int RECORD_SIZE = 24;
+
+  /**
+   * Builds a new archive from items given in any order, for more items than fit in memory.  Items
+   * are sorted a run at a time and each full run is written to a temporary file next to the
+   * archive, then {@link #finish(CompleteItemArchive)} merges the runs with the current archive.
+   * Only one run is held in memory at a time.
+   */
+  public static class Writer implements Closeable {
+    private final File file;
+    private final int runSize;
+    private final List<ExportQueueItem> run;
+    private final List<File> runFiles = new ArrayList<File>();
+    private long added = 0;
+
+    /**
+     * @param arg0 The archive file to write
+     * @param arg1 The number of items sorted in memory at a time
+     */
+    public Writer(File arg0, int arg1) {
+      this.file = arg0;
+      this.runSize = Math.max(1, arg1);
+      this.run = new ArrayList<ExportQueueItem>(Math.min(this.runSize, 1 << 16));
+    }
+
+    /** Add an item.  Each chronicle must only be added once. */
+    public void add(ExportQueueItem arg0) throws IOException {
+      run.add(arg0);
+      added++;
+      if (run.size() >= runSize) {
+        spill();
+      }
+    }
+
+    /** Returns the number of items added so far. */
+    public long getAdded() {
+      return added;
+    }
+
+    private void spill() throws IOException {
+      run.sort(Comparator.comparingLong(ExportQueueItem::getChronicleId));
+      File runFile = new File(String.format("%s.run%d", file.getPath(), runFiles.size()));
+      runFiles.add(runFile);
+      try (DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(new FileOutputStream(runFile, false)))) {
+        for (ExportQueueItem item : run) {
+          out.writeLong(item.getChronicleId());
+          out.writeLong(item.getObjectId());
+          out.writeLong(item.getModifiedDate());
+        }
+      }
+      run.clear();
+    }
+
+    /**
+     * Write the archive from the items added and an existing archive.  Where both hold a
+     * chronicle the added item wins.
+     *
+     * @param arg0 The current archive (may be null)
+     * @return The number of items in the new archive
+     */
+    public int finish(CompleteItemArchive arg0) throws IOException {
+      List<Source> sources = new ArrayList<Source>();
+      try {
+        if (runFiles.isEmpty()) {
+          run.sort(Comparator.comparingLong(ExportQueueItem::getChronicleId));
+          sources.add(new ListSource(run));
+        } else {
+          if (!run.isEmpty()) {
+            spill();
+          }
+          for (File runFile : runFiles) {
+            sources.add(new RunSource(runFile));
+          }
+        }
+        if (null != arg0) {
+          sources.add(new ArchiveSource(arg0));
+        }
+        return merge(file, sources);
+      } finally {
+        for (Source source : sources) {
+          source.close();
+        }
+      }
+    }
+
+    /** Remove the run files. */
+    @Override
+    public void close() throws IOException {
+      for (File runFile : runFiles) {
+        Files.deleteIfExists(runFile.toPath());
+      }
+      runFiles.clear();
+      run.clear();
+    }
+  }
+
+  /** Sorted items read one at a time.  On equal chronicleIds the lower rank wins. */
+  private abstract static class Source implements Closeable {
+    private final int rank;
+    long chronicleId;
+    long objectId;
+    long modifiedDate;
+
+    Source(int rank) {
+      this.rank = rank;
+    }
+
+    /** Move to the next item, returns false at the end. */
+    abstract boolean advance() throws IOException;
+
+    @Override
+    public void close() throws IOException {}
+  }
+
+  private static class ListSource extends Source {
+    private final List<ExportQueueItem> items;
+    private int next = 0;
+
+    ListSource(List<ExportQueueItem> items) {
+      super(0);
+      this.items = items;
+    }
+
+    @Override
+    boolean advance() {
+      if (next >= items.size()) {
+        return false;
+      }
+      ExportQueueItem item = items.get(next++);
+      chronicleId = item.getChronicleId();
+      objectId = item.getObjectId();
+      modifiedDate = item.getModifiedDate();
+      return true;
+    }
+  }
+
+  private static class RunSource extends Source {
+    private final DataInputStream in;
+
+    RunSource(File file) throws IOException {
+      super(0);
+      this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    }
+
+    @Override
+    boolean advance() throws IOException {
+      try {
+        chronicleId = in.readLong();
+      } catch (EOFException e) {
+        return false;
+      }
+      objectId = in.readLong();
+      modifiedDate = in.readLong();
+      return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+
+  private static class ArchiveSource extends Source {
+    private final CompleteItemArchive archive;
+    private int next = 0;
+
+    ArchiveSource(CompleteItemArchive archive) {
+      super(1);
+      this.archive = archive;
+    }
+
+    @Override
+    boolean advance() {
+      if (next >= archive.size) {
+        return false;
+      }
+      chronicleId = archive.chronicleIdAt(next);
+      objectId = archive.objectIdAt(next);
+      modifiedDate = archive.modifiedDateAt(next);
+      next++;
+      return true;
+    }
+  }
+
+  private final File file;
+  private final MappedByteBuffer buffer;
+  private final int size;
+
+  /**
+   * Returns the archive file kept next to a Queue Items database.
+   *
+   * @param arg0 The Queue Items database file
+   */
+  public static File fileFor(File arg0) {
+    return new File(arg0.getPath().concat(".archive"));
+  }
+
+  /**
+   * @param arg0 An archive written by {@link #write(File, CompleteItemArchive, List)}
+   * @throws IOException If the file cannot be read or is not an archive
+   */
+  public CompleteItemArchive(File arg0) throws IOException {
+    this.file = arg0;
+    try (FileChannel channel = FileChannel.open(arg0.toPath(), StandardOpenOption.READ)) {
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    if ((buffer.capacity() < HEADER_SIZE) || (buffer.getInt(0) != MAGIC)) {
+      throw new IOException(String.format("%s is not a completed item archive", arg0));
+    }
+    long count = buffer.getLong(4);
+    if (HEADER_SIZE + count * RECORD_SIZE != buffer.capacity()) {
+      throw new IOException(String.format("Completed item archive %s is truncated", arg0));
+    }
+    this.size = (int) count;
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /** Returns true if the archive holds this version of the chronicle. */
+  public boolean contains(long chronicleId, long objectId, long modifiedDate) {
+    int i = indexOf(chronicleId);
+    return (i >= 0) && (objectIdAt(i) == objectId) && (modifiedDateAt(i) == modifiedDate);
+  }
+
+  private int indexOf(long arg0) {
+    int low = 0;
+    int high = size - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      long key = chronicleIdAt(mid);
+      if (key < arg0) {
+        low = mid + 1;
+      } else if (key > arg0) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+
+  private long chronicleIdAt(int arg0) {
+    return buffer.getLong(HEADER_SIZE + arg0 * RECORD_SIZE);
+  }
+
+  private long objectIdAt(int arg0) {
+    return buffer.getLong(HEADER_SIZE + arg0 * RECORD_SIZE + 8);
+  }
+
+  private long modifiedDateAt(int arg0) {
+    return buffer.getLong(HEADER_SIZE + arg0 * RECORD_SIZE + 16);
+  }
+
+  /**
+   * Write a new archive holding the items of an existing archive plus the given items.  Where both
+   * hold a chronicle the given item wins.
+   *
+   * @param arg0 The archive file to write
+   * @param arg1 The current archive (may be null)
+   * @param arg2 The items to add, sorted by chronicleId with no duplicates
+   * @return The number of items in the new archive
+   */
+  public static int write(File arg0, CompleteItemArchive arg1, List<ExportQueueItem> arg2)
+      throws IOException {
+    List<Source> sources = new ArrayList<Source>();
+    sources.add(new ListSource(arg2));
+    if (null != arg1) {
+      sources.add(new ArchiveSource(arg1));
+    }
+    return merge(arg0, sources);
+  }
+
+  private static int merge(File arg0, List<Source> arg1) throws IOException {
+    File tmp = new File(arg0.getPath().concat(".tmp"));
+    PriorityQueue<Source> heads =
+        new PriorityQueue<Source>(
+            Math.max(1, arg1.size()),
+            Comparator.<Source>comparingLong(source -> source.chronicleId)
+                .thenComparingInt(source -> source.rank));
+    for (Source source : arg1) {
+      if (source.advance()) {
+        heads.add(source);
+      }
+    }
+    long count = 0;
+    try (FileOutputStream fileOut = new FileOutputStream(tmp, false);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
+      out.writeInt(MAGIC);
+      out.writeLong(0);
+      while (!heads.isEmpty()) {
+        Source head = heads.poll();
+        long key = head.chronicleId;
+        out.writeLong(key);
+        out.writeLong(head.objectId);
+        out.writeLong(head.modifiedDate);
+        count++;
+        if (head.advance()) {
+          heads.add(head);
+        }
+        // Older copies of the same chronicle
+        while (!heads.isEmpty() && (heads.peek().chronicleId == key)) {
+          Source older = heads.poll();
+          if (older.advance()) {
+            heads.add(older);
+          }
+        }
+      }
+      out.flush();
+      fileOut.getChannel().write(ByteBuffer.allocate(8).putLong(0, count), 4);
+      fileOut.getChannel().force(false);
+    }
+    Files.move(
+        tmp.toPath(),
+        arg0.toPath(),
+        StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+    DfLogger.debug(
+        CompleteItemArchive.class,
+        "Wrote {0} items to completed item archive {1}",
+        new String[] {Long.toString(count), arg0.getAbsolutePath()},
+        null);
+    return (int) count;
+  }
+}
@@ -0,0 +1,107 @@
+package net.koeppster.dctm.commands.exporter;
+
+/**
+ * In-memory set of the exact (chronicleId, objectId, modifiedDate) versions of the queue items that
+ * are COMPLETE.  A candidate whose version is in the set has already been exported as it is and
+ * can be dropped without reading the Queue Items database; a candidate that differs in any of the
+ * three is never dropped.
+ *
+ * <p>The set holds one version per chronicle, the last one added.  Versions are kept in an open
+ * addressing <code>long[]</code> of three longs per slot, about 32 to 48 bytes per item as the
+ * table fills (under 200 MB for four million items).
+ */
+public class CompleteItemFilter {
+
+  private static final int INITIAL_CAPACITY = 1 << 16;
+  // Longs per slot: chronicleId, objectId, modifiedDate
+  private static final int STRIDE = 3;
+
+  // A chronicleId of 0 marks an empty slot, so the null id is kept on its own
+  private long[] slots = new long[INITIAL_CAPACITY * STRIDE];
+  private boolean hasNullId = false;
+  private long nullObjectId = 0L;
+  private long nullModifiedDate = 0L;
+  private int size = 0;
+
+  public synchronized void add(long chronicleId, long objectId, long modifiedDate) {
+    if (chronicleId == DctmId.NULL_ID) {
+      if (!hasNullId) {
+        hasNullId = true;
+        size++;
+      }
+      nullObjectId = objectId;
+      nullModifiedDate = modifiedDate;
+      return;
+    }
+    if ((size + 1) * 4 > capacity() * 3) {
+      resize();
+    }
+    if (insert(slots, chronicleId, objectId, modifiedDate)) {
+      size++;
+    }
+  }
+
+  public synchronized boolean contains(long chronicleId, long objectId, long modifiedDate) {
+    if (chronicleId == DctmId.NULL_ID) {
+      return hasNullId && (nullObjectId == objectId) && (nullModifiedDate == modifiedDate);
+    }
+    int mask = capacity() - 1;
+    for (int i = mix(chronicleId) & mask; slots[i * STRIDE] != 0; i = (i + 1) & mask) {
+      if (slots[i * STRIDE] == chronicleId) {
+        return (slots[i * STRIDE + 1] == objectId) && (slots[i * STRIDE + 2] == modifiedDate);
+      }
+    }
+    return false;
+  }
+
+  public synchronized int size() {
+    return size;
+  }
+
+  private int capacity() {
+    return slots.length / STRIDE;
+  }
+
+  private void resize() {
+    long[] larger = new long[slots.length * 2];
+    for (int i = 0; i < slots.length; i += STRIDE) {
+      if (slots[i] != 0) {
+        insert(larger, slots[i], slots[i + 1], slots[i + 2]);
+      }
+    }
+    slots = larger;
+  }
+
+  /**
+   * Store a version, replacing the chronicle's earlier one.
+   *
+   * @return true if the chronicle was not in the table yet
+   */
+  private static boolean insert(long[] table, long chronicleId, long objectId, long modifiedDate) {
+    int mask = table.length / STRIDE - 1;
+    int i = mix(chronicleId) & mask;
+    boolean added = true;
+    while (table[i * STRIDE] != 0) {
+      if (table[i * STRIDE] == chronicleId) {
+        added = false;
+        break;
+      }
+      i = (i + 1) & mask;
+    }
+    table[i * STRIDE] = chronicleId;
+    table[i * STRIDE + 1] = objectId;
+    table[i * STRIDE + 2] = modifiedDate;
+    return added;
+  }
+
+  /** The murmur3 64 bit finalizer, folded to an int, so sequential ids spread over the table. */
+  private static int mix(long arg0) {
+    long h = arg0;
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb93e53a5e94fL;
+    h ^= h >>> 33;
+    return (int) (h ^ (h >>> 32));
+  }
+}
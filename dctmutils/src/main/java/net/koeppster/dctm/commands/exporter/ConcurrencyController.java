@@ -0,0 +1,169 @@
+package net.koeppster.dctm.commands.exporter;
+
+import com.documentum.fc.common.DfLogger;
+import java.util.function.LongSupplier;
+
+/**
+ * Adjusts the number of workers of a {@link PipelineStage} from what the stage observes, additive
+ * increase / multiplicative decrease style.  Every interval the controller looks at the items the
+ * stage finished, their average time and the failures reported meanwhile:
+ *
+ * <ul>
+ *   <li>If more than {@link #ERROR_RATE} of the items failed, or the average time is more than
+ *       {@link #LATENCY_TOLERANCE} times the best seen, the repository is struggling and the
+ *       workers are cut by a quarter
+ *   <li>Otherwise, if every worker was busy or items were waiting, one worker is added
+ *   <li>Otherwise the stage has more workers than it needs and is left alone
+ * </ul>
+ *
+ * <p>The best time slowly drifts up so one fast interval early in the run does not hold the
+ * workers down for good.  The worker count never leaves the <code>min</code> to <code>max</code>
+ * range and every change is logged.
+ */
+public class ConcurrencyController {
+
+  // Share of failed items that counts as overload
+  static final double ERROR_RATE = 0.05;
+  // Average item time, relative to the best seen, that counts as overload
+  static final double LATENCY_TOLERANCE = 2.0;
+  // Factor the workers are cut by on overload
+  static final double DECREASE = 0.75;
+  // Factor the best time drifts up by every interval
+  static final double BASELINE_DRIFT = 1.02;
+
+  private final PipelineStage stage;
+  private final LongSupplier failures;
+  private final int min;
+  private volatile int max;
+  private final long interval;
+  private final Thread thread;
+  private volatile boolean closed = false;
+  private int limit;
+  private double baseline = Double.MAX_VALUE;
+  private long lastCompleted;
+  private long lastBusyNanos;
+  private long lastFailures;
+
+  /**
+   * @param stage The stage whose workers are adjusted
+   * @param failures Returns the number of failed items so far
+   * @param min The fewest workers
+   * @param max The most workers
+   * @param interval Milliseconds between adjustments
+   */
+  public ConcurrencyController(
+      PipelineStage stage, LongSupplier failures, int min, int max, long interval) {
+    this.stage = stage;
+    this.failures = failures;
+    this.min = Math.max(1, min);
+    this.max = Math.max(this.min, max);
+    this.interval = Math.max(1000, interval);
+    this.limit = Math.min(this.max, Math.max(this.min, stage.getThreads()));
+    this.thread = new Thread(this::run, "concurrency-controller");
+    thread.setDaemon(true);
+  }
+
+  public void start() {
+    stage.setWorkers(limit);
+    lastCompleted = stage.getCompleted();
+    lastBusyNanos = stage.getBusyNanos();
+    lastFailures = failures.getAsLong();
+    DfLogger.info(
+        this,
+        "Adapting {0} workers between {1} and {2}, starting at {3}",
+        new Object[] {stage.getName(), min, max, limit},
+        null);
+    thread.start();
+  }
+
+  private void run() {
+    while (!closed) {
+      try {
+        Thread.sleep(interval);
+      } catch (InterruptedException e) {
+        return;
+      }
+      long completed = stage.getCompleted();
+      long busyNanos = stage.getBusyNanos();
+      long failed = failures.getAsLong();
+      long items = completed - lastCompleted;
+      double latency = (items > 0) ? (busyNanos - lastBusyNanos) / 1e6 / items : 0.0;
+      boolean saturated = (stage.getDepth() > 0) || (stage.getBusy() >= limit);
+      int next = Math.min(max, nextLimit(items, latency, failed - lastFailures, saturated));
+      if (next != limit) {
+        DfLogger.info(
+            this,
+            "{0} workers {1} -> {2} ({3} items, {4}ms per item, best {5}ms, {6} failed)",
+            new Object[] {
+              stage.getName(),
+              limit,
+              next,
+              items,
+              Math.round(latency),
+              Math.round(baseline),
+              failed - lastFailures
+            },
+            null);
+        limit = next;
+        stage.setWorkers(limit);
+      } else {
+        DfLogger.debug(
+            this,
+            "{0} workers {1} ({2} items, {3}ms per item)",
+            new Object[] {stage.getName(), limit, items, Math.round(latency)},
+            null);
+      }
+      lastCompleted = completed;
+      lastBusyNanos = busyNanos;
+      lastFailures = failed;
+    }
+  }
+
+  /**
+   * Work out the worker count for the next interval.
+   *
+   * @param arg0 Items finished in the interval
+   * @param arg1 Average milliseconds per item in the interval
+   * @param arg2 Items failed in the interval
+   * @param arg3 True if every worker was busy or items were waiting
+   */
+  int nextLimit(long arg0, double arg1, long arg2, boolean arg3) {
+    if ((arg2 > 0) && (arg2 > ERROR_RATE * Math.max(arg0, 1))) {
+      return Math.max(min, (int) Math.floor(limit * DECREASE));
+    }
+    if (arg0 <= 0) {
+      return limit;
+    }
+    if (baseline != Double.MAX_VALUE) {
+      baseline *= BASELINE_DRIFT;
+    }
+    baseline = Math.min(baseline, arg1);
+    if (arg1 > baseline * LATENCY_TOLERANCE) {
+      return Math.max(min, (int) Math.floor(limit * DECREASE));
+    }
+    if (arg3) {
+      return Math.min(max, limit + 1);
+    }
+    return limit;
+  }
+
+  /**
+   * Change the most workers, for example when another export window opens.  A lower maximum takes
+   * effect at the next adjustment.
+   *
+   * @param arg0 The most workers
+   */
+  public void setMax(int arg0) {
+    max = Math.max(min, arg0);
+  }
+
+  /** Returns the current worker count. */
+  public int getLimit() {
+    return limit;
+  }
+
+  public void close() {
+    closed = true;
+    thread.interrupt();
+  }
+}
@@ -0,0 +1,33 @@
+package net.koeppster.dctm.commands.exporter;
+
+/**
+ * Converts Documentum object ids between their 16 character hex form and a <code>long</code>.  The
+ * id is read as an unsigned 64 bit number, so the conversion is lossless and the null id
+ * (<code>0000000000000000</code>) maps to 0.
+ */
+public final class DctmId {
+
+  public static final long NULL_ID = 0L;
+
+  private DctmId() {}
+
+  /**
+   * @param arg0 A 16 character hex object id
+   * @return The id as a <code>long</code>
+   * @throws NumberFormatException If the value is not a valid object id
+   */
+  public static long toLong(String arg0) {
+    if (arg0.length() != 16) {
+      throw new NumberFormatException(String.format("Invalid object id: %s", arg0));
+    }
+    return Long.parseUnsignedLong(arg0, 16);
+  }
+
+  /**
+   * @param arg0 An id previously returned by {@link #toLong(String)}
+   * @return The 16 character hex object id
+   */
+  public static String toString(long arg0) {
+    return String.format("%016x", arg0);
+  }
+}
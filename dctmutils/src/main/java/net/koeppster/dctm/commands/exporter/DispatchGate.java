@@ -0,0 +1,20 @@
+package net.koeppster.dctm.commands.exporter;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Something the {@link ExportItemDispatcher} waits on before it hands out an item, such as the
+ * {@link ExportSchedule} or the {@link ResourceGuard}.
+ */
+public interface DispatchGate {
+
+  /**
+   * Wait until an item may go ahead.
+   *
+   * @return false if it may not go ahead within the timeout
+   */
+  boolean awaitOpen(long arg0, TimeUnit arg1) throws InterruptedException;
+
+  /** Returns true if items may go ahead now. */
+  boolean isOpen();
+}
@@ -0,0 +1,45 @@
+package net.koeppster.dctm.commands.exporter;
+
+import java.io.Serializable;
+import org.dizitart.no2.repository.annotations.Entity;
+import org.dizitart.no2.repository.annotations.Id;
+
+/**
+ * A named value kept in the Queue Items database alongside the items, used to remember where a
+ * long running step (such as a paged candidate listing) got to so it can be resumed.
+ */
+@Entity
+public class ExportCheckpoint implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  @Id private String key = null;
+  private String value = null;
+
+  public String getKey() {
+    return key;
+  }
+
+  public void setKey(String key) {
+    this.key = key;
+  }
+
+  public String getValue() {
+    return value;
+  }
+
+  public void setValue(String value) {
+    this.value = value;
+  }
+
+  public ExportCheckpoint(String key, String value) {
+    this.key = key;
+    this.value = value;
+  }
+
+  public ExportCheckpoint() {}
+
+  public String toString() {
+    return "(key=".concat(key).concat(",value=").concat(String.valueOf(value)).concat(")");
+  }
+}
@@ -10,6 +10,7 @@ import com.documentum.fc.common.DfException;
 import com.documentum.fc.common.DfLogger;
 import com.documentum.fc.common.DfLoginInfo;
 import com.documentum.fc.common.IDfLoginInfo;
+import com.documentum.fc.common.IDfTime;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import java.io.File;
@@ -17,12 +18,21 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import me.tongfei.progressbar.ProgressBar;
 import net.koeppster.dctm.commands.AbstractCmd;
@@ -71,29 +81,375 @@ public class ExportCmd extends AbstractCmd implements UtilsFunction {
       "Flag that, if specified, resets the Queue Items database";
   public static final String ARG_THREADS = "threads";
   public static final String[] ARG_THREADS_NAMES = {"-t","--threads"};
-  public static final String ARG_THREADS_HELP = "Number of Candidate Parser Thresds (default is three)";
+  public static final String ARG_THREADS_HELP =
+      "Number of threads downloading content (default is three)";
+  public static final String ARG_METADATA_THREADS = "metadatathreads";
+  public static final String[] ARG_METADATA_THREADS_NAMES = {"--metadata-threads"};
+  public static final String ARG_METADATA_THREADS_HELP =
+      "Number of threads fetching objects and folders (default is the number of --threads)";
+  public static final String ARG_ADAPTIVE = "adaptive";
+  public static final String[] ARG_ADAPTIVE_NAMES = {"--adaptive"};
+  public static final String ARG_ADAPTIVE_HELP =
+      "Adjust the number of threads downloading content while the export runs, starting at"
+          + " --threads: add one while items are waiting and the repository keeps up, cut back"
+          + " when item times or errors climb";
+  public static final String ARG_MIN_THREADS = "minthreads";
+  public static final String[] ARG_MIN_THREADS_NAMES = {"--min-threads"};
+  public static final String ARG_MIN_THREADS_HELP =
+      "Fewest threads downloading content with --adaptive (default is one)";
+  public static final String ARG_MAX_THREADS = "maxthreads";
+  public static final String[] ARG_MAX_THREADS_NAMES = {"--max-threads"};
+  public static final String ARG_MAX_THREADS_HELP =
+      "Most threads downloading content with --adaptive (default is four times --threads)";
+  public static final String ARG_VIRTUAL_THREADS = "virtualthreads";
+  public static final String[] ARG_VIRTUAL_THREADS_NAMES = {"--virtual-threads"};
+  public static final String ARG_VIRTUAL_THREADS_HELP =
+      "Run the pipeline threads as virtual threads (Java 21 or newer), so hundreds of items can"
+          + " be in flight without hundreds of OS threads; use with --max-sessions";
+  public static final String ARG_FINALIZE_THREADS = "finalizethreads";
+  public static final String[] ARG_FINALIZE_THREADS_NAMES = {"--finalize-threads"};
+  public static final String ARG_FINALIZE_THREADS_HELP =
+      "Number of threads moving downloaded files into place and writing the export file"
+          + " (default is one)";
+  public static final String ARG_LARGE_THRESHOLD = "largethreshold";
+  public static final String[] ARG_LARGE_THRESHOLD_NAMES = {"--large-threshold"};
+  public static final String ARG_LARGE_THRESHOLD_HELP =
+      "Megabytes of content from which an item is exported first and downloaded by the"
+          + " --large-threads instead of the --threads; 0 for no large lane (default is 256)";
+  public static final String ARG_LARGE_THREADS = "largethreads";
+  public static final String[] ARG_LARGE_THREADS_NAMES = {"--large-threads"};
+  public static final String ARG_LARGE_THREADS_HELP =
+      "Number of threads downloading content of at least --large-threshold (default is two)";
+  public static final String ARG_BATCH_SIZE = "batchsize";
+  public static final String[] ARG_BATCH_SIZE_NAMES = {"--batch-size"};
+  public static final String ARG_BATCH_SIZE_HELP =
+      "Number of candidates written to the Queue Items database per transaction (default is 500)";
+  public static final int DEFAULT_BATCH_SIZE = 500;
+  public static final String ARG_STREAM = "stream";
+  public static final String[] ARG_STREAM_NAMES = {"--stream"};
+  public static final String ARG_STREAM_HELP =
+      "Flag that, if specified, exports candidates while the candidate list is still being built";
+  public static final String ARG_PAGE_SIZE = "pagesize";
+  public static final String[] ARG_PAGE_SIZE_NAMES = {"--page-size"};
+  public static final String ARG_PAGE_SIZE_HELP =
+      "List candidates in pages of this many objects ordered by r_object_id, saving progress after"
+          + " each page so an interrupted listing can resume (default is a single query)";
+  public static final String ARG_PARTITIONS = "partitions";
+  public static final String[] ARG_PARTITIONS_NAMES = {"--partitions"};
+  public static final String ARG_PARTITIONS_HELP =
+      "Number of parallel sessions used to list candidates, each listing its own r_modify_date"
+          + " windows (default is one)";
+  public static final String ARG_INCREMENTAL = "incremental";
+  public static final String[] ARG_INCREMENTAL_NAMES = {"--incremental"};
+  public static final String ARG_INCREMENTAL_HELP =
+      "Flag that, if specified, only lists objects modified since the newest r_modify_date seen by"
+          + " the last completed listing of the same query";
+  public static final String ARG_SKEW = "skew";
+  public static final String[] ARG_SKEW_NAMES = {"--skew"};
+  public static final String ARG_SKEW_HELP =
+      "Seconds subtracted from the incremental watermark to allow for clock skew and late"
+          + " commits (default is 300)";
+  public static final String ARG_FOLLOW = "follow";
+  public static final String[] ARG_FOLLOW_NAMES = {"--follow"};
+  public static final String ARG_FOLLOW_HELP =
+      "Flag that, if specified, keeps running after the export and exports objects reported by"
+          + " dm_save, dm_checkin and dm_destroy audit trail entries";
+  public static final String ARG_POLL = "poll";
+  public static final String[] ARG_POLL_NAMES = {"--poll"};
+  public static final String ARG_POLL_HELP =
+      "Seconds between audit trail polls in follow mode (default is 30)";
+  public static final String ARG_FOLLOW_BATCH = "followbatch";
+  public static final String[] ARG_FOLLOW_BATCH_NAMES = {"--follow-batch"};
+  public static final String ARG_FOLLOW_BATCH_HELP =
+      "Maximum number of audit trail entries read per poll in follow mode (default is 500)";
+  public static final String ARG_PREFILTER = "prefilter";
+  public static final String[] ARG_PREFILTER_NAMES = {"--prefilter"};
+  public static final String ARG_PREFILTER_HELP =
+      "Flag that, if specified, keeps the versions of completed items in memory so unchanged"
+          + " candidates are skipped without a database lookup";
+  public static final String ARG_STATUS_BATCH = "statusbatch";
+  public static final String[] ARG_STATUS_BATCH_NAMES = {"--status-batch"};
+  public static final String ARG_STATUS_BATCH_HELP =
+      "Maximum number of item status changes committed per transaction (default is 500)";
+  public static final String ARG_STATUS_DELAY = "statusdelay";
+  public static final String[] ARG_STATUS_DELAY_NAMES = {"--status-delay"};
+  public static final String ARG_STATUS_DELAY_HELP =
+      "Maximum milliseconds an item status change waits before it is committed (default is 1000)";
+  public static final String ARG_STORE = "store";
+  public static final String[] ARG_STORE_NAMES = {"--store"};
+  public static final String ARG_STORE_HELP =
+      "Queue Items store: nitrite (database file, the default), journal (items in memory with an"
+          + " append-only journal file) or memory (nothing kept between runs)";
+  public static final String STORE_NITRITE = "nitrite";
+  public static final String STORE_JOURNAL = "journal";
+  public static final String STORE_MEMORY = "memory";
+  public static final String ARG_LEASE = "lease";
+  public static final String[] ARG_LEASE_NAMES = {"--lease"};
+  public static final String ARG_LEASE_HELP =
+      "Seconds an item marked in progress is held before a later run may export it again if this"
+          + " run dies; renewed while the item is being exported (default is 3600)";
+  public static final String ARG_DRAIN_TIMEOUT = "draintimeout";
+  public static final String[] ARG_DRAIN_TIMEOUT_NAMES = {"--drain-timeout"};
+  public static final String ARG_DRAIN_TIMEOUT_HELP =
+      "Seconds items already being exported are given to finish when the export is stopped"
+          + " (default is 60)";
+  public static final String ARG_RETRIES = "retries";
+  public static final String[] ARG_RETRIES_NAMES = {"--retries"};
+  public static final String ARG_RETRIES_HELP =
+      "Times an item that failed with a transient error (timeout, lost connection, lock) is tried"
+          + " again before it is marked FAILED (default is 3)";
+  public static final String ARG_RETRY_DELAY = "retrydelay";
+  public static final String[] ARG_RETRY_DELAY_NAMES = {"--retry-delay"};
+  public static final String ARG_RETRY_DELAY_HELP =
+      "Milliseconds before the first retry of a failed item, doubled for each further retry"
+          + " (default is 1000)";
+  public static final String ARG_RETRY_FAILED = "retryfailed";
+  public static final String[] ARG_RETRY_FAILED_NAMES = {"--retry-failed"};
+  public static final String ARG_RETRY_FAILED_HELP =
+      "Return the items marked FAILED by earlier runs to READY so they are exported again";
+  public static final String ARG_ITEM_TIMEOUT = "itemtimeout";
+  public static final String[] ARG_ITEM_TIMEOUT_NAMES = {"--item-timeout"};
+  public static final String ARG_ITEM_TIMEOUT_HELP =
+      "Seconds a worker may spend on one item before the item is abandoned and retried (default"
+          + " is no limit)";
+  public static final String ARG_STAGE_TIMEOUT = "stagetimeout";
+  public static final String[] ARG_STAGE_TIMEOUT_NAMES = {"--stage-timeout"};
+  public static final String ARG_STAGE_TIMEOUT_HELP =
+      "Seconds a worker may spend in one step of an item (fetching the object or folder, or"
+          + " downloading the content) before the item is abandoned and retried (default is no"
+          + " limit)";
+  public static final String ARG_SESSION_ITEMS = "sessionitems";
+  public static final String[] ARG_SESSION_ITEMS_NAMES = {"--session-items"};
+  public static final String ARG_SESSION_ITEMS_HELP =
+      "Items each worker exports with one Documentum session before getting a new one; 1 gets a"
+          + " session per item (default is 500)";
+  public static final String ARG_SESSION_AGE = "sessionage";
+  public static final String[] ARG_SESSION_AGE_NAMES = {"--session-age"};
+  public static final String ARG_SESSION_AGE_HELP =
+      "Seconds a worker keeps its Documentum session before getting a new one; 0 for no limit"
+          + " (default is 900)";
+  public static final String ARG_MAX_SESSIONS = "maxsessions";
+  public static final String[] ARG_MAX_SESSIONS_NAMES = {"--max-sessions"};
+  public static final String ARG_MAX_SESSIONS_HELP =
+      "Most Documentum sessions the workers hold at the same time; workers beyond that wait for"
+          + " a session (default is no limit)";
+  public static final String ARG_CACHE_FLUSH = "cacheflush";
+  public static final String[] ARG_CACHE_FLUSH_NAMES = {"--cache-flush"};
+  public static final String ARG_CACHE_FLUSH_HELP =
+      "Items after which a worker flushes its Documentum session's object cache; 0 never flushes"
+          + " (default is 100)";
+  public static final String ARG_FOLDER_CACHE = "foldercache";
+  public static final String[] ARG_FOLDER_CACHE_NAMES = {"--folder-cache"};
+  public static final String ARG_FOLDER_CACHE_HELP =
+      "Number of folder paths kept in memory (default is 10000)";
+  public static final String ARG_HEAP_REPORT = "heapreport";
+  public static final String[] ARG_HEAP_REPORT_NAMES = {"--heap-report"};
+  public static final String ARG_HEAP_REPORT_HELP =
+      "Seconds between heap use reports in the log; 0 for none (default is 300)";
+  public static final String ARG_OBJECT_RATE = RepositoryThrottle.OBJECT_RATE;
+  public static final String[] ARG_OBJECT_RATE_NAMES = {"--object-rate"};
+  public static final String ARG_OBJECT_RATE_HELP =
+      "Most objects exported per second, shared by all threads (default is no limit)";
+  public static final String ARG_KB_RATE = RepositoryThrottle.KB_RATE;
+  public static final String[] ARG_KB_RATE_NAMES = {"--kb-rate"};
+  public static final String ARG_KB_RATE_HELP =
+      "Most kilobytes of content downloaded per second, shared by all threads (default is no"
+          + " limit)";
+  public static final String ARG_QUERY_RATE = RepositoryThrottle.QUERY_RATE;
+  public static final String[] ARG_QUERY_RATE_NAMES = {"--query-rate"};
+  public static final String ARG_QUERY_RATE_HELP =
+      "Most candidate and audit trail queries run per second (default is no limit)";
+  public static final String ARG_SCHEDULE = "schedule";
+  public static final String[] ARG_SCHEDULE_NAMES = {"--schedule"};
+  public static final String ARG_SCHEDULE_HELP =
+      "Only export in these windows, pausing in between without exiting, for example"
+          + " \"Mon-Fri 20:00-06:00 threads=4 objectrate=20; Sat,Sun 00:00-24:00 threads=16\"; a"
+          + " window may set threads, objectrate, kbrate and queryrate (default is no schedule)";
+  public static final String ARG_LIMITS = "limits";
+  public static final String[] ARG_LIMITS_NAMES = {"--limits"};
+  public static final String ARG_LIMITS_HELP =
+      "Properties file with the objectrate, kbrate and queryrate limits, read again whenever it"
+          + " changes so the limits can be adjusted while the export runs; overrides --object-rate,"
+          + " --kb-rate and --query-rate";
+  public static final String ARG_MIN_FREE_DISK = "minfreedisk";
+  public static final String[] ARG_MIN_FREE_DISK_NAMES = {"--min-free-disk"};
+  public static final String ARG_MIN_FREE_DISK_HELP =
+      "Megabytes that must stay free on the --output file system; the export pauses below it and"
+          + " slows down below twice that; 0 to not check (default is 1024)";
+  public static final String ARG_MIN_FREE_INODES = "minfreeinodes";
+  public static final String[] ARG_MIN_FREE_INODES_NAMES = {"--min-free-inodes"};
+  public static final String ARG_MIN_FREE_INODES_HELP =
+      "Inodes that must stay free on the --output file system; 0 to not check (default is 10000)";
+  public static final String ARG_MAX_HEAP = "maxheap";
+  public static final String[] ARG_MAX_HEAP_NAMES = {"--max-heap"};
+  public static final String ARG_MAX_HEAP_HELP =
+      "Percent of the maximum heap that may stay in use after garbage collection before the"
+          + " export pauses; 0 to not check (default is 90)";
+  public static final String ARG_MAX_LOAD = "maxload";
+  public static final String[] ARG_MAX_LOAD_NAMES = {"--max-load"};
+  public static final String ARG_MAX_LOAD_HELP =
+      "System load average per processor above which the export pauses; 0 to not check (default"
+          + " is not to check)";
+  public static final String ARG_RESOURCE_CHECK = "resourcecheck";
+  public static final String[] ARG_RESOURCE_CHECK_NAMES = {"--resource-check"};
+  public static final String ARG_RESOURCE_CHECK_HELP =
+      "Seconds between checks of the disk, heap and load limits; 0 turns the checks off (default"
+          + " is 5)";
+  public static final int DEFAULT_LARGE_THRESHOLD = 256;
+  public static final int DEFAULT_LARGE_THREADS = 2;
+  public static final int DEFAULT_MIN_FREE_DISK = 1024;
+  public static final int DEFAULT_MIN_FREE_INODES = 10000;
+  public static final int DEFAULT_MAX_HEAP = 90;
+  public static final int DEFAULT_RESOURCE_CHECK = 5;
+  public static final int DEFAULT_THREADS = 3;
+  public static final int DEFAULT_CACHE_FLUSH = 100;
+  public static final int DEFAULT_FOLDER_CACHE = 10000;
+  public static final int DEFAULT_HEAP_REPORT = 300;
+  public static final int DEFAULT_SESSION_ITEMS = 500;
+  public static final int DEFAULT_SESSION_AGE = 900;
+  public static final int DEFAULT_RETRIES = 3;
+  public static final int DEFAULT_RETRY_DELAY = 1000;
+  public static final int MAX_RETRY_DELAY = 60000;
+  public static final int DEFAULT_DRAIN_TIMEOUT = 60;
+  public static final int DEFAULT_LEASE = 3600;
+  public static final int DEFAULT_STATUS_DELAY = 1000;
+  public static final int DEFAULT_POLL = 30;
+  public static final int DEFAULT_SKEW = 300;
+
+  // Checkpoint key prefix for the last r_object_id of a paged listing
+  private static final String CHECKPOINT_LISTING = "listing:";
+  // Checkpoint key prefixes for the partition bounds and the partition slices already listed
+  private static final String CHECKPOINT_PARTITIONS = "partitions:";
+  private static final String CHECKPOINT_SLICE_DONE = "slicedone:";
+  // Number of r_modify_date windows listed by each partition session
+  private static final int SLICES_PER_PARTITION = 4;
+  // Checkpoint key prefix for the newest r_modify_date of the last completed listing
+  private static final String CHECKPOINT_WATERMARK = "watermark:";
+  // Checkpoint key prefix for the last dm_audittrail entry consumed in follow mode
+  private static final String CHECKPOINT_FOLLOW = "follow:";
+  // Number of chronicle ids per IN list when re-listing changed chronicles
+  private static final int FOLLOW_IDS_PER_QUERY = 100;
+
+  // Items that may be in the pipeline, per pipeline thread
+  private static final int DISPATCH_SLOTS_PER_THREAD = 2;
+  // Milliseconds between adjustments of the content threads with --adaptive
+  private static final long ADAPT_INTERVAL = 10000;
 
   private IDfSessionManager sessionManager = null;
+  private WorkerSessions workerSessions = null;
+  private FolderPathCache folderPaths = null;
+  private HeapMonitor heapMonitor = null;
   private CSVPrinter exportPrinter = null;
   private PrintStream warningStream = System.err;
   private ArrayList<String> attributes = new ArrayList<String>();
   private ArrayList<String> customAttribs = null;
-  private ExportDatabaseManager queueManager = null;
+  private QueueStore queueManager = null;
+  private QueueStatusWriter statusWriter = null;
   private File outputDir = null;
   private String candidateQuery = null;
-  private ExecutorService itemProcessorService = null;
+  private ExportPipeline pipeline = null;
+  private ConcurrencyController concurrencyController = null;
+  private RepositoryThrottle throttle = null;
+  private ExportSchedule schedule = null;
+  private ResourceGuard resourceGuard = null;
+  private final List<DispatchGate> dispatchGates = new ArrayList<DispatchGate>();
+  private int objectRate = 0;
+  private int kbRate = 0;
+  private int queryRate = 0;
+  private int maxThreads = DEFAULT_THREADS;
+  private int dispatchSlots = 0;
   private String repo = null;
   private LockFileManager lockFileManager = null;
+  private int batchSize = DEFAULT_BATCH_SIZE;
+  private int threads = DEFAULT_THREADS;
+  private boolean streamCandidates = false;
+  private int pageSize = 0;
+  private int partitions = 1;
+  private Date watermark = null;
+  private int watermarkSkew = DEFAULT_SKEW;
+  private final AtomicLong maxModifiedDate = new AtomicLong(Long.MIN_VALUE);
+  private boolean follow = false;
+  private int pollInterval = DEFAULT_POLL;
+  private int followBatch = DEFAULT_BATCH_SIZE;
+  private AuditTrailFollower follower = null;
+  private int drainTimeout = DEFAULT_DRAIN_TIMEOUT;
+  private ItemRetryPolicy retryPolicy = null;
+  private ItemWatchdog watchdog = null;
+  private final List<ExportItemDispatcher> dispatchers = new ArrayList<ExportItemDispatcher>();
+  // Counted down by the shutdown hook (or a failed listing) to stop dispatching new work
+  private final CountDownLatch stopSignal = new CountDownLatch(1);
+  private final CountDownLatch shutdownDone = new CountDownLatch(1);
+  private Thread shutdownHook = null;
+  private boolean shutDown = false;
+
+  /** Number of candidates and last r_object_id returned by a candidate query. */
+  private static class ListingResult {
+    private int count = 0;
+    private String lastObjectId = null;
+  }
   
     public void execute(Namespace arg0) throws UtilsException {
       try {
         initialize(arg0);
-        buildCandidateList();
+        installShutdownHook();
+        if (follow) {
+          startFollowing();
+        }
+        if (streamCandidates) {
+          streamCandidateList();
+        } else {
+          buildCandidateList(null);
+        }
+        saveWatermark();
         processCandidateList();
+        if (follow) {
+          followChanges();
+        }
+      } catch (InterruptedException e) {
+        if (isStopping()) {
+          DfLogger.info(this, "Export stopped, rerun to resume", null, null);
+          return;
+        }
+        Thread.currentThread().interrupt();
+        throw new UtilsException("Export interrupted", e);
       } finally {
         shutdown();
       }
     }
+
+    /**
+     * On Ctrl-C or a termination signal stop dispatching, let the items being exported finish (up
+     * to the drain timeout), then flush and close everything through {@link #shutdown()} on the
+     * thread running the export.  The main thread is not interrupted; it notices the stop signal
+     * at its next blocking point.
+     */
+    private void installShutdownHook() {
+      shutdownHook =
+          new Thread(
+              () -> {
+                DfLogger.info(this, "Stopping export", null, null);
+                stopSignal.countDown();
+                try {
+                  if (!shutdownDone.await(drainTimeout + 30L, TimeUnit.SECONDS)) {
+                    shutdown();
+                  }
+                } catch (InterruptedException e) {
+                  Thread.currentThread().interrupt();
+                }
+              },
+              "export-shutdown");
+      Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    private boolean isStopping() {
+      return stopSignal.getCount() == 0;
+    }
+
+    private void checkStopping() throws InterruptedException {
+      if (isStopping()) {
+        throw new InterruptedException("Export stopped");
+      }
+    }
   
     public static void addCommandToArgParser(UtilsArgsParserFactory argParser)
         throws ArgumentParserException {
@@ -136,25 +492,461 @@ public class ExportCmd extends AbstractCmd implements UtilsFunction {
           Arguments.fileType().verifyCanCreate());
       argParser.addArgumentFlag(cmd, ARG_RESET_NAMES, ARG_RESET, ARG_RESET_HELP);
       argParser.addArgument(cmd, ARG_THREADS_NAMES, ARG_THREADS, ARG_THREADS_HELP, false, Integer.class);
+      argParser.addArgument(
+          cmd,
+          ARG_METADATA_THREADS_NAMES,
+          ARG_METADATA_THREADS,
+          ARG_METADATA_THREADS_HELP,
+          false,
+          Integer.class);
+      argParser.addArgumentFlag(cmd, ARG_ADAPTIVE_NAMES, ARG_ADAPTIVE, ARG_ADAPTIVE_HELP);
+      argParser.addArgument(
+          cmd, ARG_MIN_THREADS_NAMES, ARG_MIN_THREADS, ARG_MIN_THREADS_HELP, false, Integer.class);
+      argParser.addArgument(
+          cmd, ARG_MAX_THREADS_NAMES, ARG_MAX_THREADS, ARG_MAX_THREADS_HELP, false, Integer.class);
+      argParser.addArgumentFlag(
+          cmd, ARG_VIRTUAL_THREADS_NAMES, ARG_VIRTUAL_THREADS, ARG_VIRTUAL_THREADS_HELP);
+      argParser.addArgument(
+          cmd,
+          ARG_FINALIZE_THREADS_NAMES,
+          ARG_FINALIZE_THREADS,
+          ARG_FINALIZE_THREADS_HELP,
+          false,
+          Integer.class);
+      argParser.addArgument(
+          cmd,
+          ARG_LARGE_THRESHOLD_NAMES,
+          ARG_LARGE_THRESHOLD,
+          ARG_LARGE_THRESHOLD_HELP,
+          false,
+          Integer.class);
+      argParser.addArgument(
+          cmd,
+          ARG_LARGE_THREADS_NAMES,
+          ARG_LARGE_THREADS,
+          ARG_LARGE_THREADS_HELP,
+          false,
+          Integer.class);
+      argParser.addArgument(
+          cmd, ARG_BATCH_SIZE_NAMES, ARG_BATCH_SIZE, ARG_BATCH_SIZE_HELP, false, Integer.class);
+      argParser.addArgumentFlag(cmd, ARG_STREAM_NAMES, ARG_STREAM, ARG_STREAM_HELP);
+      argParser.addArgument(
+          cmd, ARG_PAGE_SIZE_NAMES, ARG_PAGE_SIZE, ARG_PAGE_SIZE_HELP, false, Integer.class);
+      argParser.addArgument(
+          cmd, ARG_PARTITIONS_NAMES, ARG_PARTITIONS, ARG_PARTITIONS_HELP, false, Integer.class);
+      argParser.addArgumentFlag(cmd, ARG_INCREMENTAL_NAMES, ARG_INCREMENTAL, ARG_INCREMENTAL_HELP);
+      argParser.addArgument(cmd, ARG_SKEW_NAMES, ARG_SKEW, ARG_SKEW_HELP, false, Integer.class);
+      argParser.addArgumentFlag(cmd, ARG_FOLLOW_NAMES, ARG_FOLLOW, ARG_FOLLOW_HELP);
+      argParser.addArgumentFlag(cmd, ARG_PREFILTER_NAMES, ARG_PREFILTER, ARG_PREFILTER_HELP);
+      argParser.addArgument(cmd, ARG_POLL_NAMES, ARG_POLL, ARG_POLL_HELP, false, Integer.class);
+      argParser.addArgument(
+          cmd, ARG_FOLLOW_BATCH_NAMES, ARG_FOLLOW_BATCH, ARG_FOLLOW_BATCH_HELP, false, Integer.class);
+      argParser.addArgument(cmd, ARG_STORE_NAMES, ARG_STORE, ARG_STORE_HELP, false);
+      argParser.addArgument(cmd, ARG_LEASE_NAMES, ARG_LEASE, ARG_LEASE_HELP, false, Integer.class);
+      argParser.addArgument(
+          cmd,
+          ARG_DRAIN_TIMEOUT_NAMES,
+          ARG_DRAIN_TIMEOUT,
+          ARG_DRAIN_TIMEOUT_HELP,
+          false,
+          Integer.class);
+      argParser.addArgument(
+          cmd, ARG_STATUS_BATCH_NAMES, ARG_STATUS_BATCH, ARG_STATUS_BATCH_HELP, false, Integer.class);
+      argParser.addArgument(
+          cmd, ARG_STATUS_DELAY_NAMES, ARG_STATUS_DELAY, ARG_STATUS_DELAY_HELP, false, Integer.class);
+      argParser.addArgument(
+          cmd, ARG_RETRIES_NAMES, ARG_RETRIES, ARG_RETRIES_HELP, false, Integer.class);
+      argParser.addArgument(
+          cmd, ARG_RETRY_DELAY_NAMES, ARG_RETRY_DELAY, ARG_RETRY_DELAY_HELP, false, Integer.class);
+      argParser.addArgumentFlag(
+          cmd, ARG_RETRY_FAILED_NAMES, ARG_RETRY_FAILED, ARG_RETRY_FAILED_HELP);
+      argParser.addArgument(
+          cmd,
+          ARG_ITEM_TIMEOUT_NAMES,
+          ARG_ITEM_TIMEOUT,
+          ARG_ITEM_TIMEOUT_HELP,
+          false,
+          Integer.class);
+      argParser.addArgument(
+          cmd,
+          ARG_STAGE_TIMEOUT_NAMES,
+          ARG_STAGE_TIMEOUT,
+          ARG_STAGE_TIMEOUT_HELP,
+          false,
+          Integer.class);
+      argParser.addArgument(
+          cmd,
+          ARG_SESSION_ITEMS_NAMES,
+          ARG_SESSION_ITEMS,
+          ARG_SESSION_ITEMS_HELP,
+          false,
+          Integer.class);
+      argParser.addArgument(
+          cmd, ARG_SESSION_AGE_NAMES, ARG_SESSION_AGE, ARG_SESSION_AGE_HELP, false, Integer.class);
+      argParser.addArgument(
+          cmd,
+          ARG_MAX_SESSIONS_NAMES,
+          ARG_MAX_SESSIONS,
+          ARG_MAX_SESSIONS_HELP,
+          false,
+          Integer.class);
+      argParser.addArgument(
+          cmd, ARG_CACHE_FLUSH_NAMES, ARG_CACHE_FLUSH, ARG_CACHE_FLUSH_HELP, false, Integer.class);
+      argParser.addArgument(
+          cmd,
+          ARG_FOLDER_CACHE_NAMES,
+          ARG_FOLDER_CACHE,
+          ARG_FOLDER_CACHE_HELP,
+          false,
+          Integer.class);
+      argParser.addArgument(
+          cmd, ARG_HEAP_REPORT_NAMES, ARG_HEAP_REPORT, ARG_HEAP_REPORT_HELP, false, Integer.class);
+      argParser.addArgument(
+          cmd, ARG_OBJECT_RATE_NAMES, ARG_OBJECT_RATE, ARG_OBJECT_RATE_HELP, false, Integer.class);
+      argParser.addArgument(
+          cmd, ARG_KB_RATE_NAMES, ARG_KB_RATE, ARG_KB_RATE_HELP, false, Integer.class);
+      argParser.addArgument(
+          cmd, ARG_QUERY_RATE_NAMES, ARG_QUERY_RATE, ARG_QUERY_RATE_HELP, false, Integer.class);
+      argParser.addArgument(
+          cmd,
+          ARG_LIMITS_NAMES,
+          ARG_LIMITS,
+          ARG_LIMITS_HELP,
+          false,
+          Arguments.fileType().verifyCanRead().verifyExists());
+      argParser.addArgument(cmd, ARG_SCHEDULE_NAMES, ARG_SCHEDULE, ARG_SCHEDULE_HELP, false);
+      argParser.addArgument(
+          cmd,
+          ARG_MIN_FREE_DISK_NAMES,
+          ARG_MIN_FREE_DISK,
+          ARG_MIN_FREE_DISK_HELP,
+          false,
+          Integer.class);
+      argParser.addArgument(
+          cmd,
+          ARG_MIN_FREE_INODES_NAMES,
+          ARG_MIN_FREE_INODES,
+          ARG_MIN_FREE_INODES_HELP,
+          false,
+          Integer.class);
+      argParser.addArgument(
+          cmd, ARG_MAX_HEAP_NAMES, ARG_MAX_HEAP, ARG_MAX_HEAP_HELP, false, Integer.class);
+      argParser.addArgument(
+          cmd, ARG_MAX_LOAD_NAMES, ARG_MAX_LOAD, ARG_MAX_LOAD_HELP, false, Double.class);
+      argParser.addArgument(
+          cmd,
+          ARG_RESOURCE_CHECK_NAMES,
+          ARG_RESOURCE_CHECK,
+          ARG_RESOURCE_CHECK_HELP,
+          false,
+          Integer.class);
     }
   
-    private void buildCandidateList() throws UtilsException {
+    /**
+     * Run the candidate query and record the results in the Queue Items database.
+     *
+     * @param dispatcher If not null, every candidate that is READY after being recorded is handed to
+     *     this dispatcher straight away so that exporting overlaps with the listing.
+     */
+    private void buildCandidateList(ExportItemDispatcher dispatcher)
+        throws UtilsException, InterruptedException {
       DfLogger.debug(this, "Building candidate list", null, null);
-      IDfCollection coll = null;
       IDfSession session = null;
-      try {
+      try (ProgressBar pb =
+          (null == dispatcher) ? new ProgressBar("Building Candidate List", -1) : null) {
         session = sessionManager.getSession(repo);
+        if (partitions > 1) {
+          List<String> slices = getPartitionSlices(session);
+          sessionManager.release(session);
+          session = null;
+          listCandidatePartitions(slices, dispatcher, pb);
+        } else {
+          listCandidates(session, null, dispatcher, pb);
+        }
+      } catch (DfException e) {
+        throw new UtilsException(String.format("Error querying Documentum: %s", e.getMessage()), e);
+      } finally {
+        if ((null != session) && session.isConnected()) {
+          sessionManager.release(session);
+        }
+      }
+    }
+
+    /**
+     * List one partition of the candidates, either with a single query or page by page.
+     *
+     * @param partition Extra DQL condition selecting the partition (null for all candidates)
+     */
+    private void listCandidates(
+        IDfSession session, String partition, ExportItemDispatcher dispatcher, ProgressBar pb)
+        throws DfException, UtilsException, InterruptedException {
+      if (pageSize > 0) {
+        listCandidatePages(session, partition, dispatcher, pb);
+      } else {
+        runCandidateQuery(session, newCandidateQuery(partition).build(), dispatcher, pb);
+      }
+    }
+
+    /**
+     * List the candidates in pages of <code>pageSize</code> ordered by r_object_id.  The last
+     * r_object_id of each page is saved as a checkpoint once the page is committed, so an
+     * interrupted listing continues after that object on the next run.  The checkpoint is removed
+     * when the listing completes.
+     */
+    private void listCandidatePages(
+        IDfSession session, String partition, ExportItemDispatcher dispatcher, ProgressBar pb)
+        throws DfException, UtilsException, InterruptedException {
+      String checkpointKey = CHECKPOINT_LISTING.concat(getListingKey(partition));
+      String lastObjectId = queueManager.getCheckpoint(checkpointKey);
+      if (null != lastObjectId) {
+        DfLogger.info(
+            this, "Resuming candidate listing after {0}", new String[] {lastObjectId}, null);
+      }
+      while (true) {
+        CandidateQueryBuilder query =
+            newCandidateQuery(partition).orderBy("r_object_id").returnTop(pageSize);
+        if (null != lastObjectId) {
+          query.addCondition(String.format("r_object_id > '%s'", lastObjectId));
+        }
+        ListingResult page = runCandidateQuery(session, query.build(), dispatcher, pb);
+        if (page.count == 0) {
+          break;
+        }
+        lastObjectId = page.lastObjectId;
+        queueManager.putCheckpoint(checkpointKey, lastObjectId);
+        if (page.count < pageSize) {
+          break;
+        }
+      }
+      queueManager.removeCheckpoint(checkpointKey);
+    }
+
+    /**
+     * List the partition slices on <code>partitions</code> parallel sessions.  Each finished slice
+     * is recorded as a checkpoint so a restarted listing only runs the slices that did not finish.
+     * The checkpoints are removed once every slice is done.
+     */
+    private void listCandidatePartitions(
+        List<String> slices, ExportItemDispatcher dispatcher, ProgressBar pb)
+        throws UtilsException, InterruptedException {
+      ExecutorService listingService = Executors.newFixedThreadPool(partitions);
+      try {
+        List<Future<?>> results = new ArrayList<Future<?>>();
+        for (String slice : slices) {
+          String doneKey = CHECKPOINT_SLICE_DONE.concat(getListingKey(slice));
+          if (null != queueManager.getCheckpoint(doneKey)) {
+            DfLogger.debug(this, "Skipping finished slice {0}", new String[] {slice}, null);
+            continue;
+          }
+          results.add(
+              listingService.submit(
+                  () -> {
+                    IDfSession session = sessionManager.newSession(repo);
+                    try {
+                      listCandidates(session, slice, dispatcher, pb);
+                    } finally {
+                      sessionManager.release(session);
+                    }
+                    queueManager.putCheckpoint(doneKey, Boolean.TRUE.toString());
+                    return null;
+                  }));
+        }
+        for (Future<?> result : results) {
+          result.get();
+        }
+      } catch (ExecutionException e) {
+        // The export is going to fail, so stop the other slices as well
+        stopSignal.countDown();
+        Throwable cause = e.getCause();
+        if (cause instanceof InterruptedException) {
+          throw (InterruptedException) cause;
+        }
+        if (cause instanceof UtilsException) {
+          throw (UtilsException) cause;
+        }
+        throw new UtilsException(
+            String.format("Error querying Documentum: %s", cause.getMessage()), cause);
+      } finally {
+        // Let the slices notice the stop signal rather than interrupting them mid-write
+        listingService.shutdown();
+        if (!listingService.awaitTermination(drainTimeout, TimeUnit.SECONDS)) {
+          listingService.shutdownNow();
+        }
+      }
+      for (String slice : slices) {
+        queueManager.removeCheckpoint(CHECKPOINT_SLICE_DONE.concat(getListingKey(slice)));
+      }
+      queueManager.removeCheckpoint(getPartitionsKey());
+    }
+
+    /**
+     * Split the candidates into r_modify_date windows.  The range between the oldest and newest
+     * modification date is cut into <code>partitions</code> times {@link #SLICES_PER_PARTITION}
+     * equal windows so that a busy period does not leave one session with most of the work.  The
+     * first window has no lower bound and the last no upper bound, so objects modified while the
+     * listing runs are still covered.  The bounds are saved so a restarted listing reuses them.
+     *
+     * @return The DQL condition for each slice
+     */
+    private List<String> getPartitionSlices(IDfSession session) throws DfException {
+      String key = getPartitionsKey();
+      List<Long> bounds = new ArrayList<Long>();
+      String saved = queueManager.getCheckpoint(key);
+      if (null != saved) {
+        for (String bound : saved.split(",")) {
+          if (!bound.isEmpty()) {
+            bounds.add(Long.valueOf(bound));
+          }
+        }
+      } else {
+        bounds = computePartitionBounds(session);
+        StringBuilder value = new StringBuilder();
+        for (Long bound : bounds) {
+          value.append(bound).append(",");
+        }
+        queueManager.putCheckpoint(key, value.toString());
+      }
+      List<String> slices = new ArrayList<String>();
+      if (bounds.isEmpty()) {
+        slices.add(null);
+        return slices;
+      }
+      slices.add(
+          String.format("r_modify_date < %s", CandidateQueryBuilder.dqlDate(new Date(bounds.get(0)))));
+      for (int i = 1; i < bounds.size(); i++) {
+        slices.add(
+            String.format(
+                "r_modify_date >= %s AND r_modify_date < %s",
+                CandidateQueryBuilder.dqlDate(new Date(bounds.get(i - 1))),
+                CandidateQueryBuilder.dqlDate(new Date(bounds.get(i)))));
+      }
+      slices.add(
+          String.format(
+              "r_modify_date >= %s",
+              CandidateQueryBuilder.dqlDate(new Date(bounds.get(bounds.size() - 1)))));
+      return slices;
+    }
+
+    private List<Long> computePartitionBounds(IDfSession session) throws DfException {
+      List<Long> bounds = new ArrayList<Long>();
+      String dql =
+          newBaseQuery()
+              .select("MIN(r_modify_date) AS min_date", "MAX(r_modify_date) AS max_date")
+              .build();
+      DfLogger.debug(this, "Getting partition range with {0}", new String[] {dql}, null);
+      IDfCollection coll = null;
+      try {
+        IDfQuery query = new DfQuery();
+        query.setDQL(dql);
+        coll = query.execute(session, IDfQuery.DF_READ_QUERY);
+        if (!coll.next()) {
+          return bounds;
+        }
+        IDfTime min = coll.getTime("min_date");
+        IDfTime max = coll.getTime("max_date");
+        if (null == min || null == max || min.isNullDate() || max.isNullDate()) {
+          return bounds;
+        }
+        // Whole seconds, as that is the resolution of a DQL date literal
+        long start = min.getDate().getTime() / 1000;
+        long end = max.getDate().getTime() / 1000 + 1;
+        int slices = partitions * SLICES_PER_PARTITION;
+        long width = Math.max(1, (end - start) / slices);
+        for (int i = 1; i < slices && start + i * width < end; i++) {
+          bounds.add((start + i * width) * 1000);
+        }
+      } finally {
+        if (coll != null) {
+          coll.close();
+        }
+      }
+      return bounds;
+    }
+
+    /**
+     * Save the newest r_modify_date seen by a completed listing as the watermark for this
+     * repository and qualification.  Later runs with <code>--incremental</code> only list objects
+     * modified since then.
+     */
+    private void saveWatermark() {
+      long newest = maxModifiedDate.get();
+      if ((newest == Long.MIN_VALUE) || ((null != watermark) && (newest <= watermark.getTime()))) {
+        return;
+      }
+      DfLogger.debug(this, "Saving watermark {0}", new Object[] {new Date(newest)}, null);
+      queueManager.putCheckpoint(getWatermarkKey(), Long.toString(newest));
+    }
+
+    private String getWatermarkKey() {
+      return CHECKPOINT_WATERMARK.concat(getListingKey(null));
+    }
+
+    private String getListingKey(String partition) {
+      String key = repo.concat(":").concat(candidateQuery);
+      return (null == partition) ? key : key.concat("|").concat(partition);
+    }
+
+    private String getPartitionsKey() {
+      return CHECKPOINT_PARTITIONS
+          .concat(getListingKey(null))
+          .concat("|")
+          .concat(Integer.toString(partitions));
+    }
+
+    /**
+     * Returns a query builder for the qualification, limited to objects modified since the
+     * watermark (less the allowed skew) when running incrementally.
+     */
+    private CandidateQueryBuilder newBaseQuery() {
+      CandidateQueryBuilder query = new CandidateQueryBuilder(candidateQuery);
+      if (null != watermark) {
+        Date since = new Date(watermark.getTime() - watermarkSkew * 1000L);
+        query.addCondition(
+            String.format("r_modify_date >= %s", CandidateQueryBuilder.dqlDate(since)));
+      }
+      return query;
+    }
+
+    private CandidateQueryBuilder newCandidateQuery(String partition) {
+      CandidateQueryBuilder query =
+          newBaseQuery()
+              .select("i_chronicle_id", "r_object_id", "r_modify_date", "r_content_size");
+      if (null != partition) {
+        query.addCondition(partition);
+      }
+      return query;
+    }
+
+    private ListingResult runCandidateQuery(
+        IDfSession session, String dql, ExportItemDispatcher dispatcher, ProgressBar pb)
+        throws DfException, UtilsException, InterruptedException {
+      DfLogger.debug(this, "Running candidate query {0}", new String[] {dql}, null);
+      ListingResult result = new ListingResult();
+      IDfCollection coll = null;
+      try {
         IDfQuery query = new DfQuery();
-        query.setDQL(
-            "SELECT i_chronicle_id, r_object_id, r_modify_date FROM ".concat(this.candidateQuery));
+        query.setDQL(dql);
+        query.setBatchSize(batchSize);
+        throttle.acquireQuery();
         coll = query.execute(session, IDfQuery.DF_READ_QUERY);
         IDfCollectionIterator iter = new IDfCollectionIterator(coll);
-        Iterable<ExportQueueItem> iterable = () -> iter;
-        for (ExportQueueItem obj : ProgressBar.wrap(iterable, "Building Candidate List")) {
-          addToandidateList(obj);
+        ArrayList<ExportQueueItem> batch = new ArrayList<ExportQueueItem>(batchSize);
+        while (iter.hasNext()) {
+          checkStopping();
+          ExportQueueItem obj = iter.next();
+          batch.add(obj);
+          result.count++;
+          result.lastObjectId = obj.getObjectIdString();
+          maxModifiedDate.accumulateAndGet(obj.getModifiedDate(), Math::max);
+          if (null != pb) {
+            pb.step();
+          }
+          if (batch.size() >= batchSize) {
+            addToCandidateList(batch, dispatcher);
+            batch.clear();
+          }
         }
-      } catch (DfException e) {
-        throw new UtilsException(String.format("Error querying Documentum: %s", e.getMessage()), e);
+        addToCandidateList(batch, dispatcher);
       } finally {
         if (coll != null) {
           try {
@@ -163,55 +955,178 @@ public class ExportCmd extends AbstractCmd implements UtilsFunction {
             DfLogger.warn(this, "Error closing collection", null, e);
           }
         }
-        if ((null != session) && session.isConnected()) {
-          sessionManager.release(session);
-        }
       }
+      return result;
     }
   
-    private void addToandidateList(ExportQueueItem arg0) {
-      queueManager.putItem(arg0);
+    private void addToCandidateList(List<ExportQueueItem> arg0, ExportItemDispatcher dispatcher)
+        throws UtilsException, InterruptedException {
+      List<ExportQueueItem> ready = queueManager.putItems(arg0);
+      if (null != dispatcher) {
+        submitLargestFirst(ready, dispatcher);
+      }
+    }
+
+    /**
+     * Submit a batch of items, the largest first, so the longest transfers start early instead of
+     * making up the tail of the run.
+     */
+    private void submitLargestFirst(List<ExportQueueItem> arg0, ExportItemDispatcher dispatcher)
+        throws UtilsException, InterruptedException {
+      List<ExportQueueItem> sorted = new ArrayList<ExportQueueItem>(arg0);
+      sorted.sort(Comparator.comparingLong(ExportQueueItem::getContentSize).reversed());
+      for (ExportQueueItem obj : sorted) {
+        dispatcher.submit(obj);
+      }
+    }
+
+    /**
+     * List the candidates and export them at the same time.  Each batch is committed to the Queue
+     * Items database before its items are dispatched, so a restart still finds every candidate.
+     */
+    private void streamCandidateList() throws UtilsException, InterruptedException {
+      DfLogger.debug(this, "Streaming candidate list", null, null);
+      try (ProgressBar pb = new ProgressBar("Streaming Candidate List", 0)) {
+        ExportItemDispatcher dispatcher = newDispatcher(pb, true);
+        buildCandidateList(dispatcher);
+        dispatcher.awaitIdle();
+      }
     }
   
-    private void processCandidateList() throws UtilsException {
+    /**
+     * Export the READY items.  A stop or an interrupt is passed on to {@link #execute(Namespace)}
+     * as an InterruptedException, which tells a requested stop from a failure.
+     */
+    private void processCandidateList() throws UtilsException, InterruptedException {
       DfLogger.debug(this, "Processing Queue Items", null, null);
-      Set<ExportQueueItem> items = queueManager.getOpenItemList();
-      CountDownLatch latch = new CountDownLatch(items.size());
-      try (ProgressBar pb = new ProgressBar("Processing Candidate List", items.size())) {
-        for (ExportQueueItem obj: items) {
-          ExportQueueItemProcessor processor =
-              new ExportQueueItemProcessor(
-                  queueManager, sessionManager,repo, customAttribs, exportPrinter, outputDir, warningStream, lockFileManager);
-          itemProcessorService.submit(() -> {
-              try {
-                  processor.processCandidate(obj);
-              } catch (UtilsException | InterruptedException e) {
-                  Thread.currentThread().interrupt();
-                  throw new RuntimeException(e);
-              }
-              pb.step();
-              latch.countDown();
-          });
-        }
-        latch.await();
-      } catch (RuntimeException | InterruptedException e) {
-        Thread.currentThread().interrupt(); 
-        throw new UtilsException("Issue processing item",e);
-      } 
-      finally {
-        itemProcessorService.shutdown();
-        try {
-            if (!itemProcessorService.awaitTermination(60, TimeUnit.SECONDS)) {
-                itemProcessorService.shutdownNow();
-                if (!itemProcessorService.awaitTermination(60, TimeUnit.SECONDS)) {
-                    System.err.println("Executor service did not terminate.");
-                }
+      // Items exported while streaming must not show up as READY again
+      statusWriter.flush();
+      // The large items go first, the others a page at a time, the largest of each page first
+      long largeThreshold = pipeline.getLargeThreshold();
+      QueueStore.ItemCursor items = queueManager.getOpenItems(batchSize, largeThreshold);
+      try (ProgressBar pb = new ProgressBar("Processing Candidate List", items.getNumItems())) {
+        ExportItemDispatcher dispatcher = newDispatcher(pb, false);
+        if (largeThreshold > 0) {
+          long large = 0;
+          Iterator<ExportQueueItem> largeItems = queueManager.getLargeItems(largeThreshold);
+          while (largeItems.hasNext()) {
+            large++;
+            pb.maxHint(items.getNumItems() + large);
+            dispatcher.submit(largeItems.next());
+          }
+        }
+        List<ExportQueueItem> page = new ArrayList<ExportQueueItem>(batchSize);
+        while (items.hasNext()) {
+          ExportQueueItem item = items.next();
+          page.add(item);
+          if (page.size() >= batchSize) {
+            submitLargestFirst(page, dispatcher);
+            page.clear();
+          }
+        }
+        submitLargestFirst(page, dispatcher);
+        dispatcher.awaitIdle();
+      }
+    }
+
+    private void startFollowing() throws UtilsException {
+      follower =
+          new AuditTrailFollower(
+              queueManager, CHECKPOINT_FOLLOW.concat(getListingKey(null)), followBatch);
+      IDfSession session = null;
+      try {
+        session = sessionManager.getSession(repo);
+        follower.start(session);
+      } catch (DfException e) {
+        throw new UtilsException(
+            String.format("Error reading the audit trail: %s", e.getMessage()), e);
+      } finally {
+        if ((null != session) && session.isConnected()) {
+          sessionManager.release(session);
+        }
+      }
+    }
+
+    /**
+     * Poll the audit trail until interrupted, re-listing the changed chronicles through the
+     * qualification and exporting the ones that become READY.  A full batch of audit entries is
+     * followed straight away by the next poll, otherwise the next poll waits for the poll interval.
+     */
+    private void followChanges() throws UtilsException, InterruptedException {
+      DfLogger.debug(this, "Following changes", null, null);
+      try (ProgressBar pb = new ProgressBar("Following Changes", 0)) {
+        ExportItemDispatcher dispatcher = newDispatcher(pb, true);
+        while (!Thread.currentThread().isInterrupted() && !isStopping()) {
+          int events = 0;
+          IDfSession session = sessionManager.getSession(repo);
+          try {
+            throttle.acquireQuery();
+            AuditTrailFollower.ChangeSet changes = follower.poll(session);
+            for (String objectId : changes.getDestroyedObjectIds()) {
+              warningStream.println(String.format("INFO: Object %s was destroyed", objectId));
             }
-        } catch (InterruptedException e) {
-            itemProcessorService.shutdownNow();
-            Thread.currentThread().interrupt();
+            // Items finished since the last poll must not be listed as READY again
+            statusWriter.flush();
+            listChangedChronicles(session, changes.getChronicleIds(), dispatcher);
+            follower.commit(changes);
+            saveWatermark();
+            events = changes.getEventCount();
+          } finally {
+            if (session.isConnected()) {
+              sessionManager.release(session);
+            }
+          }
+          if (events < followBatch) {
+            stopSignal.await(pollInterval, TimeUnit.SECONDS);
+          }
         }
-      }              
+      } catch (DfException e) {
+        throw new UtilsException(
+            String.format("Error following the audit trail: %s", e.getMessage()), e);
+      }
+    }
+
+    private void listChangedChronicles(
+        IDfSession session, Collection<String> chronicleIds, ExportItemDispatcher dispatcher)
+        throws DfException, UtilsException, InterruptedException {
+      List<String> ids = new ArrayList<String>(chronicleIds);
+      for (int i = 0; i < ids.size(); i += FOLLOW_IDS_PER_QUERY) {
+        List<String> chunk = ids.subList(i, Math.min(ids.size(), i + FOLLOW_IDS_PER_QUERY));
+        String condition =
+            String.format("i_chronicle_id IN ('%s')", String.join("','", chunk));
+        runCandidateQuery(session, newCandidateQuery(condition).build(), dispatcher, null);
+      }
+    }
+
+    private ExportItemDispatcher newDispatcher(ProgressBar pb, boolean openEnded) {
+      ExportQueueItemProcessor processor =
+          new ExportQueueItemProcessor(
+              statusWriter,
+              workerSessions,
+              folderPaths,
+              pipeline,
+              throttle,
+              customAttribs,
+              exportPrinter,
+              outputDir,
+              warningStream,
+              lockFileManager);
+      ExportItemDispatcher dispatcher =
+          new ExportItemDispatcher(
+              pipeline.getMetadata(),
+              processor,
+              dispatchSlots,
+              pb,
+              openEnded,
+              stopSignal,
+              retryPolicy,
+              watchdog,
+              throttle,
+              dispatchGates);
+      synchronized (dispatchers) {
+        dispatchers.add(dispatcher);
+      }
+      return dispatcher;
     }
   
     private void initialize(Namespace ns) throws UtilsException {
@@ -232,6 +1147,57 @@ public class ExportCmd extends AbstractCmd implements UtilsFunction {
       } catch (IOException e) {
         throw new UtilsException(String.format("Error Decrypting Password: %s", e.getMessage()), e);
       }
+      int sessionItems = DEFAULT_SESSION_ITEMS;
+      if (null != ns.get(ARG_SESSION_ITEMS)) {
+        sessionItems = Math.max(1, (Integer) ns.get(ARG_SESSION_ITEMS));
+      }
+      int sessionAge = DEFAULT_SESSION_AGE;
+      if (null != ns.get(ARG_SESSION_AGE)) {
+        sessionAge = Math.max(0, (Integer) ns.get(ARG_SESSION_AGE));
+      }
+      int cacheFlush = DEFAULT_CACHE_FLUSH;
+      if (null != ns.get(ARG_CACHE_FLUSH)) {
+        cacheFlush = Math.max(0, (Integer) ns.get(ARG_CACHE_FLUSH));
+      }
+      int maxSessions = 0;
+      if (null != ns.get(ARG_MAX_SESSIONS)) {
+        maxSessions = Math.max(1, (Integer) ns.get(ARG_MAX_SESSIONS));
+      }
+      this.workerSessions =
+          new WorkerSessions(
+              sessionManager, repo, sessionItems, sessionAge * 1000L, cacheFlush, maxSessions);
+      int folderCache = DEFAULT_FOLDER_CACHE;
+      if (null != ns.get(ARG_FOLDER_CACHE)) {
+        folderCache = Math.max(1, (Integer) ns.get(ARG_FOLDER_CACHE));
+      }
+      this.folderPaths = new FolderPathCache(folderCache);
+      int heapReport = DEFAULT_HEAP_REPORT;
+      if (null != ns.get(ARG_HEAP_REPORT)) {
+        heapReport = Math.max(0, (Integer) ns.get(ARG_HEAP_REPORT));
+      }
+      if (heapReport > 0) {
+        this.heapMonitor =
+            new HeapMonitor(
+                heapReport * 1000L,
+                () ->
+                    String.format(
+                        "%d sessions pinned, %d folder paths cached, stages: %s",
+                        workerSessions.size(),
+                        folderPaths.size(),
+                        (null == pipeline) ? "not started" : pipeline.report()));
+        heapMonitor.start();
+      }
+      if (null != ns.get(ARG_OBJECT_RATE)) {
+        this.objectRate = Math.max(0, (Integer) ns.get(ARG_OBJECT_RATE));
+      }
+      if (null != ns.get(ARG_KB_RATE)) {
+        this.kbRate = Math.max(0, (Integer) ns.get(ARG_KB_RATE));
+      }
+      if (null != ns.get(ARG_QUERY_RATE)) {
+        this.queryRate = Math.max(0, (Integer) ns.get(ARG_QUERY_RATE));
+      }
+      this.throttle = new RepositoryThrottle(objectRate, kbRate, queryRate, ns.get(ARG_LIMITS));
+      throttle.start();
       attributes.add("i_chronicle_id");
       attributes.add("r_object_id");
       attributes.add("path");
@@ -267,20 +1233,325 @@ public class ExportCmd extends AbstractCmd implements UtilsFunction {
       // Set up the retry DB and file system lock
       File dbFile = (File) ns.get(ARG_DATABASE);
       boolean resetDb = ns.get(ARG_RESET);
-      this.queueManager = new ExportDatabaseManager(dbFile, resetDb);
+      this.queueManager = openQueueStore(ns.getString(ARG_STORE), dbFile, resetDb);
+      Set<String> abandonedIds = recoverAbandonedItems();
+      boolean retryFailed = ns.get(ARG_RETRY_FAILED);
+      if (retryFailed) {
+        requeueFailedItems();
+      }
+      int retries = DEFAULT_RETRIES;
+      if (null != ns.get(ARG_RETRIES)) {
+        retries = Math.max(0, (Integer) ns.get(ARG_RETRIES));
+      }
+      int retryDelay = DEFAULT_RETRY_DELAY;
+      if (null != ns.get(ARG_RETRY_DELAY)) {
+        retryDelay = Math.max(1, (Integer) ns.get(ARG_RETRY_DELAY));
+      }
+      this.retryPolicy = new ItemRetryPolicy(retries, retryDelay, MAX_RETRY_DELAY);
+      int itemTimeout = 0;
+      if (null != ns.get(ARG_ITEM_TIMEOUT)) {
+        itemTimeout = Math.max(0, (Integer) ns.get(ARG_ITEM_TIMEOUT));
+      }
+      int stageTimeout = 0;
+      if (null != ns.get(ARG_STAGE_TIMEOUT)) {
+        stageTimeout = Math.max(0, (Integer) ns.get(ARG_STAGE_TIMEOUT));
+      }
+      if ((itemTimeout > 0) || (stageTimeout > 0)) {
+        this.watchdog = new ItemWatchdog(itemTimeout * 1000L, stageTimeout * 1000L);
+        watchdog.start();
+      }
+      boolean prefilter = ns.get(ARG_PREFILTER);
+      if (prefilter) {
+        int loaded = queueManager.loadCompleteItemFilter();
+        DfLogger.info(
+            this, "Loaded {0} completed items into the prefilter", new Object[] {loaded}, null);
+      }
+      int statusBatch = DEFAULT_BATCH_SIZE;
+      if (null != ns.get(ARG_STATUS_BATCH)) {
+        statusBatch = Math.max(1, (Integer) ns.get(ARG_STATUS_BATCH));
+      }
+      int statusDelay = DEFAULT_STATUS_DELAY;
+      if (null != ns.get(ARG_STATUS_DELAY)) {
+        statusDelay = Math.max(1, (Integer) ns.get(ARG_STATUS_DELAY));
+      }
+      int lease = DEFAULT_LEASE;
+      if (null != ns.get(ARG_LEASE)) {
+        lease = Math.max(1, (Integer) ns.get(ARG_LEASE));
+      }
+      this.statusWriter =
+          new QueueStatusWriter(queueManager, statusBatch, statusDelay, lease * 1000L);
+      statusWriter.start();
 
       String dbLocation = dbFile.getParentFile().getAbsolutePath();
       this.lockFileManager = new LockFileManager(dbLocation.concat("/").concat("filesystem.lck"));
   
       this.outputDir = (File) ns.get(ARG_DIR);
+      if (null != outputDir) {
+        int parts = ExportQueueItemProcessor.deletePartFiles(outputDir, abandonedIds);
+        if (parts > 0) {
+          DfLogger.info(
+              this,
+              "Deleted {0} partial content files of abandoned items",
+              new Object[] {parts},
+              null);
+        }
+      }
   
       this.candidateQuery = ns.get(ARG_QUERY);
+      if (null == candidateQuery) {
+        throw new UtilsException("A query qualification must be specified");
+      }
+
+      if (null != ns.get(ARG_SKEW)) {
+        this.watermarkSkew = Math.max(0, (Integer) ns.get(ARG_SKEW));
+      }
+      boolean incremental = ns.get(ARG_INCREMENTAL);
+      String savedWatermark = queueManager.getCheckpoint(getWatermarkKey());
+      if (null != savedWatermark) {
+        Date previous = new Date(Long.parseLong(savedWatermark));
+        maxModifiedDate.set(previous.getTime());
+        if (incremental) {
+          this.watermark = previous;
+          DfLogger.info(this, "Listing objects modified since {0}", new Object[] {watermark}, null);
+        }
+      }
+
+      this.follow = ns.get(ARG_FOLLOW);
+      if (null != ns.get(ARG_POLL)) {
+        this.pollInterval = Math.max(1, (Integer) ns.get(ARG_POLL));
+      }
+      if (null != ns.get(ARG_FOLLOW_BATCH)) {
+        this.followBatch = Math.max(1, (Integer) ns.get(ARG_FOLLOW_BATCH));
+      }
+
+      if (null != ns.get(ARG_PARTITIONS)) {
+        this.partitions = Math.max(1, (Integer) ns.get(ARG_PARTITIONS));
+      }
+
+      if (null != ns.get(ARG_PAGE_SIZE)) {
+        this.pageSize = Math.max(0, (Integer) ns.get(ARG_PAGE_SIZE));
+      }
+      boolean extendsQuery = (pageSize > 0) || (partitions > 1) || (null != watermark) || follow;
+      if (extendsQuery && !CandidateQueryBuilder.canExtend(candidateQuery)) {
+        throw new UtilsException(
+            "Paged, partitioned, incremental and follow modes cannot be used with a query"
+                + " containing ORDER BY, GROUP BY, UNION or ENABLE");
+      }
   
-      if (null == ns.get(ARG_THREADS)) {
-        this.itemProcessorService = Executors.newFixedThreadPool(3);
+      if (null != ns.get(ARG_THREADS)) {
+        this.threads = Math.max(1, (Integer) ns.get(ARG_THREADS));
+      }
+      int metadataThreads = threads;
+      if (null != ns.get(ARG_METADATA_THREADS)) {
+        metadataThreads = Math.max(1, (Integer) ns.get(ARG_METADATA_THREADS));
+      }
+      int finalizeThreads = 1;
+      if (null != ns.get(ARG_FINALIZE_THREADS)) {
+        finalizeThreads = Math.max(1, (Integer) ns.get(ARG_FINALIZE_THREADS));
+      }
+      int largeThreshold = DEFAULT_LARGE_THRESHOLD;
+      if (null != ns.get(ARG_LARGE_THRESHOLD)) {
+        largeThreshold = Math.max(0, (Integer) ns.get(ARG_LARGE_THRESHOLD));
+      }
+      int largeThreads = (largeThreshold > 0) ? DEFAULT_LARGE_THREADS : 0;
+      if ((largeThreshold > 0) && (null != ns.get(ARG_LARGE_THREADS))) {
+        largeThreads = Math.max(1, (Integer) ns.get(ARG_LARGE_THREADS));
+      }
+      boolean adaptive = ns.get(ARG_ADAPTIVE);
+      int minThreads = 1;
+      if (null != ns.get(ARG_MIN_THREADS)) {
+        minThreads = Math.max(1, (Integer) ns.get(ARG_MIN_THREADS));
+      }
+      this.maxThreads = adaptive ? threads * 4 : threads;
+      if (adaptive && (null != ns.get(ARG_MAX_THREADS))) {
+        this.maxThreads = Math.max(minThreads, (Integer) ns.get(ARG_MAX_THREADS));
+      }
+      int mostThreads = maxThreads;
+      if (null != ns.get(ARG_SCHEDULE)) {
+        try {
+          this.schedule = new ExportSchedule(ns.getString(ARG_SCHEDULE), this::applyWindow);
+        } catch (IllegalArgumentException e) {
+          throw new UtilsException(String.format("Error in the schedule: %s", e.getMessage()), e);
+        }
+        for (ExportSchedule.Window window : schedule.getWindows()) {
+          mostThreads = Math.max(mostThreads, window.getThreads());
+        }
+      }
+      // The dispatcher never has more than its slot count outstanding, so no stage queue fills
+      this.dispatchSlots =
+          (metadataThreads + mostThreads + largeThreads + finalizeThreads)
+              * DISPATCH_SLOTS_PER_THREAD;
+      ThreadFactory threadFactory = Thread::new;
+      boolean virtualThreads = ns.get(ARG_VIRTUAL_THREADS);
+      if (virtualThreads && VirtualThreads.isSupported()) {
+        threadFactory = VirtualThreads.newFactory();
+        DfLogger.info(this, "Running the pipeline on virtual threads", null, null);
+      } else if (virtualThreads) {
+        DfLogger.warn(
+            this,
+            "Virtual threads need Java 21 or newer, running on {0}; using platform threads",
+            new String[] {Runtime.version().toString()},
+            null);
+        warningStream.println(
+            String.format(
+                "WARN: virtual threads need Java 21 or newer, running on %s; using platform"
+                    + " threads",
+                Runtime.version()));
+      }
+      this.pipeline =
+          new ExportPipeline(
+              metadataThreads,
+              threads,
+              largeThreads,
+              largeThreshold * 1024L * 1024L,
+              finalizeThreads,
+              dispatchSlots,
+              threadFactory);
+      // Only share sessions when they are capped, otherwise a worker keeps its session and cache
+      // through the short waits behind the other stages, the throttle or the dispatch gates
+      if (workerSessions.isBudgeted()) {
+        for (PipelineStage stage : pipeline.getStages()) {
+          stage.setIdleTask(workerSessions::releaseIdle);
+        }
+      }
+      if (adaptive) {
+        this.concurrencyController =
+            new ConcurrencyController(
+                pipeline.getContent(),
+                () -> pipeline.getFailures() + ((null == watchdog) ? 0 : watchdog.getStalled()),
+                minThreads,
+                maxThreads,
+                ADAPT_INTERVAL);
+        concurrencyController.start();
+      }
+      if (null != schedule) {
+        schedule.start();
+        dispatchGates.add(schedule);
+      }
+      int resourceCheck = DEFAULT_RESOURCE_CHECK;
+      if (null != ns.get(ARG_RESOURCE_CHECK)) {
+        resourceCheck = Math.max(0, (Integer) ns.get(ARG_RESOURCE_CHECK));
+      }
+      if (resourceCheck > 0) {
+        int minFreeDisk = DEFAULT_MIN_FREE_DISK;
+        if (null != ns.get(ARG_MIN_FREE_DISK)) {
+          minFreeDisk = Math.max(0, (Integer) ns.get(ARG_MIN_FREE_DISK));
+        }
+        int minFreeInodes = DEFAULT_MIN_FREE_INODES;
+        if (null != ns.get(ARG_MIN_FREE_INODES)) {
+          minFreeInodes = Math.max(0, (Integer) ns.get(ARG_MIN_FREE_INODES));
+        }
+        int maxHeap = DEFAULT_MAX_HEAP;
+        if (null != ns.get(ARG_MAX_HEAP)) {
+          maxHeap = Math.min(100, Math.max(0, (Integer) ns.get(ARG_MAX_HEAP)));
+        }
+        double maxLoad = 0;
+        if (null != ns.get(ARG_MAX_LOAD)) {
+          maxLoad = Math.max(0, (Double) ns.get(ARG_MAX_LOAD));
+        }
+        this.resourceGuard =
+            new ResourceGuard(
+                outputDir,
+                minFreeDisk * 1024L * 1024L,
+                minFreeInodes,
+                maxHeap / 100.0,
+                maxLoad,
+                resourceCheck * 1000L,
+                warningStream);
+        resourceGuard.start();
+        dispatchGates.add(resourceGuard);
+      }
+
+      if (null != ns.get(ARG_BATCH_SIZE)) {
+        this.batchSize = Math.max(1, (Integer) ns.get(ARG_BATCH_SIZE));
+      }
+
+      this.streamCandidates = ns.get(ARG_STREAM);
+
+      if (null != ns.get(ARG_DRAIN_TIMEOUT)) {
+        this.drainTimeout = Math.max(0, (Integer) ns.get(ARG_DRAIN_TIMEOUT));
+      }
+  }
+
+  /**
+   * Apply the settings of an export window that just opened; those it leaves out go back to the
+   * command line values.  Nothing changes when the last window closes, the dispatchers hold new
+   * items back until the next one opens.
+   */
+  private void applyWindow(ExportSchedule.Window arg0) {
+    if (null == arg0) {
+      return;
+    }
+    int windowThreads = arg0.getThreads();
+    if (null != concurrencyController) {
+      concurrencyController.setMax((windowThreads > 0) ? windowThreads : maxThreads);
+    } else {
+      pipeline.getContent().setWorkers((windowThreads > 0) ? windowThreads : threads);
+    }
+    throttle.setRates(
+        (arg0.getObjectRate() >= 0) ? arg0.getObjectRate() : objectRate,
+        (arg0.getKbRate() >= 0) ? arg0.getKbRate() : kbRate,
+        (arg0.getQueryRate() >= 0) ? arg0.getQueryRate() : queryRate);
+  }
+
+  /**
+   * Return the items left IN_PROESS by a run that died to READY, so only they are exported again.
+   * Items whose lease is still held by a live process are left alone.
+   *
+   * @return The object ids of the items returned to READY, whose partial downloads may be left
+   */
+  private Set<String> recoverAbandonedItems() {
+    long now = System.currentTimeMillis();
+    List<ExportQueueItem> abandoned = new ArrayList<ExportQueueItem>();
+    Set<String> abandonedIds = new HashSet<String>();
+    int held = 0;
+    for (ExportQueueItem item : queueManager.getItems(ExportQueueItem.ItemStatus.IN_PROESS)) {
+      if (ItemLease.isAbandoned(item, now)) {
+        item.setStatus(ExportQueueItem.ItemStatus.READY);
+        item.setLease(null, 0L);
+        abandoned.add(item);
+        abandonedIds.add(item.getObjectIdString());
       } else {
-        this.itemProcessorService = Executors.newFixedThreadPool((Integer) ns.get(ARG_THREADS));
+        held++;
       }
+    }
+    int released = queueManager.updateItemStatuses(abandoned);
+    if (released > 0) {
+      DfLogger.info(
+          this, "Returned {0} abandoned in-progress items to READY", new Object[] {released}, null);
+    }
+    if (held > 0) {
+      DfLogger.warn(
+          this, "{0} in-progress items are still leased by another run", new Object[] {held}, null);
+    }
+    return abandonedIds;
+  }
+
+  /** Return the items marked FAILED by earlier runs to READY with a fresh attempt count. */
+  private void requeueFailedItems() {
+    List<ExportQueueItem> failed = queueManager.getItems(ExportQueueItem.ItemStatus.FAILED);
+    for (ExportQueueItem item : failed) {
+      item.setStatus(ExportQueueItem.ItemStatus.READY);
+      item.setAttempts(0);
+      item.setLastError(null);
+    }
+    int requeued = queueManager.updateItemStatuses(failed);
+    DfLogger.info(this, "Returned {0} failed items to READY", new Object[] {requeued}, null);
+  }
+
+  private QueueStore openQueueStore(String store, File dbFile, boolean reset)
+      throws UtilsException {
+    if ((null == store) || STORE_NITRITE.equalsIgnoreCase(store)) {
+      return new ExportDatabaseManager(dbFile, reset);
+    } else if (STORE_JOURNAL.equalsIgnoreCase(store)) {
+      return new JournalQueueStore(dbFile, reset);
+    } else if (STORE_MEMORY.equalsIgnoreCase(store)) {
+      return new MemoryQueueStore();
+    }
+    throw new UtilsException(
+        String.format(
+            "Unknown store %s, expected %s, %s or %s",
+            store, STORE_NITRITE, STORE_JOURNAL, STORE_MEMORY));
   }
 
   private Object valueFromJsonNode(JsonNode node) {
@@ -328,23 +1599,141 @@ public class ExportCmd extends AbstractCmd implements UtilsFunction {
     };
   }
 
-  private void shutdown() {
+  /**
+   * Drain the item processor pool, commit the outstanding status changes, return this run's
+   * unfinished items to READY and close the files and the queue store.  Safe to call more than
+   * once and from the shutdown hook; the caller's interrupt status is set aside meanwhile so the
+   * queue store's files are not closed by an interrupt.
+   */
+  private synchronized void shutdown() {
+    if (shutDown) {
+      return;
+    }
+    shutDown = true;
+    boolean interrupted = Thread.interrupted();
     try {
-      if (exportPrinter != null) {
-        DfLogger.debug(this, "Closing Export File", null, null);
-        exportPrinter.flush();
-        exportPrinter.close();
+      if (null != concurrencyController) {
+        concurrencyController.close();
+      }
+      if (null != schedule) {
+        schedule.close();
+      }
+      if (null != resourceGuard) {
+        resourceGuard.close();
+      }
+      if (null != throttle) {
+        throttle.close();
+      }
+      if (null != retryPolicy) {
+        retryPolicy.shutdown();
+      }
+      shutdownItemProcessorService();
+      if (null != watchdog) {
+        watchdog.close();
+      }
+      if (null != workerSessions) {
+        workerSessions.releaseAll();
+      }
+      if (null != heapMonitor) {
+        heapMonitor.close();
+        DfLogger.info(this, "{0}", new String[] {heapMonitor.report()}, null);
+      }
+      reportFailedItems();
+      try {
+        if (exportPrinter != null) {
+          DfLogger.debug(this, "Closing Export File", null, null);
+          exportPrinter.flush();
+          exportPrinter.close();
+        }
+        if (warningStream != null) {
+          DfLogger.debug(this, "Closing Warning Stream", null, null);
+          warningStream.flush();
+          warningStream.close();
+        }
+      } catch (IOException e) {
+        DfLogger.warn(this, "Error Shutting Down", null, e);
+      }
+      if (null != statusWriter) {
+        try {
+          statusWriter.close();
+        } catch (UtilsException e) {
+          DfLogger.warn(this, "Error writing item status on shutdown", null, e);
+        }
+      }
+      if (null != queueManager) {
+        releaseUnfinishedItems();
+        queueManager.shutdown();
+      }
+    } finally {
+      shutdownDone.countDown();
+      removeShutdownHook();
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /** Return the items this run marked in progress but did not finish to READY. */
+  private void releaseUnfinishedItems() {
+    List<ExportQueueItem> unfinished = new ArrayList<ExportQueueItem>();
+    for (ExportQueueItem item : queueManager.getItems(ExportQueueItem.ItemStatus.IN_PROESS)) {
+      if (ItemLease.currentOwner().equals(item.getOwner())) {
+        item.setStatus(ExportQueueItem.ItemStatus.READY);
+        item.setLease(null, 0L);
+        unfinished.add(item);
       }
-      if (warningStream != null) {
-        DfLogger.debug(this, "Closing Warning Stream", null, null);
-        warningStream.flush();
-        warningStream.close();
+    }
+    int released = queueManager.updateItemStatuses(unfinished);
+    if (released > 0) {
+      DfLogger.info(
+          this, "Returned {0} unfinished items to READY", new Object[] {released}, null);
+    }
+  }
+
+  private void removeShutdownHook() {
+    if ((null == shutdownHook) || (Thread.currentThread() == shutdownHook)) {
+      return;
+    }
+    try {
+      Runtime.getRuntime().removeShutdownHook(shutdownHook);
+    } catch (IllegalStateException e) {
+      // Already shutting down, the hook is running
+    }
+  }
+
+  /** Warn about the items this run gave up on. */
+  private void reportFailedItems() {
+    long failed = 0;
+    synchronized (dispatchers) {
+      for (ExportItemDispatcher dispatcher : dispatchers) {
+        failed += dispatcher.getFailed();
       }
-    } catch (IOException e) {
-      DfLogger.warn(this, "Error Shutting Down", null, e);
     }
-    if (null != queueManager) {
-      queueManager.shutdown();
+    if ((null != watchdog) && (watchdog.getStalled() > 0)) {
+      warningStream.println(
+          String.format("WARN: %d items stalled and were abandoned", watchdog.getStalled()));
+    }
+    if (failed > 0) {
+      warningStream.println(
+          String.format("WARN: %d items failed, rerun with --retry-failed", failed));
+    }
+  }
+
+  private void shutdownItemProcessorService() {
+    if (null == pipeline) {
+      return;
+    }
+    try {
+      if (!pipeline.shutdown(drainTimeout)) {
+        DfLogger.warn(this, "Items still being exported after the drain timeout", null, null);
+        if (!pipeline.awaitTermination(60, TimeUnit.SECONDS)) {
+          System.err.println("Executor service did not terminate.");
+        }
+      }
+    } catch (InterruptedException e) {
+      pipeline.shutdownNow();
+      Thread.currentThread().interrupt();
     }
+    DfLogger.info(this, "Pipeline stages: {0}", new String[] {pipeline.report()}, null);
   }
 }
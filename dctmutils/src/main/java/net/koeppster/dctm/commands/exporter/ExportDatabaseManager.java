@@ -2,66 +2,339 @@ package net.koeppster.dctm.commands.exporter;
 
 import com.documentum.fc.common.DfLogger;
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Iterator;
-import java.util.Set;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 
 import org.dizitart.no2.Nitrite;
+import org.dizitart.no2.collection.Document;
+import org.dizitart.no2.collection.FindOptions;
+import org.dizitart.no2.collection.NitriteCollection;
+import org.dizitart.no2.common.SortOrder;
 import org.dizitart.no2.common.WriteResult;
 import org.dizitart.no2.common.mapper.JacksonMapperModule;
+import org.dizitart.no2.filters.Filter;
 import org.dizitart.no2.filters.FluentFilter;
 import org.dizitart.no2.mvstore.MVStoreModule;
 import org.dizitart.no2.repository.Cursor;
 import org.dizitart.no2.repository.ObjectRepository;
+import org.dizitart.no2.transaction.Session;
+import org.dizitart.no2.transaction.Transaction;
+import org.h2.mvstore.MVStoreTool;
+import net.koeppster.dctm.utils.UtilsException;
 
-public class ExportDatabaseManager {
+/** {@link QueueStore} kept in a Nitrite database on a compressed MVStore file. */
+public class ExportDatabaseManager implements QueueStore {
 
-  public class QueueItemCursor {
-    private long numItems = 0;
-    private Iterator<ExportQueueItem> items;
+  /** Version of the stored item layout, bumped when ExportQueueItem changes incompatibly. */
+  public static final String ITEM_FORMAT = "2";
 
+  private static final String CHECKPOINT_ITEM_FORMAT = "format:items";
+  // Format checkpoint while converted items wait in the staging collection
+  private static final String FORMAT_MIGRATING = "migrating";
+  private static final String MIGRATION_COLLECTION = "queueItemMigration";
+  private static final String[] MIGRATED_FIELDS = {
+    "chronicleId", "objectId", "modifiedDate", "status"
+  };
+  private static final int MIGRATION_BATCH_SIZE = 10000;
+  // COMPLETE items sorted in memory at a time while archiving
+  static final int ARCHIVE_RUN_SIZE = 200000;
+  // COMPLETE items removed per transaction once archived
+  static final int REMOVE_BATCH_SIZE = 10000;
+
+  /**
+   * Iterates the READY items through one lazy Nitrite cursor.  The cursor takes the ids from the
+   * status index once and reads each item only when it is reached, so it drains the queue in a
+   * single pass and holds one item in memory at a time.  The ids are fixed when the cursor opens
+   * but the items are read as they are now, so items that left READY since are skipped and items
+   * that became READY since are not returned.
+   */
+  public class QueueItemCursor implements QueueStore.ItemCursor {
+    private final long numItems;
+    private final Iterator<ExportQueueItem> items;
+    private ExportQueueItem nextItem = null;
+
+    @Override
     public long getNumItems() {
       return numItems;
     }
 
-    public Iterator<ExportQueueItem> getItems() {
-      return items;
-    }
-
     public QueueItemCursor(long numItems, Iterator<ExportQueueItem> items) {
       this.numItems = numItems;
       this.items = items;
     }
+
+    @Override
+    public boolean hasNext() {
+      while ((null == nextItem) && items.hasNext()) {
+        ExportQueueItem item = items.next();
+        if (ExportQueueItem.ItemStatus.READY == item.getStatus()) {
+          nextItem = item;
+        }
+      }
+      return null != nextItem;
+    }
+
+    @Override
+    public ExportQueueItem next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException("No more open items");
+      }
+      ExportQueueItem item = nextItem;
+      nextItem = null;
+      return item;
+    }
   }
 
   private Nitrite db = null;
   private ObjectRepository<ExportQueueItem> queueItems = null;
+  private ObjectRepository<ExportCheckpoint> checkpoints = null;
+  private CompleteItemFilter completeItems = null;
+  private CompleteItemArchive archive = null;
+  private File archiveFile = null;
 
-  public ExportDatabaseManager(File arg0, boolean arg1) {
+  public ExportDatabaseManager(File arg0, boolean arg1) throws UtilsException {
     MVStoreModule module = MVStoreModule.withConfig().filePath(arg0).compress(true).build();
     db = Nitrite.builder().loadModule(module).loadModule(new JacksonMapperModule()).openOrCreate();
     queueItems = db.getRepository(ExportQueueItem.class);
+    checkpoints = db.getRepository(ExportCheckpoint.class);
     if (arg1) {
         queueItems.clear();
+        checkpoints.clear();
+    }
+    checkItemFormat(arg0);
+    openArchive(arg0, arg1);
+  }
+
+  private void openArchive(File arg0, boolean arg1) throws UtilsException {
+    archiveFile = CompleteItemArchive.fileFor(arg0);
+    try {
+      if (arg1) {
+        Files.deleteIfExists(archiveFile.toPath());
+      } else if (archiveFile.exists()) {
+        archive = new CompleteItemArchive(archiveFile);
+        DfLogger.debug(
+            this,
+            "Opened completed item archive with {0} items",
+            new String[] {Integer.toString(archive.size())},
+            null);
+      }
+    } catch (IOException e) {
+      shutdown();
+      throw new UtilsException(
+          String.format("Error opening completed item archive: %s", e.getMessage()), e);
+    }
+  }
+
+  /**
+   * Databases written before ids were stored as numbers are migrated to the current item layout.
+   * Any other format is refused rather than fail part way through a run.
+   */
+  private void checkItemFormat(File arg0) throws UtilsException {
+    String format = getCheckpoint(CHECKPOINT_ITEM_FORMAT);
+    if (ITEM_FORMAT.equals(format)) {
+      return;
+    }
+    if (FORMAT_MIGRATING.equals(format)) {
+      copyMigratedItems();
+    } else if (null != format) {
+      shutdown();
+      throw new UtilsException(
+          String.format(
+              "Queue Items database %s uses an unknown format %s, rerun with --reset",
+              arg0.getAbsolutePath(), format));
+    } else if (queueItems.size() > 0) {
+      migrateItems(arg0);
+    }
+    putCheckpoint(CHECKPOINT_ITEM_FORMAT, ITEM_FORMAT);
+  }
+
+  /**
+   * Convert the items of a database that kept the ids as hex strings and the modify date as a
+   * date.  The converted items are staged in a separate collection first, and the format
+   * checkpoint only says so once all of them are, so a migration that is cut short starts over or
+   * resumes from the staged items when the database is next opened.
+   */
+  private void migrateItems(File arg0) throws UtilsException {
+    DfLogger.info(
+        this,
+        "Migrating {0} queue items in {1} to the current format",
+        new String[] {Long.toString(queueItems.size()), arg0.getAbsolutePath()},
+        null);
+    NitriteCollection staged = db.getCollection(MIGRATION_COLLECTION);
+    staged.clear();
+    List<Document> batch = new ArrayList<Document>(MIGRATION_BATCH_SIZE);
+    try {
+      for (Document old : queueItems.getDocumentCollection().find()) {
+        batch.add(migrateItem(old));
+        if (batch.size() >= MIGRATION_BATCH_SIZE) {
+          staged.insert(batch.toArray(new Document[0]));
+          batch.clear();
+        }
+      }
+    } catch (RuntimeException e) {
+      shutdown();
+      throw new UtilsException(
+          String.format("Error migrating Queue Items database: %s", e.getMessage()), e);
+    }
+    if (!batch.isEmpty()) {
+      staged.insert(batch.toArray(new Document[0]));
+    }
+    putCheckpoint(CHECKPOINT_ITEM_FORMAT, FORMAT_MIGRATING);
+    copyMigratedItems();
+  }
+
+  /** Replace the items with the staged, converted ones. */
+  private void copyMigratedItems() {
+    NitriteCollection staged = db.getCollection(MIGRATION_COLLECTION);
+    // Emptying the collection also empties its indexes, which held strings before
+    queueItems.clear();
+    NitriteCollection items = queueItems.getDocumentCollection();
+    List<Document> batch = new ArrayList<Document>(MIGRATION_BATCH_SIZE);
+    for (Document item : staged.find()) {
+      batch.add(copyFields(item));
+      if (batch.size() >= MIGRATION_BATCH_SIZE) {
+        items.insert(batch.toArray(new Document[0]));
+        batch.clear();
+      }
+    }
+    if (!batch.isEmpty()) {
+      items.insert(batch.toArray(new Document[0]));
+    }
+    DfLogger.info(
+        this, "Migrated {0} queue items", new String[] {Long.toString(items.size())}, null);
+    staged.drop();
+  }
+
+  private static Document migrateItem(Document arg0) {
+    Document item = Document.createDocument();
+    item.put("chronicleId", migrateId(arg0.get("chronicleId")));
+    item.put("objectId", migrateId(arg0.get("objectId")));
+    item.put("modifiedDate", migrateDate(arg0.get("modifiedDate")));
+    item.put("status", arg0.get("status"));
+    return item;
+  }
+
+  // A staged document without the ids Nitrite gave it in the staging collection
+  private static Document copyFields(Document arg0) {
+    Document item = Document.createDocument();
+    for (String field : MIGRATED_FIELDS) {
+      item.put(field, arg0.get(field));
+    }
+    return item;
+  }
+
+  private static long migrateId(Object arg0) {
+    if (arg0 instanceof Number) {
+      return ((Number) arg0).longValue();
+    }
+    return (null == arg0) ? DctmId.NULL_ID : DctmId.toLong(arg0.toString());
+  }
+
+  private static long migrateDate(Object arg0) {
+    if (arg0 instanceof Number) {
+      return ((Number) arg0).longValue();
+    } else if (arg0 instanceof Date) {
+      return ((Date) arg0).getTime();
+    } else if (null == arg0) {
+      return 0L;
+    }
+    String text = arg0.toString();
+    try {
+      return Long.parseLong(text);
+    } catch (NumberFormatException e) {
+      return Instant.parse(text).toEpochMilli();
+    }
+  }
+
+  /**
+   * Load the version of every COMPLETE item into memory.  From then on {@link
+   * #putItems(List)} drops candidates that match a COMPLETE item before looking them up, and
+   * items marked complete are added to the filter.
+   *
+   * @return The number of COMPLETE items loaded
+   */
+  @Override
+  public int loadCompleteItemFilter() {
+    CompleteItemFilter filter = new CompleteItemFilter();
+    Cursor<ExportQueueItem> items =
+        queueItems.find(FluentFilter.where("status").eq(ExportQueueItem.ItemStatus.COMPLETE));
+    for (ExportQueueItem item : items) {
+      filter.add(item.getChronicleId(), item.getObjectId(), item.getModifiedDate());
+    }
+    DfLogger.debug(
+        this, "Loaded {0} complete items", new String[] {Integer.toString(filter.size())}, null);
+    this.completeItems = filter;
+    return filter.size();
+  }
+
+  /**
+   * Returns the value of a checkpoint.
+   *
+   * @param arg0 The checkpoint key
+   * @return The stored value or null if the checkpoint has not been set
+   */
+  @Override
+  public String getCheckpoint(String arg0) {
+    ExportCheckpoint checkpoint = checkpoints.getById(arg0);
+    return (null == checkpoint) ? null : checkpoint.getValue();
+  }
+
+  @Override
+  public void putCheckpoint(String arg0, String arg1) {
+    DfLogger.debug(this, "putCheckpoint({0},{1})", new String[] {arg0, arg1}, null);
+    ExportCheckpoint checkpoint = checkpoints.getById(arg0);
+    if (null == checkpoint) {
+      checkpoints.insert(new ExportCheckpoint(arg0, arg1));
+    } else {
+      checkpoint.setValue(arg1);
+      checkpoints.update(checkpoint);
+    }
+  }
+
+  @Override
+  public void removeCheckpoint(String arg0) {
+    DfLogger.debug(this, "removeCheckpoint({0})", new String[] {arg0}, null);
+    ExportCheckpoint checkpoint = checkpoints.getById(arg0);
+    if (null != checkpoint) {
+      checkpoints.remove(checkpoint);
     }
   }
 
   public void putItem(String arg0, String arg1, Date arg3) {
-    DfLogger.debug(this, "putItem(arg0={0})", new String[] {arg0}, null);
+    putItem(DctmId.toLong(arg0), DctmId.toLong(arg1), arg3.getTime());
+  }
+
+  public void putItem(long arg0, long arg1, long arg3) {
+    String chronicleId = DctmId.toString(arg0);
+    DfLogger.debug(this, "putItem(arg0={0})", new String[] {chronicleId}, null);
     ExportQueueItem item = queueItems.getById(arg0);
     if (null == item) {
-      DfLogger.debug(this, "Creating new Item for {0}", new String[] {arg0}, null);
+      DfLogger.debug(this, "Creating new Item for {0}", new String[] {chronicleId}, null);
       queueItems.insert(new ExportQueueItem(arg0, arg1, arg3, ExportQueueItem.ItemStatus.READY));
-    } else if (!arg1.equals(item.getObjectId())) {
-      DfLogger.debug(this, "Setting to READY for New Version {0}", new String[] {arg0}, null);
+    } else if (arg1 != item.getObjectId()) {
+      DfLogger.debug(this, "Setting to READY for New Version {0}", new String[] {chronicleId}, null);
       item.setObjectId(arg1);
       item.setModifiedDate(arg3);
       item.setStatus(ExportQueueItem.ItemStatus.READY);
+      item.setLease(null, 0L);
       queueItems.update(item);
-    } else if (!arg3.equals(item.getModifiedDate())) {
-      DfLogger.debug(this, "Setting to READY for Updated Object {0}", new String[] {arg0}, null);
+    } else if (arg3 != item.getModifiedDate()) {
+      DfLogger.debug(
+          this, "Setting to READY for Updated Object {0}", new String[] {chronicleId}, null);
       item.setModifiedDate(arg3);
       item.setStatus(ExportQueueItem.ItemStatus.READY);
+      item.setLease(null, 0L);
       queueItems.update(item);
     }
   }
@@ -71,28 +344,215 @@ public class ExportDatabaseManager {
     putItem(arg0.getChronicleId(), arg0.getObjectId(), arg0.getModifiedDate());
   }
 
-  public QueueItemCursor getOpenItems() {
-    Cursor<ExportQueueItem> openItems =
-        queueItems.find(FluentFilter.where("status").eq(ExportQueueItem.ItemStatus.READY));
+  /**
+   * Bulk version of {@link #putItem(ExportQueueItem)}.  The existing rows for the whole batch are
+   * resolved with a single lookup and the resulting inserts and updates are committed in one
+   * transaction.  If a chronicle appears more than once in the batch the last occurrence wins, which
+   * matches calling {@link #putItem(ExportQueueItem)} for each item in order.
+   *
+   * @param arg0 The candidate items to add to (or refresh in) the queue
+   * @return The items of the batch that are READY once the batch is committed (new, changed or
+   *     still waiting from an earlier run)
+   */
+  @Override
+  public List<ExportQueueItem> putItems(List<ExportQueueItem> arg0) {
+    List<ExportQueueItem> ready = new ArrayList<ExportQueueItem>();
+    if (arg0.isEmpty()) {
+      return ready;
+    }
+    DfLogger.debug(this, "putItems(size={0})", new String[] {Integer.toString(arg0.size())}, null);
+    Map<Long, ExportQueueItem> batch = new LinkedHashMap<Long, ExportQueueItem>();
+    for (ExportQueueItem item : arg0) {
+      batch.put(item.getChronicleId(), item);
+    }
+    if (null != completeItems) {
+      batch
+          .values()
+          .removeIf(
+              item ->
+                  completeItems.contains(
+                      item.getChronicleId(), item.getObjectId(), item.getModifiedDate()));
+      if (batch.isEmpty()) {
+        return ready;
+      }
+    }
+
+    Map<Long, ExportQueueItem> existing = new HashMap<Long, ExportQueueItem>();
+    Cursor<ExportQueueItem> found =
+        queueItems.find(FluentFilter.where("chronicleId").in(batch.keySet().toArray(new Long[0])));
+    for (ExportQueueItem item : found) {
+      existing.put(item.getChronicleId(), item);
+    }
+
+    List<ExportQueueItem> inserts = new ArrayList<ExportQueueItem>();
+    List<ExportQueueItem> updates = new ArrayList<ExportQueueItem>();
+    for (ExportQueueItem candidate : batch.values()) {
+      ExportQueueItem item = existing.get(candidate.getChronicleId());
+      if ((null == item)
+          && (null != archive)
+          && archive.contains(
+              candidate.getChronicleId(), candidate.getObjectId(), candidate.getModifiedDate())) {
+        // Exported before and archived, unchanged since
+        continue;
+      } else if (null == item) {
+        item =
+            new ExportQueueItem(
+                candidate.getChronicleId(),
+                candidate.getObjectId(),
+                candidate.getModifiedDate(),
+                ExportQueueItem.ItemStatus.READY);
+        item.setContentSize(candidate.getContentSize());
+        inserts.add(item);
+        ready.add(item);
+      } else if (candidate.getObjectId() != item.getObjectId()
+          || candidate.getModifiedDate() != item.getModifiedDate()) {
+        item.setObjectId(candidate.getObjectId());
+        item.setModifiedDate(candidate.getModifiedDate());
+        item.setContentSize(candidate.getContentSize());
+        item.setStatus(ExportQueueItem.ItemStatus.READY);
+        item.setLease(null, 0L);
+        updates.add(item);
+        ready.add(item);
+      } else if (ExportQueueItem.ItemStatus.READY == item.getStatus()) {
+        ready.add(item);
+      }
+    }
     DfLogger.debug(
         this,
-        "Returning cursor with size of {0}",
-        new String[] {Long.toString(openItems.size())},
+        "Batch of {0} gives {1} inserts and {2} updates",
+        new String[] {
+          Integer.toString(batch.size()),
+          Integer.toString(inserts.size()),
+          Integer.toString(updates.size())
+        },
         null);
-    return new QueueItemCursor(openItems.size(), openItems.iterator());
+    if (inserts.isEmpty() && updates.isEmpty()) {
+      return ready;
+    }
+
+    // Closing the transaction without a commit discards it, so a failure leaves the batch unapplied
+    Session session = db.createSession();
+    try (Transaction tx = session.beginTransaction()) {
+      ObjectRepository<ExportQueueItem> txItems = tx.getRepository(ExportQueueItem.class);
+      if (!inserts.isEmpty()) {
+        txItems.insert(inserts.toArray(new ExportQueueItem[0]));
+      }
+      for (ExportQueueItem item : updates) {
+        txItems.update(item);
+      }
+      tx.commit();
+    } finally {
+      session.close();
+    }
+    return ready;
+  }
+
+  @Override
+  public List<ExportQueueItem> getItems(ExportQueueItem.ItemStatus arg0) {
+    return queueItems.find(FluentFilter.where("status").eq(arg0)).toList();
+  }
+
+  /**
+   * Returns a cursor over the READY items that reads them from the database as it goes.  The items
+   * come in (status, contentSize) index order rather than chronicleId order; a size limit is
+   * applied in the index, so the large items are not read at all.
+   *
+   * @param arg0 Not used, the cursor reads one item at a time
+   * @param arg1 Only items with a content size below this many bytes, 0 for all
+   */
+  @Override
+  public QueueItemCursor getOpenItems(int arg0, long arg1) {
+    Filter ready = FluentFilter.where("status").eq(ExportQueueItem.ItemStatus.READY);
+    if (arg1 > 0) {
+      ready = Filter.and(ready, FluentFilter.where("contentSize").lt(arg1));
+    }
+    long size = queueItems.find(ready).size();
+    DfLogger.debug(
+        this, "Returning cursor with size of {0}", new String[] {Long.toString(size)}, null);
+    return new QueueItemCursor(size, queueItems.find(ready).iterator());
   }
 
-  public Set<ExportQueueItem> getOpenItemList() {
-    Cursor<ExportQueueItem> openItems =
-        queueItems.find(FluentFilter.where("status").eq(ExportQueueItem.ItemStatus.READY));
-    return openItems.toSet();
+  /**
+   * Returns a cursor over the large READY items, found through the (status, contentSize) index.
+   * Only the matching items are read, and sorted, when the cursor is first used.
+   */
+  @Override
+  public Iterator<ExportQueueItem> getLargeItems(long arg0) {
+    Filter filter =
+        Filter.and(
+            FluentFilter.where("status").eq(ExportQueueItem.ItemStatus.READY),
+            FluentFilter.where("contentSize").gte(arg0));
+    Cursor<ExportQueueItem> found =
+        queueItems.find(filter, FindOptions.orderBy("contentSize", SortOrder.Descending));
+    // Skips items started since, as the cursor reads each one as it is now
+    return new QueueItemCursor(0, found.iterator());
   }
 
-  public void markItemComplete(String arg0) {
-    DfLogger.debug(this, "Marking Complete: {0}", new String[] {arg0.toString()}, null);
+  /**
+   * Apply a batch of status changes in one transaction.  Each change names the version (object id
+   * and modify date) it was made for and is skipped if the row no longer holds that version.
+   *
+   * @param arg0 Items carrying the new status, at most one per chronicle
+   * @return The number of rows updated
+   */
+  @Override
+  public int updateItemStatuses(Collection<ExportQueueItem> arg0) {
+    if (arg0.isEmpty()) {
+      return 0;
+    }
+    Map<Long, ExportQueueItem> changes = new HashMap<Long, ExportQueueItem>();
+    for (ExportQueueItem change : arg0) {
+      changes.put(change.getChronicleId(), change);
+    }
+    List<ExportQueueItem> updates = new ArrayList<ExportQueueItem>();
+    Cursor<ExportQueueItem> found =
+        queueItems.find(
+            FluentFilter.where("chronicleId").in(changes.keySet().toArray(new Long[0])));
+    for (ExportQueueItem item : found) {
+      ExportQueueItem change = changes.get(item.getChronicleId());
+      if ((change.getObjectId() == item.getObjectId())
+          && (change.getModifiedDate() == item.getModifiedDate())
+          && ((change.getStatus() != item.getStatus()) || ItemLease.isRenewal(item, change))) {
+        item.setStatus(change.getStatus());
+        item.setLease(change.getOwner(), change.getLeaseExpiry());
+        item.setAttempts(change.getAttempts());
+        item.setLastError(change.getLastError());
+        updates.add(item);
+      }
+    }
+    if (updates.isEmpty()) {
+      return 0;
+    }
+
+    Session session = db.createSession();
+    try (Transaction tx = session.beginTransaction()) {
+      ObjectRepository<ExportQueueItem> txItems = tx.getRepository(ExportQueueItem.class);
+      for (ExportQueueItem item : updates) {
+        txItems.update(item);
+      }
+      tx.commit();
+    } finally {
+      session.close();
+    }
+    if (null != completeItems) {
+      for (ExportQueueItem item : updates) {
+        if (ExportQueueItem.ItemStatus.COMPLETE == item.getStatus()) {
+          completeItems.add(item.getChronicleId(), item.getObjectId(), item.getModifiedDate());
+        }
+      }
+    }
+    return updates.size();
+  }
+
+  @Override
+  public void markItemComplete(long arg0) {
+    DfLogger.debug(this, "Marking Complete: {0}", new String[] {DctmId.toString(arg0)}, null);
     ExportQueueItem item = queueItems.getById(arg0);
     item.setStatus(ExportQueueItem.ItemStatus.COMPLETE);
     WriteResult result = queueItems.update(item);
+    if (null != completeItems) {
+      completeItems.add(item.getChronicleId(), item.getObjectId(), item.getModifiedDate());
+    }
     DfLogger.debug(
         this,
         "Result of write: {0}",
@@ -100,8 +560,9 @@ public class ExportDatabaseManager {
         null);
   }
 
-  public void markItemInprogress(String arg0) {
-    DfLogger.debug(this, "Marking In-Progress: {0}", new String[] {arg0.toString()}, null);
+  @Override
+  public void markItemInprogress(long arg0) {
+    DfLogger.debug(this, "Marking In-Progress: {0}", new String[] {DctmId.toString(arg0)}, null);
     ExportQueueItem item = queueItems.getById(arg0);
     item.setStatus(ExportQueueItem.ItemStatus.IN_PROESS);
     WriteResult result = queueItems.update(item);
@@ -112,10 +573,89 @@ public class ExportDatabaseManager {
         null);
   }
 
+  /**
+   * Move the COMPLETE items into the completed item archive next to the database.  Archived items
+   * are no longer in the database but {@link #putItems(List)} still treats an unchanged candidate
+   * that is in the archive as done.  Should only be called while no export is using the database.
+   *
+   * <p>The items are read through a lazy cursor and sorted in runs of {@link #ARCHIVE_RUN_SIZE}
+   * on disk (see {@link CompleteItemArchive.Writer}), so the heap holds at most a run of them plus
+   * their chronicle ids, 8 bytes each.  The rows are then removed by those ids
+   * {@link #REMOVE_BATCH_SIZE} at a time, as removing under an open cursor changes what it returns.
+   *
+   * @return The number of items moved to the archive
+   */
+  public int archiveCompleteItems() throws UtilsException {
+    Filter complete = FluentFilter.where("status").eq(ExportQueueItem.ItemStatus.COMPLETE);
+    long archived;
+    long[] chronicleIds = new long[1024];
+    try (CompleteItemArchive.Writer writer =
+        new CompleteItemArchive.Writer(archiveFile, ARCHIVE_RUN_SIZE)) {
+      for (ExportQueueItem item : queueItems.find(complete)) {
+        int added = (int) writer.getAdded();
+        if (added == chronicleIds.length) {
+          chronicleIds = Arrays.copyOf(chronicleIds, added * 2);
+        }
+        chronicleIds[added] = item.getChronicleId();
+        writer.add(item);
+      }
+      archived = writer.getAdded();
+      if (0 == archived) {
+        return 0;
+      }
+      writer.finish(archive);
+      archive = new CompleteItemArchive(archiveFile);
+    } catch (IOException e) {
+      throw new UtilsException(
+          String.format("Error writing completed item archive: %s", e.getMessage()), e);
+    }
+    // The archive is in place before the rows go, so a failure here only leaves duplicates
+    List<Long> batch = new ArrayList<Long>(REMOVE_BATCH_SIZE);
+    for (int i = 0; i < archived; i++) {
+      batch.add(chronicleIds[i]);
+      if (batch.size() >= REMOVE_BATCH_SIZE) {
+        removeCompleteItems(batch);
+        batch.clear();
+      }
+    }
+    removeCompleteItems(batch);
+    return (int) archived;
+  }
+
+  private void removeCompleteItems(List<Long> arg0) {
+    if (arg0.isEmpty()) {
+      return;
+    }
+    Filter filter =
+        Filter.and(
+            FluentFilter.where("chronicleId").in(arg0.toArray(new Long[0])),
+            FluentFilter.where("status").eq(ExportQueueItem.ItemStatus.COMPLETE));
+    Session session = db.createSession();
+    try (Transaction tx = session.beginTransaction()) {
+      tx.getRepository(ExportQueueItem.class).remove(filter);
+      tx.commit();
+    } finally {
+      session.close();
+    }
+  }
+
+  /**
+   * Rewrite a closed database file without its free space.
+   *
+   * @param arg0 The Queue Items database file (must not be open)
+   */
+  public static void compact(File arg0) {
+    MVStoreTool.compact(arg0.getAbsolutePath(), true);
+  }
+
+  @Override
   public void shutdown() {
     if (null != queueItems) {
         queueItems.close();
     }
+    if (null != checkpoints) {
+        checkpoints.close();
+    }
     if (null != db) {
         db.close();
     }
@@ -0,0 +1,437 @@
+package net.koeppster.dctm.commands.exporter;
+
+import com.documentum.fc.common.DfLogger;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import me.tongfei.progressbar.ProgressBar;
+import net.koeppster.dctm.utils.UtilsException;
+
+/**
+ * Hands {@link ExportQueueItem}s to the item processor pool through a fixed number of slots.  When
+ * every slot is taken {@link #submit(ExportQueueItem)} blocks, so a producer (the candidate listing
+ * or the queue database) can never get further ahead of the workers than the slot count.
+ *
+ * <p>The dispatcher keeps track of outstanding items so callers can wait for the pool to drain with
+ * {@link #awaitIdle()}.  The first failure reported by a worker is kept and rethrown from the next
+ * call to {@link #submit(ExportQueueItem)} or {@link #awaitIdle()}.
+ *
+ * <p>An item that fails with an {@link ItemFailedException} does not stop the export.  If the
+ * retry policy allows it the item gives up its slot and is submitted again after a backoff,
+ * otherwise it is marked FAILED and counted in {@link #getFailed()}.  Items waiting for a retry
+ * still count as outstanding.
+ *
+ * <p>Items are handed to the first {@link PipelineStage} and report back through a callback from
+ * whichever stage finishes them.  If an {@link ItemWatchdog} abandons a stuck item it is treated as
+ * a transient failure.  The stage gets an extra worker for as long as the stuck one is blocked,
+ * and whatever that worker does once it returns is dropped.
+ *
+ * <p>New items wait for the {@link DispatchGate}s, such as the {@link ExportSchedule}, and for the
+ * {@link RepositoryThrottle}'s object limit before they take a slot.  Retried items only wait for
+ * the gates to be open.
+ *
+ * <p>Only one version of a chronicle is in the pipeline at a time.  Submitting a chronicle that is
+ * already in flight (being exported or waiting for a retry) does nothing if it is the same version.
+ * A newer version is held back and takes over the slot of the one in flight once that finishes,
+ * without waiting for the gates again.  Without this a chronicle listed again before its status
+ * change reaches the queue store could be exported twice at the same time.
+ *
+ * <p>Once the stop signal is counted down neither method waits any longer; both throw an
+ * InterruptedException so the caller unwinds as if interrupted.  The caller's thread is not
+ * interrupted, since that would close the queue database's file channel.
+ */
+public class ExportItemDispatcher {
+
+  // How often a blocked caller checks the stop signal
+  private static final long STOP_CHECK_MILLIS = 200;
+
+  private final ExecutorService executor;
+  private final ExportQueueItemProcessor processor;
+  private final ProgressBar progressBar;
+  private final boolean openEnded;
+  private final Semaphore slots;
+  private final CountDownLatch stopSignal;
+  private final ItemRetryPolicy retryPolicy;
+  private final ItemWatchdog watchdog;
+  private final RepositoryThrottle throttle;
+  private final List<DispatchGate> gates;
+  private final Object idleLock = new Object();
+  // Chronicles in the pipeline and the newer versions waiting for them, guarded by idleLock
+  private final Map<Long, ExportQueueItem> inFlight = new HashMap<Long, ExportQueueItem>();
+  private final Map<Long, ExportQueueItem> deferred = new HashMap<Long, ExportQueueItem>();
+  private long outstanding = 0;
+  private long submitted = 0;
+  private long failed = 0;
+  private volatile Throwable failure = null;
+
+  /**
+   * @param executor The pool that runs the items
+   * @param processor The processor used for every item
+   * @param capacity The maximum number of items submitted but not yet finished
+   * @param progressBar Progress bar stepped for each completed item (may be null)
+   * @param openEnded If true the total is not known up front and the progress bar maximum grows
+   *     with every submitted item
+   * @param stopSignal Counted down when the export should stop (may be null)
+   * @param retryPolicy When to retry failed items (may be null to never retry)
+   * @param watchdog Abandons stuck items (may be null)
+   * @param throttle Limits the objects per second (may be null)
+   * @param gates Waited on before each item goes ahead
+   */
+  public ExportItemDispatcher(
+      ExecutorService executor,
+      ExportQueueItemProcessor processor,
+      int capacity,
+      ProgressBar progressBar,
+      boolean openEnded,
+      CountDownLatch stopSignal,
+      ItemRetryPolicy retryPolicy,
+      ItemWatchdog watchdog,
+      RepositoryThrottle throttle,
+      List<DispatchGate> gates) {
+    this.executor = executor;
+    this.processor = processor;
+    this.progressBar = progressBar;
+    this.openEnded = openEnded;
+    this.slots = new Semaphore(Math.max(1, capacity));
+    this.stopSignal = stopSignal;
+    this.retryPolicy = retryPolicy;
+    this.watchdog = watchdog;
+    this.throttle = throttle;
+    this.gates = gates;
+  }
+
+  /**
+   * Submit an item to the pool, blocking while all slots are in use.
+   *
+   * @param arg0 The item to process
+   * @throws UtilsException If an earlier item failed or the pool no longer accepts work
+   * @throws InterruptedException If interrupted or stopped while waiting for a free slot
+   */
+  public void submit(ExportQueueItem arg0) throws UtilsException, InterruptedException {
+    checkFailure();
+    checkStopped();
+    synchronized (idleLock) {
+      if (deferIfInFlight(arg0)) {
+        return;
+      }
+    }
+    for (DispatchGate gate : gates) {
+      while (!gate.awaitOpen(STOP_CHECK_MILLIS, TimeUnit.MILLISECONDS)) {
+        checkStopped();
+      }
+    }
+    while ((null != throttle)
+        && !throttle.tryAcquireObject(STOP_CHECK_MILLIS, TimeUnit.MILLISECONDS)) {
+      checkStopped();
+    }
+    while (!slots.tryAcquire(STOP_CHECK_MILLIS, TimeUnit.MILLISECONDS)) {
+      checkStopped();
+    }
+    synchronized (idleLock) {
+      if (deferIfInFlight(arg0)) {
+        slots.release();
+        return;
+      }
+      inFlight.put(arg0.getChronicleId(), arg0);
+      outstanding++;
+      submitted++;
+      if (openEnded && null != progressBar) {
+        progressBar.maxHint(submitted);
+      }
+    }
+    try {
+      executor.execute(() -> run(arg0));
+    } catch (RejectedExecutionException e) {
+      slots.release();
+      releaseDeferred(itemDone(arg0));
+      throw new UtilsException("Item processor pool is not accepting work", e);
+    }
+  }
+
+  /**
+   * Hold back an item whose chronicle is in flight.  Must be called holding idleLock.
+   *
+   * @return true if the item was dropped or held back
+   */
+  private boolean deferIfInFlight(ExportQueueItem arg0) {
+    ExportQueueItem current = inFlight.get(arg0.getChronicleId());
+    if (null == current) {
+      return false;
+    }
+    if ((current.getObjectId() == arg0.getObjectId())
+        && (current.getModifiedDate() == arg0.getModifiedDate())) {
+      DfLogger.debug(
+          this, "Object {0} is already in flight", new String[] {arg0.getObjectIdString()}, null);
+      return true;
+    }
+    if (null == deferred.put(arg0.getChronicleId(), arg0)) {
+      outstanding++;
+      submitted++;
+      if (openEnded && null != progressBar) {
+        progressBar.maxHint(submitted);
+      }
+    }
+    DfLogger.debug(
+        this,
+        "Holding back object {0} until the version in flight finishes",
+        new String[] {arg0.getObjectIdString()},
+        null);
+    return true;
+  }
+
+  /**
+   * Wait until every submitted item has finished.
+   *
+   * @throws UtilsException If any item failed
+   * @throws InterruptedException If interrupted or stopped while waiting
+   */
+  public void awaitIdle() throws UtilsException, InterruptedException {
+    synchronized (idleLock) {
+      while (outstanding > 0) {
+        checkStopped();
+        idleLock.wait(STOP_CHECK_MILLIS);
+      }
+    }
+    checkFailure();
+  }
+
+  public long getSubmitted() {
+    synchronized (idleLock) {
+      return submitted;
+    }
+  }
+
+  /** Returns the number of items marked FAILED so far. */
+  public long getFailed() {
+    synchronized (idleLock) {
+      return failed;
+    }
+  }
+
+  private void run(ExportQueueItem arg0) {
+    ItemWatchdog.Ticket ticket = (null == watchdog) ? null : watchdog.begin(arg0, this::abandon);
+    processor.processCandidate(arg0, error -> completed(arg0, ticket, error));
+  }
+
+  /** Called by the processor, on whichever stage's worker finished the item. */
+  private void completed(ExportQueueItem arg0, ItemWatchdog.Ticket arg1, Throwable arg2) {
+    if ((null != arg1) && !arg1.finish()) {
+      // The watchdog has already requeued the item
+      if (null != arg1.getStuckWorker()) {
+        // ...and replaced this worker, which can go now
+        PipelineStage stage = PipelineStage.of(Thread.currentThread());
+        if (null != stage) {
+          stage.retireWorker();
+        }
+      }
+      return;
+    }
+    finish(arg0, arg2);
+  }
+
+  /** Record the outcome of an item and free its slot. */
+  private void finish(ExportQueueItem arg0, Throwable arg1) {
+    boolean retrying = false;
+    try {
+      if (null == arg1) {
+        if (null != progressBar) {
+          progressBar.step();
+        }
+      } else if (arg1 instanceof ItemFailedException) {
+        retrying = handleItemFailure(arg0, (ItemFailedException) arg1);
+      } else {
+        if (arg1 instanceof InterruptedException) {
+          Thread.currentThread().interrupt();
+        }
+        recordFailure(arg1);
+      }
+    } finally {
+      if (!retrying) {
+        ExportQueueItem next = itemDone(arg0);
+        if (null == next) {
+          slots.release();
+        } else {
+          runDeferred(next);
+        }
+      } else {
+        slots.release();
+      }
+    }
+  }
+
+  /** Run a held back version in the slot of the one that just finished. */
+  private void runDeferred(ExportQueueItem arg0) {
+    if (isStopped()) {
+      // Still READY in the queue store, so the next run exports it
+      slots.release();
+      releaseDeferred(itemDone(arg0));
+      return;
+    }
+    try {
+      executor.execute(() -> run(arg0));
+    } catch (RejectedExecutionException e) {
+      slots.release();
+      releaseDeferred(itemDone(arg0));
+    }
+  }
+
+  /** Called by the watchdog when a worker is stuck on an item. */
+  private void abandon(ExportQueueItem arg0, String arg1, long arg2, Thread arg3) {
+    PipelineStage stage = PipelineStage.of(arg3);
+    if (null != stage) {
+      stage.addWorker();
+    }
+    String message = String.format("Stalled in %s for %d seconds", arg1, arg2 / 1000);
+    finish(arg0, new ItemFailedException(message, new TimeoutException(message)));
+  }
+
+  /**
+   * Schedule a retry of a failed item or mark it FAILED.  An item that would be retried but fails
+   * once the export is stopping is left IN_PROESS under this run, so the shutdown returns it to
+   * READY for the next run instead of it waiting for <code>--retry-failed</code>.
+   *
+   * @return true if a retry was scheduled
+   */
+  private boolean handleItemFailure(ExportQueueItem arg0, ItemFailedException arg1) {
+    arg0.setAttempts(arg0.getAttempts() + 1);
+    if ((null != retryPolicy) && retryPolicy.shouldRetry(arg0.getAttempts(), arg1)) {
+      if (isStopped()) {
+        leaveForNextRun(arg0, arg1);
+        return false;
+      }
+      long delay = retryPolicy.getDelay(arg0.getAttempts());
+      DfLogger.warn(
+          this,
+          "Object {0} failed (attempt {1}), retrying in {2}ms: {3}",
+          new String[] {
+            arg0.getObjectIdString(),
+            Integer.toString(arg0.getAttempts()),
+            Long.toString(delay),
+            arg1.getMessage()
+          },
+          null);
+      try {
+        retryPolicy.schedule(() -> resubmit(arg0), delay);
+        return true;
+      } catch (RejectedExecutionException e) {
+        DfLogger.debug(this, "Retry scheduler is shut down", null, null);
+        leaveForNextRun(arg0, arg1);
+        return false;
+      }
+    }
+    try {
+      processor.markFailed(arg0, arg1);
+      synchronized (idleLock) {
+        failed++;
+      }
+      if (null != progressBar) {
+        progressBar.step();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      recordFailure(e);
+    } catch (UtilsException | RuntimeException e) {
+      recordFailure(e);
+    }
+    return false;
+  }
+
+  private void leaveForNextRun(ExportQueueItem arg0, ItemFailedException arg1) {
+    DfLogger.info(
+        this,
+        "Object {0} failed while stopping, leaving it for the next run: {1}",
+        new String[] {arg0.getObjectIdString(), arg1.getMessage()},
+        null);
+  }
+
+  /** Run a retried item once a slot is free, without blocking the retry scheduler. */
+  private void resubmit(ExportQueueItem arg0) {
+    if (isStopped()) {
+      releaseDeferred(itemDone(arg0));
+      return;
+    }
+    if (!gatesOpen() || !slots.tryAcquire()) {
+      try {
+        retryPolicy.schedule(() -> resubmit(arg0), STOP_CHECK_MILLIS);
+      } catch (RejectedExecutionException e) {
+        releaseDeferred(itemDone(arg0));
+      }
+      return;
+    }
+    try {
+      executor.execute(() -> run(arg0));
+    } catch (RejectedExecutionException e) {
+      slots.release();
+      releaseDeferred(itemDone(arg0));
+    }
+  }
+
+  // A held back version that will not run now; it is READY in the queue store for the next run
+  private void releaseDeferred(ExportQueueItem arg0) {
+    ExportQueueItem next = arg0;
+    while (null != next) {
+      next = itemDone(next);
+    }
+  }
+
+  private boolean gatesOpen() {
+    for (DispatchGate gate : gates) {
+      if (!gate.isOpen()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void recordFailure(Throwable arg0) {
+    DfLogger.error(this, "Item processing failed: {0}", new String[] {arg0.getMessage()}, arg0);
+    if (null == failure) {
+      failure = arg0;
+    }
+  }
+
+  /**
+   * Count an item as finished and take its chronicle out of flight.
+   *
+   * @return A newer version of the chronicle held back meanwhile, which is now in flight, or null
+   */
+  private ExportQueueItem itemDone(ExportQueueItem arg0) {
+    synchronized (idleLock) {
+      outstanding--;
+      Long chronicleId = arg0.getChronicleId();
+      ExportQueueItem next = null;
+      if (inFlight.get(chronicleId) == arg0) {
+        next = deferred.remove(chronicleId);
+        if (null == next) {
+          inFlight.remove(chronicleId);
+        } else {
+          inFlight.put(chronicleId, next);
+        }
+      }
+      idleLock.notifyAll();
+      return next;
+    }
+  }
+
+  private boolean isStopped() {
+    return (null != stopSignal) && (stopSignal.getCount() == 0);
+  }
+
+  private void checkStopped() throws InterruptedException {
+    if (isStopped()) {
+      throw new InterruptedException("Export stopped");
+    }
+  }
+
+  private void checkFailure() throws UtilsException {
+    if (null != failure) {
+      throw new UtilsException("Issue processing item", failure);
+    }
+  }
+}
@@ -0,0 +1,69 @@
+package net.koeppster.dctm.commands.exporter;
+
+import com.documentum.fc.common.DfLogger;
+import java.io.File;
+import net.koeppster.dctm.commands.AbstractCmd;
+import net.koeppster.dctm.utils.UtilsArgsParserFactory;
+import net.koeppster.dctm.utils.UtilsException;
+import net.koeppster.dctm.utils.UtilsFunction;
+import net.sourceforge.argparse4j.impl.Arguments;
+import net.sourceforge.argparse4j.inf.ArgumentParserException;
+import net.sourceforge.argparse4j.inf.Namespace;
+import net.sourceforge.argparse4j.inf.Subparser;
+
+/**
+ * Maintenance for a Nitrite Queue Items database between export runs.  Optionally moves the
+ * COMPLETE items into the completed item archive, then compacts the database file.
+ */
+public class ExportMaintCmd extends AbstractCmd implements UtilsFunction {
+
+  public static final String CMD_EXPORT_MAINT = "export-maint";
+  public static final String ARG_ARCHIVE = "archive";
+  public static final String[] ARG_ARCHIVE_NAMES = {"--archive"};
+  public static final String ARG_ARCHIVE_HELP =
+      "Flag that, if specified, moves completed items to a read-only archive next to the database"
+          + " before compacting";
+
+  public static void addCommandToArgParser(UtilsArgsParserFactory argParser)
+      throws ArgumentParserException {
+    Subparser cmd =
+        argParser.addSubparser(
+            CMD_EXPORT_MAINT,
+            "Compact an export Queue Items database (nitrite store only)",
+            new ExportMaintCmd());
+    argParser.addArgument(
+        cmd,
+        ExportCmd.ARG_DATABASE_NAMES,
+        ExportCmd.ARG_DATABASE,
+        ExportCmd.ARG_DATABASE_HELP,
+        true,
+        Arguments.fileType().verifyExists().verifyCanWrite());
+    argParser.addArgumentFlag(cmd, ARG_ARCHIVE_NAMES, ARG_ARCHIVE, ARG_ARCHIVE_HELP);
+  }
+
+  public void execute(Namespace ns) throws UtilsException {
+    DfLogger.debug(this, "ExportMaintCmd.execute({0})", new String[] {ns.toString()}, null);
+    File dbFile = (File) ns.get(ExportCmd.ARG_DATABASE);
+    boolean archive = ns.get(ARG_ARCHIVE);
+
+    if (archive) {
+      ExportDatabaseManager queueManager = new ExportDatabaseManager(dbFile, false);
+      try {
+        int archived = queueManager.archiveCompleteItems();
+        System.out.printf("Archived %d completed items%n", archived);
+      } finally {
+        queueManager.shutdown();
+      }
+    }
+
+    long before = dbFile.length();
+    try {
+      ExportDatabaseManager.compact(dbFile);
+    } catch (RuntimeException e) {
+      throw new UtilsException(
+          String.format("Error compacting %s: %s", dbFile, e.getMessage()), e);
+    }
+    System.out.printf(
+        "Compacted %s from %,d to %,d bytes%n", dbFile.getName(), before, dbFile.length());
+  }
+}
@@ -0,0 +1,160 @@
+package net.koeppster.dctm.commands.exporter;
+
+import com.documentum.fc.common.DfLogger;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The stages an item passes through, each with its own workers so network waits, repository work
+ * and local disk writes overlap:
+ *
+ * <ol>
+ *   <li><b>metadata</b> - fetch the object, resolve its folder and work out the file name
+ *   <li><b>content</b> - download the content to a part file
+ *   <li><b>large</b> - the same for content of at least the large threshold, so small documents do
+ *       not queue behind huge transfers
+ *   <li><b>finalize</b> - move the part file into place, write the CSV record and mark the item
+ *       COMPLETE
+ * </ol>
+ *
+ * <p>Items without content, or exports without an output directory, skip the content stage.  The
+ * large lane only exists if it has a threshold.
+ */
+public class ExportPipeline {
+
+  private final PipelineStage metadata;
+  private final PipelineStage content;
+  private final PipelineStage large;
+  private final long largeThreshold;
+  private final PipelineStage finalize;
+  private final AtomicLong failures = new AtomicLong(0);
+
+  /**
+   * @param metadataThreads Workers fetching objects
+   * @param contentThreads Workers downloading content
+   * @param largeThreads Workers downloading large content
+   * @param largeThreshold Least content size in bytes that goes to the large lane (0 for no lane)
+   * @param finalizeThreads Workers writing the results
+   * @param capacity Tasks that may wait in front of each stage
+   * @param threadFactory Creates the workers of every stage
+   */
+  public ExportPipeline(
+      int metadataThreads,
+      int contentThreads,
+      int largeThreads,
+      long largeThreshold,
+      int finalizeThreads,
+      int capacity,
+      ThreadFactory threadFactory) {
+    this.metadata = new PipelineStage("metadata", metadataThreads, capacity, threadFactory);
+    this.content = new PipelineStage("content", contentThreads, capacity, threadFactory);
+    this.largeThreshold = Math.max(0, largeThreshold);
+    this.large =
+        (this.largeThreshold > 0)
+            ? new PipelineStage("large", largeThreads, capacity, threadFactory)
+            : null;
+    this.finalize = new PipelineStage("finalize", finalizeThreads, capacity, threadFactory);
+  }
+
+  public PipelineStage getMetadata() {
+    return metadata;
+  }
+
+  public PipelineStage getContent() {
+    return content;
+  }
+
+  /**
+   * Returns the stage that downloads content of the given size.
+   *
+   * @param arg0 The content size in bytes
+   */
+  public PipelineStage getContent(long arg0) {
+    return ((null != large) && (arg0 >= largeThreshold)) ? large : content;
+  }
+
+  /** Returns the least content size that goes to the large lane, 0 if there is none. */
+  public long getLargeThreshold() {
+    return largeThreshold;
+  }
+
+  public PipelineStage getFinalize() {
+    return finalize;
+  }
+
+  public List<PipelineStage> getStages() {
+    return (null == large)
+        ? Arrays.asList(metadata, content, finalize)
+        : Arrays.asList(metadata, content, large, finalize);
+  }
+
+  /** Count an item that failed in one of the stages. */
+  public void recordFailure() {
+    failures.incrementAndGet();
+  }
+
+  /** Returns the number of items that failed in the stages so far. */
+  public long getFailures() {
+    return failures.get();
+  }
+
+  /** Returns the queue depth and utilization of every stage. */
+  public String report() {
+    StringBuilder report = new StringBuilder();
+    for (PipelineStage stage : getStages()) {
+      report.append((report.length() > 0) ? "; " : "").append(stage);
+    }
+    return report.toString();
+  }
+
+  /**
+   * Let the items in the pipeline finish, stage by stage, so an earlier stage can still hand its
+   * items on.  Whatever is left after the timeout is dropped and its workers interrupted.
+   *
+   * @param arg0 Seconds to wait for the items to finish
+   * @return true if every stage finished in time
+   */
+  public boolean shutdown(long arg0) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(arg0);
+    for (PipelineStage stage : getStages()) {
+      stage.shutdown();
+      long remaining = deadline - System.nanoTime();
+      if (!stage.awaitTermination(Math.max(0, remaining), TimeUnit.NANOSECONDS)) {
+        DfLogger.warn(
+            this,
+            "Items still in the {0} stage after the drain timeout",
+            new String[] {stage.getName()},
+            null);
+        shutdownNow();
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Drop the queued items and interrupt every stage's workers. */
+  public void shutdownNow() {
+    for (PipelineStage stage : getStages()) {
+      stage.shutdownNow();
+    }
+  }
+
+  /**
+   * Wait for the workers to exit after {@link #shutdownNow()}.
+   *
+   * @return true if every worker exited
+   */
+  public boolean awaitTermination(long arg0, TimeUnit arg1) throws InterruptedException {
+    long deadline = System.nanoTime() + arg1.toNanos(arg0);
+    for (PipelineStage stage : getStages()) {
+      long remaining = deadline - System.nanoTime();
+      if (!stage.awaitTermination(Math.max(0, remaining), TimeUnit.NANOSECONDS)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
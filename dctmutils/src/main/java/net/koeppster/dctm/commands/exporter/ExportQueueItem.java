@@ -7,11 +7,26 @@ import org.dizitart.no2.repository.annotations.Entity;
 import org.dizitart.no2.repository.annotations.Id;
 import org.dizitart.no2.repository.annotations.Index;
 
+/**
+ * A candidate in the Queue Items database.  The ids are kept as <code>long</code>s (see {@link
+ * DctmId}) and the modify date as epoch milliseconds; the <code>...String</code> and
+ * <code>...AsDate</code> accessors give the forms DFC expects.  Besides the version and its status
+ * an item holds its content size, the lease on it while IN_PROESS (owner and expiry) and, once an
+ * attempt has failed, the attempt count and last error.  All but the owner and last error are
+ * numbers, so an item stays small both on disk and in memory.
+ *
+ * <p>Besides the key, items are indexed by status and by (status, contentSize), which lets the
+ * READY items be split into large and other items without reading the rest.  Nitrite builds a
+ * missing index over the existing items when the database is opened.
+ */
 @Entity(
     indices = {
       @Index(
           type = IndexType.NON_UNIQUE,
           fields = {"status"}),
+      @Index(
+          type = IndexType.NON_UNIQUE,
+          fields = {"status", "contentSize"}),
       @Index(
           fields = {"chronicleId"},
           type = IndexType.UNIQUE)
@@ -21,38 +36,65 @@ public class ExportQueueItem implements Serializable {
   public static enum ItemStatus {
     READY,
     IN_PROESS,
-    COMPLETE
+    COMPLETE,
+    FAILED
   }
 
-  @Id private String chronicleId = null;
-  private String objectId = null;
-  private Date modifiedDate = null;
+  @Id private long chronicleId = DctmId.NULL_ID;
+  private long objectId = DctmId.NULL_ID;
+  private long modifiedDate = 0L;
+  private long contentSize = 0L;
   private ItemStatus status = null;
+  private String owner = null;
+  private long leaseExpiry = 0L;
+  private int attempts = 0;
+  private String lastError = null;
 
-  public String getChronicleId() {
+  public long getChronicleId() {
     return chronicleId;
   }
 
-  public void setChronicleId(String chronicleId) {
+  public void setChronicleId(long chronicleId) {
     this.chronicleId = chronicleId;
   }
 
-  public String getObjectId() {
+  public String getChronicleIdString() {
+    return DctmId.toString(chronicleId);
+  }
+
+  public long getObjectId() {
     return objectId;
   }
 
-  public void setObjectId(String objectId) {
+  public void setObjectId(long objectId) {
     this.objectId = objectId;
   }
 
-  public Date getModifiedDate() {
+  public String getObjectIdString() {
+    return DctmId.toString(objectId);
+  }
+
+  public long getModifiedDate() {
     return modifiedDate;
   }
 
-  public void setModifiedDate(Date modifiedDate) {
+  public void setModifiedDate(long modifiedDate) {
     this.modifiedDate = modifiedDate;
   }
 
+  public Date getModifiedDateAsDate() {
+    return new Date(modifiedDate);
+  }
+
+  /** Bytes of content as listed by the candidate query (r_content_size), 0 if not known. */
+  public long getContentSize() {
+    return contentSize;
+  }
+
+  public void setContentSize(long contentSize) {
+    this.contentSize = contentSize;
+  }
+
   public ItemStatus getStatus() {
     return status;
   }
@@ -61,23 +103,68 @@ public class ExportQueueItem implements Serializable {
     this.status = status;
   }
 
-  public ExportQueueItem(
-      String chroninalId, String objectId, Date modifiedDate, ItemStatus status) {
-    this.chronicleId = chroninalId;
+  /** The process holding an IN_PROESS item (see {@link ItemLease}), otherwise null. */
+  public String getOwner() {
+    return owner;
+  }
+
+  public void setOwner(String owner) {
+    this.owner = owner;
+  }
+
+  /** When the owner's hold on an IN_PROESS item runs out, in epoch milliseconds. */
+  public long getLeaseExpiry() {
+    return leaseExpiry;
+  }
+
+  public void setLeaseExpiry(long leaseExpiry) {
+    this.leaseExpiry = leaseExpiry;
+  }
+
+  public void setLease(String owner, long leaseExpiry) {
+    this.owner = owner;
+    this.leaseExpiry = leaseExpiry;
+  }
+
+  /** The number of times exporting the item has failed in a row. */
+  public int getAttempts() {
+    return attempts;
+  }
+
+  public void setAttempts(int attempts) {
+    this.attempts = attempts;
+  }
+
+  /** Why the last attempt failed, kept with FAILED items. */
+  public String getLastError() {
+    return lastError;
+  }
+
+  public void setLastError(String lastError) {
+    this.lastError = lastError;
+  }
+
+  public ExportQueueItem(long chronicleId, long objectId, long modifiedDate, ItemStatus status) {
+    this.chronicleId = chronicleId;
     this.objectId = objectId;
     this.modifiedDate = modifiedDate;
     this.status = status;
   }
 
+  public ExportQueueItem(
+      String chroninalId, String objectId, Date modifiedDate, ItemStatus status) {
+    this(DctmId.toLong(chroninalId), DctmId.toLong(objectId), modifiedDate.getTime(), status);
+  }
+
   public ExportQueueItem() {}
 
   public String toString() {
     return "(chronicleId="
-        .concat(chronicleId)
+        .concat(getChronicleIdString())
         .concat(",objectId=")
-        .concat(objectId)
+        .concat(getObjectIdString())
         .concat(",modifyDate=")
-        .concat(modifiedDate.toString().concat(",status=").concat(status.name()))
+        .concat(getModifiedDateAsDate().toString().concat(",status=").concat(status.name()))
         .concat(")");
   }
 }
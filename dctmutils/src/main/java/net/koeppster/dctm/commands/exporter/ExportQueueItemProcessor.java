@@ -1,8 +1,6 @@
 package net.koeppster.dctm.commands.exporter;
 
-import com.documentum.fc.client.IDfFolder;
 import com.documentum.fc.client.IDfSession;
-import com.documentum.fc.client.IDfSessionManager;
 import com.documentum.fc.client.IDfSysObject;
 import com.documentum.fc.common.DfException;
 import com.documentum.fc.common.DfId;
@@ -16,8 +14,13 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
 
 import net.koeppster.dctm.commands.AbstractCmd;
 import net.koeppster.dctm.utils.UtilsException;
@@ -27,32 +30,89 @@ import org.apache.commons.csv.CSVPrinter;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.StringUtils;
 
+/**
+ * Exports queue items through the {@link ExportPipeline}: the metadata stage runs on the thread
+ * calling {@link #processCandidate(ExportQueueItem, Consumer)}, then the item moves on to the
+ * content and finalize stages.
+ */
 public class ExportQueueItemProcessor extends AbstractCmd {
 
   private static final String INFO_LEVEL = "INFO";
   private static final String WARN_LEVEL = "WARN";
+  // Content is written under this suffix and renamed once complete
+  public static final String PART_SUFFIX = ".part";
 
-  private ExportDatabaseManager queueManager;
-  private IDfSessionManager sessionManager;
+  /**
+   * Delete the partial content files (<code>name.objectid.part</code>) that a run killed while
+   * downloading left under the output directory.
+   *
+   * @param arg0 The output directory
+   * @param arg1 Object ids of the items the run left in progress
+   * @return The number of files deleted
+   */
+  public static int deletePartFiles(File arg0, Set<String> arg1) {
+    int deleted = 0;
+    if (arg1.isEmpty() || !arg0.isDirectory()) {
+      return deleted;
+    }
+    Iterator<File> files =
+        FileUtils.iterateFiles(arg0, new String[] {PART_SUFFIX.substring(1)}, true);
+    while (files.hasNext()) {
+      File file = files.next();
+      String name = StringUtils.removeEnd(file.getName(), PART_SUFFIX);
+      String objectId = name.substring(name.lastIndexOf('.') + 1);
+      if (arg1.contains(objectId) && FileUtils.deleteQuietly(file)) {
+        deleted++;
+      }
+    }
+    return deleted;
+  }
+
+  private QueueStatusWriter statusWriter;
+  private WorkerSessions sessions;
+  private FolderPathCache folderPaths;
+  private ExportPipeline pipeline;
+  private RepositoryThrottle throttle;
   private ArrayList<String> customAttribs;
-  private String repo;
   private CSVPrinter exportPrinter;
   private File outputDir;
   private PrintStream warningStream;
   private LockFileManager lockFileManager;
 
+  /** An item on its way through the pipeline. */
+  private static class ExportJob {
+    private final ExportQueueItem item;
+    private final Consumer<Throwable> callback;
+    private ItemWatchdog.Ticket ticket = null;
+    private ObjectNode node = null;
+    private String firstPath = null;
+    private String fileName = null;
+    private long contentSize = 0;
+    private File dir = null;
+    private File partFile = null;
+
+    private ExportJob(ExportQueueItem item, Consumer<Throwable> callback) {
+      this.item = item;
+      this.callback = callback;
+    }
+  }
+
   public ExportQueueItemProcessor(
-      ExportDatabaseManager queueManager,
-      IDfSessionManager sessionManager,
-      String repo,
+      QueueStatusWriter statusWriter,
+      WorkerSessions sessions,
+      FolderPathCache folderPaths,
+      ExportPipeline pipeline,
+      RepositoryThrottle throttle,
       ArrayList<String> customAttribs,
       CSVPrinter exportPrinter,
       File outputDir,
       PrintStream warningStream,
       LockFileManager lockFileManeger) {
-    this.queueManager = queueManager;
-    this.sessionManager = sessionManager;
-    this.repo = repo;
+    this.statusWriter = statusWriter;
+    this.sessions = sessions;
+    this.folderPaths = folderPaths;
+    this.pipeline = pipeline;
+    this.throttle = throttle;
     this.customAttribs = customAttribs;
     this.exportPrinter = exportPrinter;
     this.outputDir = outputDir;
@@ -60,15 +120,49 @@ public class ExportQueueItemProcessor extends AbstractCmd {
     this.lockFileManager = lockFileManeger;
   }
 
-  public void processCandidate(ExportQueueItem arg0) throws UtilsException, InterruptedException {
+  /**
+   * Export an item.  This runs the metadata stage on the calling thread and hands the item on to
+   * the content and finalize stages of the pipeline.
+   *
+   * @param arg0 The item
+   * @param arg1 Called once when the item is done, with null or the failure; an {@link
+   *     ItemFailedException} for a failure of this item, anything else if the export should stop
+   */
+  public void processCandidate(ExportQueueItem arg0, Consumer<Throwable> arg1) {
     DfLogger.debug(this, "Processing candidate {0}", new String[] {arg0.toString()}, null);
+    ExportJob job = new ExportJob(arg0, arg1);
+    try {
+      statusWriter.markItemInprogress(arg0);
+      if (fetchMetadata(job)) {
+        job.ticket = ItemWatchdog.detach();
+        if (null != outputDir) {
+          pipeline.getContent(job.contentSize).execute(() -> downloadContent(job));
+        } else {
+          pipeline.getFinalize().execute(() -> finalizeItem(job));
+        }
+        return;
+      }
+      ItemWatchdog.enterStage("complete");
+      statusWriter.markItemComplete(arg0);
+    } catch (Throwable e) {
+      fail(job, e);
+      return;
+    }
+    job.callback.accept(null);
+  }
 
-    IDfSession session = null;
-    queueManager.markItemInprogress(arg0.getChronicleId());
-
+  /**
+   * Fetch the object and work out where it goes.
+   *
+   * @return false if the object has no content and there is nothing more to do
+   */
+  private boolean fetchMetadata(ExportJob arg0) throws Exception {
+    boolean ok = false;
+    ItemWatchdog.enterStage("getSession");
+    IDfSession session = sessions.acquire();
     try {
-      session = sessionManager.getSession(repo);
-      IDfSysObject obj = (IDfSysObject) session.getObject(new DfId(arg0.getObjectId()));
+      ItemWatchdog.enterStage("getObject");
+      IDfSysObject obj = (IDfSysObject) session.getObject(new DfId(arg0.item.getObjectIdString()));
 
       // If there is no content do not export it
       if (obj.getContentsId().isNull()) {
@@ -79,12 +173,13 @@ public class ExportQueueItemProcessor extends AbstractCmd {
             null);
         printWarning(
             INFO_LEVEL, String.format("Object %s has no content", obj.getObjectId().getId()));
-        queueManager.markItemComplete(arg0.getChronicleId());
-        return;
+        ok = true;
+        return false;
       }
+      arg0.contentSize = obj.getContentSize();
       // Get the full path to the object in the repository (first one only)
-      IDfFolder folder = (IDfFolder) session.getObject(obj.getFolderId(0));
-      String firstPath = folder.getFolderPath(0);
+      ItemWatchdog.enterStage("getFolder");
+      arg0.firstPath = folderPaths.getPath(session, obj.getFolderId(0));
 
       // Issue warning if the is more than one path
       if (obj.getFolderIdCount() > 1) {
@@ -99,64 +194,150 @@ public class ExportQueueItemProcessor extends AbstractCmd {
       }
 
       // Create the node that will be used for reporting and repreatablity.
-      ObjectNode node = new ObjectNode(JsonNodeFactory.instance);
+      arg0.node = new ObjectNode(JsonNodeFactory.instance);
 
       // weird bug where the object is is no added to the node
-      node.put("r_object_id", obj.getObjectId().getId());
+      arg0.node.put("r_object_id", obj.getObjectId().getId());
 
       // Calculate the file name based on the object name and extension
       String extension = obj.getFormat().getDOSExtension();
-      String fileName = obj.getObjectName().replaceAll("[^a-zA-Z0-9\\.\\- ]", "_");
+      arg0.fileName = obj.getObjectName().replaceAll("[^a-zA-Z0-9\\.\\- ]", "_");
       if (!obj.getObjectName().endsWith(extension)) {
-        fileName = fileName.concat(".").concat(extension);
+        arg0.fileName = arg0.fileName.concat(".").concat(extension);
       }
 
-
       // Add path and filename to exported filename to the attributes list
-      node.put("path", firstPath.concat("/").concat(fileName));
+      arg0.node.put("path", arg0.firstPath.concat("/").concat(arg0.fileName));
 
       if (null != customAttribs) {
         ObjectNode extractedNodes = getJsonFromTypedObject(obj, customAttribs);
-        node.setAll(extractedNodes);
+        arg0.node.setAll(extractedNodes);
       }
+      ok = true;
+      return true;
+    } finally {
+      releaseSession(ok);
+    }
+  }
 
-      if (null != exportPrinter) {
-        exportPrinter.printRecord(getIterbleNode(node));
+  /**
+   * Content stage: download the content to a part file named after the object, so downloads of
+   * objects with the same name do not collide before the finalize stage picks the file name.
+   */
+  private void downloadContent(ExportJob arg0) {
+    try {
+      // Wait for the content limit before taking the item back from the watchdog
+      throttle.acquireBytes(arg0.contentSize);
+    } catch (InterruptedException e) {
+      ItemWatchdog.attach(arg0.ticket);
+      fail(arg0, e);
+      return;
+    }
+    ItemWatchdog.attach(arg0.ticket);
+    try {
+      boolean ok = false;
+      ItemWatchdog.enterStage("getSession");
+      IDfSession session = sessions.acquire();
+      try {
+        ItemWatchdog.enterStage("getContentObject");
+        IDfSysObject obj =
+            (IDfSysObject) session.getObject(new DfId(arg0.item.getObjectIdString()));
+        arg0.dir = new File(this.outputDir.getAbsolutePath().concat(arg0.firstPath));
+        if (!arg0.dir.exists()) {
+          FileUtils.forceMkdir(arg0.dir);
+        }
+        arg0.partFile =
+            new File(
+                arg0.dir,
+                String.format(
+                    "%s.%s%s", arg0.fileName, arg0.item.getObjectIdString(), PART_SUFFIX));
+        ItemWatchdog.enterStage("getFile");
+        obj.getFile(arg0.partFile.getPath());
+        ok = true;
+      } finally {
+        releaseSession(ok);
       }
+      arg0.ticket = ItemWatchdog.detach();
+      pipeline.getFinalize().execute(() -> finalizeItem(arg0));
+    } catch (Throwable e) {
+      fail(arg0, e);
+    }
+  }
 
-      // If the output dir parameter was speficied output the file.
-      if (null != outputDir) {
-        // Check if the file already exists
-        String fullPath = this.outputDir.getAbsolutePath().concat(firstPath);
-        File dir = new File(fullPath);
-        if (!dir.exists()) {
-          FileUtils.forceMkdir(dir);
+  /** Finalize stage: move the content into place, write the CSV record and mark the item done. */
+  private void finalizeItem(ExportJob arg0) {
+    ItemWatchdog.attach(arg0.ticket);
+    try {
+      if (null != arg0.partFile) {
+        ItemWatchdog.enterStage("rename");
+        moveIntoPlace(arg0);
+      }
+      if (null != exportPrinter) {
+        synchronized (exportPrinter) {
+          exportPrinter.printRecord(getIterbleNode(arg0.node));
         }
-        this.lockFileManager.getLock(Thread.currentThread().getName());
-        fileName = determineFileName(fullPath, fileName, 0);
-        obj.getFile(fullPath.concat("/").concat(fileName));
-        DfLogger.debug(this,"Saved file {0}", new String[] {fullPath.concat("/").concat(fileName)},null);
-        this.lockFileManager.releaseLock(Thread.currentThread().getName());
-        // Update path and filename to exported filename to the attributes list
-        node.put("path", firstPath.concat("/").concat(fileName));
       }
+      ItemWatchdog.enterStage("complete");
+      statusWriter.markItemComplete(arg0.item);
     } catch (Throwable e) {
-      DfLogger.error(this, "Error processing candidate {0}", new String[] {arg0.toString()}, e);
-      printWarning(WARN_LEVEL, String.format("Error processing candidate: %s", e.getMessage()));
-      throw new UtilsException(
-          String.format("Documentum Error Processing List: %s", e.getMessage()), e);
+      fail(arg0, e);
+      return;
     }
-    finally {
+    arg0.callback.accept(null);
+  }
+
+  private void moveIntoPlace(ExportJob arg0) throws IOException, InterruptedException {
+    this.lockFileManager.getLock(Thread.currentThread().getName());
+    try {
+      String fileName = determineFileName(arg0.dir.getPath(), arg0.fileName, 0);
+      File target = new File(arg0.dir, fileName);
+      Files.move(arg0.partFile.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+      arg0.partFile = null;
+      DfLogger.debug(this, "Saved file {0}", new String[] {target.getPath()}, null);
+      // Update path and filename to exported filename to the attributes list
+      arg0.node.put("path", arg0.firstPath.concat("/").concat(fileName));
+    } finally {
+      // An interrupt would close the lock file channel before the lock is released
+      boolean interrupted = Thread.interrupted();
       try {
         this.lockFileManager.releaseLock(Thread.currentThread().getName());
       } catch (IOException e) {
         DfLogger.warn(this, "Error releasing lock: {0}", new String[] {e.getMessage()}, e);
       }
-      if ((null != session) && session.isConnected()) {
-        sessionManager.release(session);
+      if (interrupted) {
+        Thread.currentThread().interrupt();
       }
     }
-    queueManager.markItemComplete(arg0.getChronicleId());
+  }
+
+  /**
+   * Hand the calling worker's session back for the next item, or release it if anything went
+   * wrong with this one.
+   */
+  private void releaseSession(boolean arg0) {
+    boolean abandoned = ItemWatchdog.isCurrentAbandoned();
+    sessions.done(!arg0 || abandoned);
+    if (abandoned) {
+      // Do not hand the stalled connection to another worker
+      sessions.flushIdle();
+    }
+  }
+
+  private void fail(ExportJob arg0, Throwable arg1) {
+    if (null != arg0.partFile) {
+      FileUtils.deleteQuietly(arg0.partFile);
+    }
+    if ((arg1 instanceof InterruptedException) || (arg1 instanceof RejectedExecutionException)) {
+      arg0.callback.accept(arg1);
+      return;
+    }
+    pipeline.recordFailure();
+    DfLogger.error(
+        this, "Error processing candidate {0}", new String[] {arg0.item.toString()}, arg1);
+    printWarning(WARN_LEVEL, String.format("Error processing candidate: %s", arg1.getMessage()));
+    arg0.callback.accept(
+        new ItemFailedException(
+            String.format("Documentum Error Processing List: %s", arg1.getMessage()), arg1));
   }
 
   /**
@@ -234,6 +415,24 @@ public class ExportQueueItemProcessor extends AbstractCmd {
     }
   }
 
+  /**
+   * Record that an item will not be tried again in this run.
+   *
+   * @param arg0 The item, with its attempts set
+   * @param arg1 The last failure
+   */
+  public void markFailed(ExportQueueItem arg0, Throwable arg1)
+      throws UtilsException, InterruptedException {
+    Throwable cause = (null == arg1.getCause()) ? arg1 : arg1.getCause();
+    String error = String.valueOf(cause.getMessage());
+    statusWriter.markItemFailed(arg0, error);
+    printWarning(
+        WARN_LEVEL,
+        String.format(
+            "Object %s failed after %d attempts: %s",
+            arg0.getObjectIdString(), arg0.getAttempts(), error));
+  }
+
   private void printWarning(String level, String message) {
     warningStream.println(String.format("%s: %s", level, message));
   }
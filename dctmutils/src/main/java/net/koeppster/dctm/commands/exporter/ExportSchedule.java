@@ -0,0 +1,321 @@
+package net.koeppster.dctm.commands.exporter;
+
+import com.documentum.fc.common.DfLogger;
+import java.time.DayOfWeek;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * The times the export may run.  A schedule is a list of windows separated by <code>;</code>, each
+ * with the days it opens on, a start and end time and optionally its own settings:
+ *
+ * <pre>
+ * Mon-Fri 20:00-06:00 threads=4 objectrate=20; Sat,Sun 00:00-24:00 threads=16
+ * </pre>
+ *
+ * <p>Days are <code>Mon</code> to <code>Sun</code>, as a range or a comma separated list, or
+ * <code>*</code> for every day.  A window ending before it starts runs past midnight into the next
+ * day.  The settings are <code>threads</code> and the {@link RepositoryThrottle} limits; a setting
+ * left out keeps the value given on the command line.
+ *
+ * <p>While no window is open {@link #awaitOpen(long, TimeUnit)} holds new items back, so the
+ * workers finish what they have and then sit idle with the JVM and caches still up.  The schedule
+ * checks the time every few seconds and reports each change of window to a listener (with null
+ * once the last window closes), which applies the window's settings.
+ */
+public class ExportSchedule implements DispatchGate {
+
+  // How often the schedule checks for a change of window
+  private static final long CHECK_MILLIS = 10000;
+  // Minutes in a day; also the minute a window ending at 24:00 ends
+  private static final int DAY_MINUTES = 24 * 60;
+
+  /** One window of the schedule.  Settings not given are -1. */
+  public static class Window {
+    private final EnumSet<DayOfWeek> days;
+    private final int start;
+    private final int end;
+    private final String text;
+    private int threads = -1;
+    private int objectRate = -1;
+    private int kbRate = -1;
+    private int queryRate = -1;
+
+    private Window(EnumSet<DayOfWeek> days, int start, int end, String text) {
+      this.days = days;
+      this.start = start;
+      this.end = end;
+      this.text = text;
+    }
+
+    /** Returns true if the window is open at the given time. */
+    public boolean contains(LocalDateTime arg0) {
+      int minute = arg0.getHour() * 60 + arg0.getMinute();
+      DayOfWeek day = arg0.getDayOfWeek();
+      if (start < end) {
+        return days.contains(day) && (minute >= start) && (minute < end);
+      }
+      // Past midnight: the evening of an open day or the morning after one
+      return (days.contains(day) && (minute >= start))
+          || (days.contains(day.minus(1)) && (minute < end));
+    }
+
+    public int getThreads() {
+      return threads;
+    }
+
+    public int getObjectRate() {
+      return objectRate;
+    }
+
+    public int getKbRate() {
+      return kbRate;
+    }
+
+    public int getQueryRate() {
+      return queryRate;
+    }
+
+    @Override
+    public String toString() {
+      return text;
+    }
+  }
+
+  private final List<Window> windows;
+  private final Consumer<Window> listener;
+  private final Object lock = new Object();
+  private final Thread thread;
+  private volatile boolean closed = false;
+  private Window current = null;
+  private boolean open = false;
+
+  /**
+   * @param windows The windows, as described above
+   * @param listener Told about every change of window (may be null)
+   * @throws IllegalArgumentException If the windows cannot be parsed
+   */
+  public ExportSchedule(String windows, Consumer<Window> listener) {
+    this.windows = Collections.unmodifiableList(parse(windows));
+    this.listener = listener;
+    this.thread = new Thread(this::run, "export-schedule");
+    thread.setDaemon(true);
+  }
+
+  /** Check the time now and every few seconds from now on. */
+  public void start() {
+    update(LocalDateTime.now());
+    thread.start();
+  }
+
+  private void run() {
+    while (!closed) {
+      try {
+        Thread.sleep(CHECK_MILLIS);
+      } catch (InterruptedException e) {
+        return;
+      }
+      update(LocalDateTime.now());
+    }
+  }
+
+  private void update(LocalDateTime arg0) {
+    Window next = find(arg0);
+    synchronized (lock) {
+      if ((next == current) && (open == (null != next))) {
+        return;
+      }
+      current = next;
+      open = (null != next);
+      lock.notifyAll();
+    }
+    if (null == next) {
+      DfLogger.info(this, "Outside the export windows, pausing", null, null);
+    } else {
+      DfLogger.info(this, "Export window {0} is open", new String[] {next.toString()}, null);
+    }
+    if (null != listener) {
+      try {
+        listener.accept(next);
+      } catch (RuntimeException e) {
+        DfLogger.warn(this, "Error applying the export window", null, e);
+      }
+    }
+  }
+
+  /**
+   * Returns the window open at the given time.
+   *
+   * @return The first window containing the time, or null if none does
+   */
+  public Window find(LocalDateTime arg0) {
+    for (Window window : windows) {
+      if (window.contains(arg0)) {
+        return window;
+      }
+    }
+    return null;
+  }
+
+  public List<Window> getWindows() {
+    return windows;
+  }
+
+  /** Returns true if a window is open. */
+  @Override
+  public boolean isOpen() {
+    synchronized (lock) {
+      return open;
+    }
+  }
+
+  /**
+   * Wait for a window to be open.
+   *
+   * @return false if no window opened within the timeout
+   */
+  @Override
+  public boolean awaitOpen(long arg0, TimeUnit arg1) throws InterruptedException {
+    long deadline = System.nanoTime() + arg1.toNanos(arg0);
+    synchronized (lock) {
+      while (!open && !closed) {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+          return false;
+        }
+        TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+      }
+      return true;
+    }
+  }
+
+  /** Stop checking the time and let everything through. */
+  public void close() {
+    closed = true;
+    thread.interrupt();
+    synchronized (lock) {
+      lock.notifyAll();
+    }
+  }
+
+  private static List<Window> parse(String arg0) {
+    List<Window> result = new ArrayList<Window>();
+    for (String spec : arg0.split(";")) {
+      if (!spec.trim().isEmpty()) {
+        result.add(parseWindow(spec.trim()));
+      }
+    }
+    if (result.isEmpty()) {
+      throw new IllegalArgumentException("The schedule has no windows");
+    }
+    return result;
+  }
+
+  private static Window parseWindow(String arg0) {
+    String[] parts = arg0.split("\\s+");
+    if (parts.length < 2) {
+      throw new IllegalArgumentException(
+          String.format("Window \"%s\" needs days and a time range", arg0));
+    }
+    String[] times = parts[1].split("-");
+    if (times.length != 2) {
+      throw new IllegalArgumentException(
+          String.format("Window \"%s\" has no start-end time range", arg0));
+    }
+    int start = parseTime(times[0]);
+    int end = parseTime(times[1]);
+    if ((start == end) || (start == DAY_MINUTES)) {
+      throw new IllegalArgumentException(String.format("Window \"%s\" is empty", arg0));
+    }
+    Window window = new Window(parseDays(parts[0]), start, end, arg0);
+    for (int i = 2; i < parts.length; i++) {
+      String[] setting = parts[i].split("=", 2);
+      int value;
+      try {
+        value = (setting.length == 2) ? Integer.parseInt(setting[1]) : -1;
+      } catch (NumberFormatException e) {
+        value = -1;
+      }
+      if (value < 0) {
+        throw new IllegalArgumentException(
+            String.format("Window \"%s\" has an invalid setting %s", arg0, parts[i]));
+      }
+      switch (setting[0].toLowerCase(Locale.ROOT)) {
+        case "threads":
+          window.threads = Math.max(1, value);
+          break;
+        case RepositoryThrottle.OBJECT_RATE:
+          window.objectRate = value;
+          break;
+        case RepositoryThrottle.KB_RATE:
+          window.kbRate = value;
+          break;
+        case RepositoryThrottle.QUERY_RATE:
+          window.queryRate = value;
+          break;
+        default:
+          throw new IllegalArgumentException(
+              String.format("Window \"%s\" has an unknown setting %s", arg0, setting[0]));
+      }
+    }
+    return window;
+  }
+
+  private static int parseTime(String arg0) {
+    String[] hm = arg0.split(":");
+    try {
+      int hours = Integer.parseInt(hm[0]);
+      int minutes = (hm.length > 1) ? Integer.parseInt(hm[1]) : 0;
+      int total = hours * 60 + minutes;
+      if ((hm.length <= 2) && (hours >= 0) && (minutes >= 0) && (minutes < 60)
+          && (total <= DAY_MINUTES)) {
+        return total;
+      }
+    } catch (NumberFormatException e) {
+      // Reported below
+    }
+    throw new IllegalArgumentException(String.format("Invalid time %s", arg0));
+  }
+
+  private static EnumSet<DayOfWeek> parseDays(String arg0) {
+    if ("*".equals(arg0)) {
+      return EnumSet.allOf(DayOfWeek.class);
+    }
+    EnumSet<DayOfWeek> days = EnumSet.noneOf(DayOfWeek.class);
+    for (String item : arg0.split(",")) {
+      String[] range = item.split("-");
+      if (range.length == 1) {
+        days.add(parseDay(range[0]));
+      } else if (range.length == 2) {
+        DayOfWeek day = parseDay(range[0]);
+        DayOfWeek last = parseDay(range[1]);
+        days.add(day);
+        while (day != last) {
+          day = day.plus(1);
+          days.add(day);
+        }
+      } else {
+        throw new IllegalArgumentException(String.format("Invalid days %s", arg0));
+      }
+    }
+    return days;
+  }
+
+  private static DayOfWeek parseDay(String arg0) {
+    String prefix = arg0.trim().toUpperCase(Locale.ROOT);
+    if (prefix.length() >= 3) {
+      for (DayOfWeek day : DayOfWeek.values()) {
+        if (day.name().startsWith(prefix)) {
+          return day;
+        }
+      }
+    }
+    throw new IllegalArgumentException(String.format("Invalid day %s", arg0));
+  }
+}
@@ -0,0 +1,65 @@
+package net.koeppster.dctm.commands.exporter;
+
+import com.documentum.fc.common.DfException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.AccessDeniedException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Sorts item failures into transient ones, worth retrying, and permanent ones.  The whole cause
+ * chain is checked:
+ *
+ * <ul>
+ *   <li>Network and I/O errors (<code>java.net</code> exceptions, timeouts and other
+ *       <code>IOException</code>s) are transient, except a local file that cannot be found or
+ *       written
+ *   <li>A <code>DfException</code> is transient if its message id names a timeout, connection, RPC,
+ *       lock or busy condition
+ *   <li>Anything else (missing objects, bad content, bugs) is permanent
+ * </ul>
+ */
+public final class FailureClassifier {
+
+  private static final String[] TRANSIENT_MESSAGE_ID_WORDS = {
+    "TIMEOUT", "TIMED_OUT", "CONNECT", "NETWORK", "RPC", "SOCKET", "DEADLOCK", "LOCKED", "BUSY",
+    "TOO_MANY", "UNAVAILABLE"
+  };
+
+  private FailureClassifier() {}
+
+  /**
+   * @param arg0 The failure
+   * @return true if trying the item again may succeed
+   */
+  public static boolean isTransient(Throwable arg0) {
+    for (Throwable cause = arg0; null != cause; cause = cause.getCause()) {
+      if ((cause instanceof FileNotFoundException) || (cause instanceof AccessDeniedException)) {
+        return false;
+      }
+      if ((cause instanceof IOException) || (cause instanceof TimeoutException)) {
+        return true;
+      }
+      if ((cause instanceof DfException) && isTransientMessageId((DfException) cause)) {
+        return true;
+      }
+      if (cause == cause.getCause()) {
+        break;
+      }
+    }
+    return false;
+  }
+
+  private static boolean isTransientMessageId(DfException arg0) {
+    String messageId = arg0.getMessageId();
+    if (null == messageId) {
+      return false;
+    }
+    for (String word : TRANSIENT_MESSAGE_ID_WORDS) {
+      if (messageId.contains(word)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,49 @@
+package net.koeppster.dctm.commands.exporter;
+
+import com.documentum.fc.client.IDfFolder;
+import com.documentum.fc.client.IDfSession;
+import com.documentum.fc.common.DfException;
+import com.documentum.fc.common.IDfId;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Remembers the first path of each folder so it is fetched once per run instead of once per
+ * exported object.  Only the path string is kept, not the <code>IDfFolder</code>, and the number of
+ * folders is bounded so memory stays flat however long the run is.  A folder renamed during the
+ * run keeps its old path until it is evicted.
+ */
+public class FolderPathCache {
+
+  private final Cache<String, String> paths;
+
+  /** @param arg0 The maximum number of folder paths kept */
+  public FolderPathCache(long arg0) {
+    this.paths = CacheBuilder.newBuilder().maximumSize(Math.max(1, arg0)).build();
+  }
+
+  /**
+   * Returns the first folder path of a folder, fetching it if it is not cached.
+   *
+   * @param arg0 The session used to fetch the folder
+   * @param arg1 The folder id
+   */
+  public String getPath(IDfSession arg0, IDfId arg1) throws DfException {
+    try {
+      return paths.get(
+          arg1.getId(), () -> ((IDfFolder) arg0.getObject(arg1)).getFolderPath(0));
+    } catch (ExecutionException | UncheckedExecutionException e) {
+      if (e.getCause() instanceof DfException) {
+        throw (DfException) e.getCause();
+      }
+      throw new IllegalStateException(
+          String.format("Error reading folder %s: %s", arg1.getId(), e.getMessage()), e);
+    }
+  }
+
+  public long size() {
+    return paths.size();
+  }
+}
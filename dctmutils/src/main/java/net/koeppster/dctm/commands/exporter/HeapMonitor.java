@@ -0,0 +1,60 @@
+package net.koeppster.dctm.commands.exporter;
+
+import com.documentum.fc.common.DfLogger;
+import java.util.function.Supplier;
+
+/**
+ * Logs heap use at a fixed interval, together with a short description of what the export holds
+ * in memory (pinned sessions, cached folder paths), and keeps the peak for the end-of-run report.
+ */
+public class HeapMonitor {
+
+  private static final long MB = 1024L * 1024L;
+
+  private final long interval;
+  private final Supplier<String> details;
+  private final Thread thread;
+  private volatile long peak = 0;
+  private volatile boolean closed = false;
+
+  /**
+   * @param interval Milliseconds between reports
+   * @param details Describes the export's caches, added to each report
+   */
+  public HeapMonitor(long interval, Supplier<String> details) {
+    this.interval = Math.max(1000, interval);
+    this.details = details;
+    this.thread = new Thread(this::run, "heap-monitor");
+    thread.setDaemon(true);
+  }
+
+  public void start() {
+    thread.start();
+  }
+
+  private void run() {
+    while (!closed) {
+      try {
+        Thread.sleep(interval);
+      } catch (InterruptedException e) {
+        return;
+      }
+      DfLogger.info(this, "{0}", new String[] {report()}, null);
+    }
+  }
+
+  /** Returns the current and peak heap use and the cache details. */
+  public String report() {
+    Runtime runtime = Runtime.getRuntime();
+    long used = runtime.totalMemory() - runtime.freeMemory();
+    peak = Math.max(peak, used);
+    return String.format(
+        "Heap used %d MB (peak %d MB) of %d MB, %s",
+        used / MB, peak / MB, runtime.maxMemory() / MB, details.get());
+  }
+
+  public void close() {
+    closed = true;
+    thread.interrupt();
+  }
+}
@@ -22,11 +22,13 @@ public class IDfCollectionIterator implements Iterator<ExportQueueItem> {
         if (!hasNextCalled) {
             try {
                 hasNext = collection.next();
-                if (hasNext) 
+                if (hasNext) {
                     lastItem = new ExportQueueItem(collection.getId("i_chronicle_id").getId(), 
                                                    collection.getId("r_object_id").getId(),
                                                    collection.getTime("r_modify_date").getDate(),
                                                    ExportQueueItem.ItemStatus.READY);
+                    lastItem.setContentSize(collection.getLong("r_content_size"));
+                }
                 
             } catch (DfException e) {
                 DfLogger.error(this, "Error while checking for next element in IDfCollection", null, e);
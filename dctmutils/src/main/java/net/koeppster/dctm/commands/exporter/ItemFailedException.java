@@ -0,0 +1,17 @@
+package net.koeppster.dctm.commands.exporter;
+
+import net.koeppster.dctm.utils.UtilsException;
+
+/**
+ * Thrown by {@link ExportQueueItemProcessor} when exporting one item fails.  Unlike other
+ * exceptions from the processor it does not stop the export; the item is retried or moved to
+ * FAILED depending on {@link FailureClassifier}.
+ */
+public class ItemFailedException extends UtilsException {
+
+  private static final long serialVersionUID = 1L;
+
+  public ItemFailedException(String message, Throwable cause) {
+    super(message, cause);
+  }
+}
@@ -0,0 +1,71 @@
+package net.koeppster.dctm.commands.exporter;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Decides whether an IN_PROESS item is still being worked on.  An item marked in progress records
+ * its owner (<code>host/pid</code> of the export process) and when its lease runs out.  The item is
+ * abandoned once the lease has expired, if it has no owner (written by a store that does not keep
+ * one), or straight away if its owner was a process on this host that is no longer running.  A
+ * live run keeps renewing the leases of its items (see {@link QueueStatusWriter}).
+ */
+public final class ItemLease {
+
+  private static final String HOST = getHostName();
+  private static final String OWNER =
+      HOST.concat("/").concat(Long.toString(ProcessHandle.current().pid()));
+
+  private ItemLease() {}
+
+  /** The owner recorded for items marked in progress by this process. */
+  public static String currentOwner() {
+    return OWNER;
+  }
+
+  /**
+   * @param arg0 An IN_PROESS item
+   * @param arg1 The current time in milliseconds
+   * @return true if no live process holds the item
+   */
+  public static boolean isAbandoned(ExportQueueItem arg0, long arg1) {
+    String owner = arg0.getOwner();
+    if ((null == owner) || (arg0.getLeaseExpiry() <= arg1)) {
+      return true;
+    }
+    if (OWNER.equals(owner)) {
+      return false;
+    }
+    int slash = owner.lastIndexOf('/');
+    if ((slash < 0) || !owner.substring(0, slash).equals(HOST)) {
+      return false;
+    }
+    try {
+      long pid = Long.parseLong(owner.substring(slash + 1));
+      return !ProcessHandle.of(pid).map(ProcessHandle::isAlive).orElse(false);
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+
+  /**
+   * @param arg0 The stored item
+   * @param arg1 A status change for the same version
+   * @return true if the change only renews the lease its owner already holds on the item
+   */
+  public static boolean isRenewal(ExportQueueItem arg0, ExportQueueItem arg1) {
+    return (ExportQueueItem.ItemStatus.IN_PROESS == arg1.getStatus())
+        && (ExportQueueItem.ItemStatus.IN_PROESS == arg0.getStatus())
+        && (null != arg1.getOwner())
+        && arg1.getOwner().equals(arg0.getOwner())
+        && (arg1.getLeaseExpiry() > arg0.getLeaseExpiry());
+  }
+
+  private static String getHostName() {
+    try {
+      return InetAddress.getLocalHost().getHostName();
+    } catch (UnknownHostException e) {
+      return "localhost";
+    }
+  }
+}
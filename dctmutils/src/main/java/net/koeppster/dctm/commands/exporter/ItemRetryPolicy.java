@@ -0,0 +1,68 @@
+package net.koeppster.dctm.commands.exporter;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * When and how often a failed item is tried again.  Only transient failures (see {@link
+ * FailureClassifier}) are retried, at most <code>maxRetries</code> times.  The delay doubles with
+ * each attempt up to <code>maxDelay</code> and half of it is random, so items that failed together
+ * (for example during a repository restart) do not all come back at once.
+ *
+ * <p>Retries are scheduled on a single daemon thread so no worker sits idle during a backoff.
+ */
+public class ItemRetryPolicy {
+
+  private final int maxRetries;
+  private final long baseDelay;
+  private final long maxDelay;
+  private final ScheduledExecutorService scheduler =
+      Executors.newSingleThreadScheduledExecutor(
+          r -> {
+            Thread thread = new Thread(r, "item-retry");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  /**
+   * @param maxRetries Number of retries after the first attempt
+   * @param baseDelay Milliseconds before the first retry
+   * @param maxDelay Upper limit of the delay in milliseconds
+   */
+  public ItemRetryPolicy(int maxRetries, long baseDelay, long maxDelay) {
+    this.maxRetries = Math.max(0, maxRetries);
+    this.baseDelay = Math.max(1, baseDelay);
+    this.maxDelay = Math.max(this.baseDelay, maxDelay);
+  }
+
+  /**
+   * @param arg0 Attempts made so far, including the one that failed
+   * @param arg1 The failure
+   */
+  public boolean shouldRetry(int arg0, Throwable arg1) {
+    return (arg0 <= maxRetries) && FailureClassifier.isTransient(arg1);
+  }
+
+  /**
+   * Returns the delay before the next attempt, between half and all of <code>baseDelay *
+   * 2^(attempts - 1)</code> capped at <code>maxDelay</code>.
+   *
+   * @param arg0 Attempts made so far
+   */
+  public long getDelay(int arg0) {
+    int shift = Math.min(Math.max(0, arg0 - 1), 30);
+    long cap = Math.min(maxDelay, baseDelay << shift);
+    return cap / 2 + ThreadLocalRandom.current().nextLong(cap / 2 + 1);
+  }
+
+  public void schedule(Runnable arg0, long arg1) {
+    scheduler.schedule(arg0, arg1, TimeUnit.MILLISECONDS);
+  }
+
+  /** Drop the retries that have not run yet. */
+  public void shutdown() {
+    scheduler.shutdownNow();
+  }
+}
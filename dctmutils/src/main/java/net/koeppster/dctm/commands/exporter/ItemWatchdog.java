@@ -0,0 +1,261 @@
+package net.koeppster.dctm.commands.exporter;
+
+import com.documentum.fc.common.DfLogger;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Gives up on items whose worker is stuck, typically in <code>getObject()</code> or
+ * <code>getFile()</code> on a stalled connection.  A worker registers each item with {@link
+ * #begin(ExportQueueItem, StallHandler)} and names the stage it enters with {@link
+ * #enterStage(String)}.  An item that runs longer than the item deadline, or stays in one stage
+ * longer than the stage deadline, is abandoned:
+ *
+ * <ul>
+ *   <li>The stall is logged and the handler is called, so the dispatcher can requeue the item and
+ *       replace the worker
+ *   <li>The worker thread is interrupted; DFC calls blocked on a socket may not notice, so the
+ *       worker also checks at its next stage and drops its work
+ * </ul>
+ *
+ * <p>An item moving between {@link ExportPipeline} stages is {@link #detach() detached} from the
+ * worker handing it on and {@link #attach(Ticket) attached} to the one picking it up.  While it
+ * waits in a stage queue only the item deadline applies.
+ *
+ * <p>Whichever of the worker ({@link Ticket#finish()}) and the watchdog claims the item first owns
+ * its outcome; the other side does nothing.
+ */
+public class ItemWatchdog {
+
+  // How often the running items are checked
+  private static final long CHECK_MILLIS = 1000;
+
+  private static final ThreadLocal<Ticket> CURRENT = new ThreadLocal<Ticket>();
+
+  /** Called on the watchdog thread when an item is abandoned. */
+  public interface StallHandler {
+    /**
+     * @param item The abandoned item
+     * @param stage The stage it stalled in
+     * @param elapsedMillis Time since the item started
+     * @param worker The worker that was interrupted, or null if the item was waiting in a queue
+     */
+    void stalled(ExportQueueItem item, String stage, long elapsedMillis, Thread worker);
+  }
+
+  /** One item being processed by one worker. */
+  public class Ticket {
+    private final ExportQueueItem item;
+    private final StallHandler handler;
+    private volatile Thread thread = Thread.currentThread();
+    private Thread stuckWorker = null;
+    private final long started = System.currentTimeMillis();
+    private volatile String stage = "start";
+    private volatile long stageStarted = started;
+    private final AtomicBoolean claimed = new AtomicBoolean(false);
+
+    private Ticket(ExportQueueItem item, StallHandler handler) {
+      this.item = item;
+      this.handler = handler;
+    }
+
+    /**
+     * Called by the worker once it is done with the item.
+     *
+     * @return false if the watchdog already abandoned the item and the result must be dropped
+     */
+    public boolean finish() {
+      CURRENT.remove();
+      running.remove(this);
+      synchronized (this) {
+        if (claimed.compareAndSet(false, true)) {
+          return true;
+        }
+        if (stuckWorker == Thread.currentThread()) {
+          // Clear the watchdog's interrupt so it does not hit the worker's next item
+          Thread.interrupted();
+        }
+        return false;
+      }
+    }
+
+    /** Returns the worker that was interrupted when the item was abandoned, if any. */
+    public synchronized Thread getStuckWorker() {
+      return stuckWorker;
+    }
+
+    /** Claim the item for the watchdog and interrupt its worker. */
+    private boolean abandon() {
+      synchronized (this) {
+        if (!claimed.compareAndSet(false, true)) {
+          return false;
+        }
+        stuckWorker = thread;
+        if (null != stuckWorker) {
+          stuckWorker.interrupt();
+        }
+        return true;
+      }
+    }
+
+    private boolean isAbandoned() {
+      return claimed.get();
+    }
+  }
+
+  private final long itemTimeout;
+  private final long stageTimeout;
+  private final Set<Ticket> running = ConcurrentHashMap.newKeySet();
+  private final AtomicLong stalledCount = new AtomicLong(0);
+  private final Thread thread;
+  private volatile boolean closed = false;
+
+  /**
+   * @param itemTimeout Milliseconds an item may take in total (0 for no limit)
+   * @param stageTimeout Milliseconds an item may spend in one stage (0 for no limit)
+   */
+  public ItemWatchdog(long itemTimeout, long stageTimeout) {
+    this.itemTimeout = Math.max(0, itemTimeout);
+    this.stageTimeout = Math.max(0, stageTimeout);
+    this.thread = new Thread(this::run, "item-watchdog");
+    thread.setDaemon(true);
+  }
+
+  public void start() {
+    thread.start();
+  }
+
+  /**
+   * Start watching an item on the calling thread.
+   *
+   * @param arg0 The item
+   * @param arg1 Called if the item is abandoned
+   */
+  public Ticket begin(ExportQueueItem arg0, StallHandler arg1) {
+    Ticket ticket = new Ticket(arg0, arg1);
+    CURRENT.set(ticket);
+    running.add(ticket);
+    return ticket;
+  }
+
+  /**
+   * Record that the calling worker enters a stage.  Does nothing if the thread's item is not
+   * watched.
+   *
+   * @param arg0 The stage name, used in the stall report
+   * @throws InterruptedException If the item was abandoned and the worker should stop
+   */
+  public static void enterStage(String arg0) throws InterruptedException {
+    Ticket ticket = CURRENT.get();
+    if (null == ticket) {
+      return;
+    }
+    if (ticket.isAbandoned()) {
+      throw new InterruptedException(
+          String.format("Abandoned after stalling in %s", ticket.stage));
+    }
+    ticket.stage = arg0;
+    ticket.stageStarted = System.currentTimeMillis();
+  }
+
+  /**
+   * Detach the calling worker's item before handing it to another stage.
+   *
+   * @return The ticket to pass to {@link #attach(Ticket)}, or null if the item is not watched
+   * @throws InterruptedException If the item was abandoned and must not be handed on
+   */
+  public static Ticket detach() throws InterruptedException {
+    Ticket ticket = CURRENT.get();
+    if (null == ticket) {
+      return null;
+    }
+    synchronized (ticket) {
+      if (ticket.isAbandoned()) {
+        throw new InterruptedException(
+            String.format("Abandoned after stalling in %s", ticket.stage));
+      }
+      ticket.thread = null;
+      ticket.stage = "queued";
+    }
+    CURRENT.remove();
+    return ticket;
+  }
+
+  /**
+   * Attach an item handed on by another stage to the calling worker.
+   *
+   * @param arg0 The ticket returned by {@link #detach()} (may be null)
+   */
+  public static void attach(Ticket arg0) {
+    if (null == arg0) {
+      return;
+    }
+    synchronized (arg0) {
+      arg0.thread = Thread.currentThread();
+      arg0.stageStarted = System.currentTimeMillis();
+    }
+    CURRENT.set(arg0);
+  }
+
+  /** Returns true if the item of the calling worker was abandoned. */
+  public static boolean isCurrentAbandoned() {
+    Ticket ticket = CURRENT.get();
+    return (null != ticket) && ticket.isAbandoned();
+  }
+
+  /** Returns the number of items abandoned so far. */
+  public long getStalled() {
+    return stalledCount.get();
+  }
+
+  private void run() {
+    while (!closed) {
+      try {
+        Thread.sleep(CHECK_MILLIS);
+      } catch (InterruptedException e) {
+        return;
+      }
+      long now = System.currentTimeMillis();
+      for (Ticket ticket : running) {
+        boolean overItem = (itemTimeout > 0) && (now - ticket.started > itemTimeout);
+        boolean overStage =
+            (stageTimeout > 0)
+                && (null != ticket.thread)
+                && (now - ticket.stageStarted > stageTimeout);
+        if ((overItem || overStage) && ticket.abandon()) {
+          running.remove(ticket);
+          stalled(ticket, now);
+        }
+      }
+    }
+  }
+
+  private void stalled(Ticket arg0, long arg1) {
+    stalledCount.incrementAndGet();
+    long elapsed = arg1 - arg0.started;
+    Thread worker = arg0.getStuckWorker();
+    DfLogger.warn(
+        this,
+        "Object {0} stalled in {1} on {2}, abandoning after {3}ms",
+        new String[] {
+          arg0.item.getObjectIdString(),
+          arg0.stage,
+          (null == worker) ? "no worker" : worker.getName(),
+          Long.toString(elapsed)
+        },
+        null);
+    try {
+      arg0.handler.stalled(arg0.item, arg0.stage, elapsed, worker);
+    } catch (RuntimeException e) {
+      DfLogger.error(this, "Error requeueing stalled item", null, e);
+    }
+  }
+
+  /** Stop watching; items still running are left to finish. */
+  public void close() {
+    closed = true;
+    thread.interrupt();
+  }
+}
@@ -0,0 +1,300 @@
+package net.koeppster.dctm.commands.exporter;
+
+import com.documentum.fc.common.DfLogger;
+import com.google.common.io.CountingInputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import net.koeppster.dctm.utils.UtilsException;
+
+/**
+ * {@link QueueStore} that keeps the items in memory (see {@link MemoryQueueStore}) and appends every
+ * change to a journal file.  Writes are sequential and uncompressed, so status churn costs one
+ * small record per item instead of rewriting database pages.
+ *
+ * <p>At startup the journal is replayed to rebuild the items and checkpoints; a record cut short by
+ * a crash is dropped.  Once the journal holds more than {@link #COMPACT_RATIO} records per live
+ * entry it is rewritten with one record per item and checkpoint and swapped in with an atomic
+ * rename.  Each batch of changes is forced to disk before the call returns.
+ *
+ * <p>Items are journaled with their content size.  Journals written before the size was kept
+ * replay with a size of 0.
+ *
+ * <p>Leases, attempts and errors are not journaled, so IN_PROESS items replay without an owner and
+ * are released by the startup recovery (see {@link ItemLease}), and FAILED items replay without
+ * their error.  Only one process can use a journal at a time.
+ */
+public class JournalQueueStore extends MemoryQueueStore {
+
+  private static final int MAGIC = 0x444a5131; // "DJQ1"
+  private static final byte RECORD_ITEM = 'I';
+  private static final byte RECORD_SIZED_ITEM = 'S';
+  private static final byte RECORD_CHECKPOINT = 'C';
+  private static final byte RECORD_REMOVE_CHECKPOINT = 'R';
+  private static final ExportQueueItem.ItemStatus[] STATUSES = ExportQueueItem.ItemStatus.values();
+
+  // Compact when the journal is this many times larger than the live entries...
+  public static final int COMPACT_RATIO = 4;
+  // ...and holds at least this many records
+  private static final long COMPACT_MIN_RECORDS = 100000;
+
+  private final File file;
+  private FileOutputStream fileOut = null;
+  private DataOutputStream out = null;
+  private long records = 0;
+
+  /**
+   * @param arg0 The journal file
+   * @param arg1 If true any existing journal is discarded
+   */
+  public JournalQueueStore(File arg0, boolean arg1) throws UtilsException {
+    this.file = arg0;
+    try {
+      if (arg1) {
+        Files.deleteIfExists(file.toPath());
+      }
+      if (file.exists() && (file.length() > 0)) {
+        replay();
+        openForAppend();
+      } else {
+        openNew();
+      }
+    } catch (IOException e) {
+      throw new UtilsException(
+          String.format("Error opening queue journal %s: %s", file, e.getMessage()), e);
+    }
+    DfLogger.info(
+        this,
+        "Opened queue journal {0} with {1} items",
+        new String[] {file.getAbsolutePath(), Integer.toString(items.size())},
+        null);
+  }
+
+  private void replay() throws IOException, UtilsException {
+    long goodLength = 0;
+    try (CountingInputStream counter =
+            new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
+        DataInputStream in = new DataInputStream(counter)) {
+      if (in.readInt() != MAGIC) {
+        throw new UtilsException(
+            String.format("%s is not a queue journal, rerun with --reset", file));
+      }
+      goodLength = counter.getCount();
+      while (true) {
+        int type = in.read();
+        if (type < 0) {
+          break;
+        }
+        if ((RECORD_ITEM == type) || (RECORD_SIZED_ITEM == type)) {
+          long chronicleId = in.readLong();
+          long objectId = in.readLong();
+          long modifiedDate = in.readLong();
+          int status = in.readByte();
+          if ((status < 0) || (status >= STATUSES.length)) {
+            // Garbage rather than a record, so the journal ends here like at a torn tail
+            DfLogger.warn(
+                this,
+                "Bad item status at offset {0} of queue journal",
+                new String[] {Long.toString(goodLength)},
+                null);
+            break;
+          }
+          ExportQueueItem item =
+              new ExportQueueItem(chronicleId, objectId, modifiedDate, STATUSES[status]);
+          if (RECORD_SIZED_ITEM == type) {
+            item.setContentSize(in.readLong());
+          }
+          items.put(chronicleId, item);
+        } else if (RECORD_CHECKPOINT == type) {
+          String key = in.readUTF();
+          checkpoints.put(key, in.readUTF());
+        } else if (RECORD_REMOVE_CHECKPOINT == type) {
+          checkpoints.remove(in.readUTF());
+        } else {
+          DfLogger.warn(
+              this,
+              "Unknown record at offset {0} of queue journal",
+              new String[] {Long.toString(goodLength)},
+              null);
+          break;
+        }
+        records++;
+        goodLength = counter.getCount();
+      }
+    } catch (EOFException e) {
+      DfLogger.warn(
+          this,
+          "Queue journal ends with a partial record, truncating to {0} bytes",
+          new String[] {Long.toString(goodLength)},
+          null);
+    }
+    if (goodLength < file.length()) {
+      try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+        raf.setLength(goodLength);
+      }
+    }
+  }
+
+  private void openNew() throws IOException {
+    fileOut = new FileOutputStream(file, false);
+    out = new DataOutputStream(new BufferedOutputStream(fileOut));
+    out.writeInt(MAGIC);
+    records = 0;
+    sync();
+  }
+
+  private void openForAppend() throws IOException {
+    fileOut = new FileOutputStream(file, true);
+    out = new DataOutputStream(new BufferedOutputStream(fileOut));
+  }
+
+  @Override
+  public synchronized void putCheckpoint(String arg0, String arg1) {
+    super.putCheckpoint(arg0, arg1);
+    try {
+      writeCheckpoint(out, arg0, arg1);
+      records++;
+      commit();
+    } catch (IOException e) {
+      throw new UncheckedIOException("Error writing queue journal", e);
+    }
+  }
+
+  @Override
+  public synchronized void removeCheckpoint(String arg0) {
+    if (null == super.getCheckpoint(arg0)) {
+      return;
+    }
+    super.removeCheckpoint(arg0);
+    try {
+      out.writeByte(RECORD_REMOVE_CHECKPOINT);
+      out.writeUTF(arg0);
+      records++;
+      commit();
+    } catch (IOException e) {
+      throw new UncheckedIOException("Error writing queue journal", e);
+    }
+  }
+
+  @Override
+  public synchronized List<ExportQueueItem> putItems(List<ExportQueueItem> arg0) {
+    List<ExportQueueItem> ready = super.putItems(arg0);
+    writeItems(ready);
+    return ready;
+  }
+
+  @Override
+  protected List<ExportQueueItem> applyStatuses(Collection<ExportQueueItem> arg0) {
+    List<ExportQueueItem> updated = super.applyStatuses(arg0);
+    writeItems(updated);
+    return updated;
+  }
+
+  private void writeItems(Collection<ExportQueueItem> arg0) {
+    if (arg0.isEmpty()) {
+      return;
+    }
+    try {
+      for (ExportQueueItem item : arg0) {
+        writeItem(out, item);
+      }
+      records += arg0.size();
+      commit();
+    } catch (IOException e) {
+      throw new UncheckedIOException("Error writing queue journal", e);
+    }
+  }
+
+  private static void writeItem(DataOutputStream arg0, ExportQueueItem arg1) throws IOException {
+    arg0.writeByte(RECORD_SIZED_ITEM);
+    arg0.writeLong(arg1.getChronicleId());
+    arg0.writeLong(arg1.getObjectId());
+    arg0.writeLong(arg1.getModifiedDate());
+    arg0.writeByte(arg1.getStatus().ordinal());
+    arg0.writeLong(arg1.getContentSize());
+  }
+
+  private static void writeCheckpoint(DataOutputStream arg0, String arg1, String arg2)
+      throws IOException {
+    arg0.writeByte(RECORD_CHECKPOINT);
+    arg0.writeUTF(arg1);
+    arg0.writeUTF(arg2);
+  }
+
+  private void commit() throws IOException {
+    sync();
+    long live = items.size() + checkpoints.size();
+    if ((records >= COMPACT_MIN_RECORDS) && (records > live * COMPACT_RATIO)) {
+      compact();
+    }
+  }
+
+  private void sync() throws IOException {
+    out.flush();
+    fileOut.getChannel().force(false);
+  }
+
+  /** Rewrite the journal with one record per live item and checkpoint. */
+  public synchronized void compact() throws IOException {
+    long before = records;
+    File tmp = new File(file.getPath().concat(".compact"));
+    try (FileOutputStream tmpFile = new FileOutputStream(tmp, false);
+        DataOutputStream tmpOut = new DataOutputStream(new BufferedOutputStream(tmpFile))) {
+      tmpOut.writeInt(MAGIC);
+      for (ExportQueueItem item : items.values()) {
+        writeItem(tmpOut, item);
+      }
+      for (Map.Entry<String, String> checkpoint : checkpoints.entrySet()) {
+        writeCheckpoint(tmpOut, checkpoint.getKey(), checkpoint.getValue());
+      }
+      tmpOut.flush();
+      tmpFile.getChannel().force(false);
+    }
+    sync();
+    out.close();
+    try {
+      Files.move(
+          tmp.toPath(),
+          file.toPath(),
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      // Append to whichever journal is in place, the old one if the move failed
+      openForAppend();
+      Files.deleteIfExists(tmp.toPath());
+    }
+    records = items.size() + checkpoints.size();
+    DfLogger.debug(
+        this,
+        "Compacted queue journal from {0} to {1} records",
+        new String[] {Long.toString(before), Long.toString(records)},
+        null);
+  }
+
+  @Override
+  public synchronized void shutdown() {
+    if (null != out) {
+      try {
+        sync();
+        out.close();
+      } catch (IOException e) {
+        DfLogger.warn(this, "Error closing queue journal", null, e);
+      }
+      out = null;
+    }
+    super.shutdown();
+  }
+}
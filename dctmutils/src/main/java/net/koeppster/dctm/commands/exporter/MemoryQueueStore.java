@@ -0,0 +1,271 @@
+package net.koeppster.dctm.commands.exporter;
+
+import com.documentum.fc.common.DfLogger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+/**
+ * {@link QueueStore} held entirely in memory.  Nothing is written to disk, so it suits benchmarks
+ * and one-off exports that will not be restarted; {@link JournalQueueStore} adds persistence on
+ * top of it.
+ *
+ * <p>Items are kept in a map sorted by chronicleId, so a cursor can page through the READY items by
+ * key.
+ */
+public class MemoryQueueStore implements QueueStore {
+
+  /** Pages through the READY items by chronicleId, holding the store lock only while reading. */
+  private class MemoryItemCursor implements QueueStore.ItemCursor {
+    private final long numItems;
+    private final int pageSize;
+    private final long maxSize;
+    private Iterator<ExportQueueItem> page = Collections.emptyIterator();
+    private Long lastKey = null;
+    private boolean exhausted = false;
+
+    private MemoryItemCursor(long numItems, int pageSize, long maxSize) {
+      this.numItems = numItems;
+      this.pageSize = pageSize;
+      this.maxSize = maxSize;
+    }
+
+    @Override
+    public long getNumItems() {
+      return numItems;
+    }
+
+    @Override
+    public boolean hasNext() {
+      while (!page.hasNext() && !exhausted) {
+        List<ExportQueueItem> items = getOpenItemPage(lastKey, pageSize, maxSize);
+        if (items.size() < pageSize) {
+          exhausted = true;
+        }
+        if (!items.isEmpty()) {
+          lastKey = items.get(items.size() - 1).getChronicleId();
+        }
+        page = items.iterator();
+      }
+      return page.hasNext();
+    }
+
+    @Override
+    public ExportQueueItem next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException("No more open items");
+      }
+      return page.next();
+    }
+  }
+
+  protected final NavigableMap<Long, ExportQueueItem> items =
+      new TreeMap<Long, ExportQueueItem>();
+  protected final Map<String, String> checkpoints = new HashMap<String, String>();
+  private CompleteItemFilter completeItems = null;
+
+  @Override
+  public synchronized String getCheckpoint(String arg0) {
+    return checkpoints.get(arg0);
+  }
+
+  @Override
+  public synchronized void putCheckpoint(String arg0, String arg1) {
+    DfLogger.debug(this, "putCheckpoint({0},{1})", new String[] {arg0, arg1}, null);
+    checkpoints.put(arg0, arg1);
+  }
+
+  @Override
+  public synchronized void removeCheckpoint(String arg0) {
+    DfLogger.debug(this, "removeCheckpoint({0})", new String[] {arg0}, null);
+    checkpoints.remove(arg0);
+  }
+
+  @Override
+  public synchronized List<ExportQueueItem> putItems(List<ExportQueueItem> arg0) {
+    Map<Long, ExportQueueItem> batch = new LinkedHashMap<Long, ExportQueueItem>();
+    for (ExportQueueItem item : arg0) {
+      batch.put(item.getChronicleId(), item);
+    }
+    List<ExportQueueItem> ready = new ArrayList<ExportQueueItem>();
+    for (ExportQueueItem candidate : batch.values()) {
+      if ((null != completeItems)
+          && completeItems.contains(
+              candidate.getChronicleId(), candidate.getObjectId(), candidate.getModifiedDate())) {
+        continue;
+      }
+      ExportQueueItem item = items.get(candidate.getChronicleId());
+      if (null == item) {
+        item =
+            new ExportQueueItem(
+                candidate.getChronicleId(),
+                candidate.getObjectId(),
+                candidate.getModifiedDate(),
+                ExportQueueItem.ItemStatus.READY);
+        item.setContentSize(candidate.getContentSize());
+        items.put(item.getChronicleId(), item);
+        ready.add(copyOf(item));
+      } else if (candidate.getObjectId() != item.getObjectId()
+          || candidate.getModifiedDate() != item.getModifiedDate()) {
+        item.setObjectId(candidate.getObjectId());
+        item.setModifiedDate(candidate.getModifiedDate());
+        item.setContentSize(candidate.getContentSize());
+        item.setStatus(ExportQueueItem.ItemStatus.READY);
+        item.setLease(null, 0L);
+        ready.add(copyOf(item));
+      } else if (ExportQueueItem.ItemStatus.READY == item.getStatus()) {
+        ready.add(copyOf(item));
+      }
+    }
+    return ready;
+  }
+
+  @Override
+  public synchronized int updateItemStatuses(Collection<ExportQueueItem> arg0) {
+    return applyStatuses(arg0).size();
+  }
+
+  @Override
+  public synchronized void markItemComplete(long arg0) {
+    markItem(arg0, ExportQueueItem.ItemStatus.COMPLETE);
+  }
+
+  @Override
+  public synchronized void markItemInprogress(long arg0) {
+    markItem(arg0, ExportQueueItem.ItemStatus.IN_PROESS);
+  }
+
+  private void markItem(long arg0, ExportQueueItem.ItemStatus arg1) {
+    ExportQueueItem item = items.get(arg0);
+    if (null != item) {
+      applyStatuses(
+          Collections.singletonList(
+              new ExportQueueItem(
+                  item.getChronicleId(), item.getObjectId(), item.getModifiedDate(), arg1)));
+    }
+  }
+
+  /**
+   * Apply status changes whose version matches the stored item.  Every status change made through
+   * the store goes through here.
+   *
+   * @return The stored items that were changed
+   */
+  protected List<ExportQueueItem> applyStatuses(Collection<ExportQueueItem> arg0) {
+    List<ExportQueueItem> updated = new ArrayList<ExportQueueItem>();
+    for (ExportQueueItem change : arg0) {
+      ExportQueueItem item = items.get(change.getChronicleId());
+      if ((null != item)
+          && (change.getObjectId() == item.getObjectId())
+          && (change.getModifiedDate() == item.getModifiedDate())
+          && ((change.getStatus() != item.getStatus()) || ItemLease.isRenewal(item, change))) {
+        item.setStatus(change.getStatus());
+        item.setLease(change.getOwner(), change.getLeaseExpiry());
+        item.setAttempts(change.getAttempts());
+        item.setLastError(change.getLastError());
+        updated.add(item);
+        if ((null != completeItems) && (ExportQueueItem.ItemStatus.COMPLETE == item.getStatus())) {
+          completeItems.add(item.getChronicleId(), item.getObjectId(), item.getModifiedDate());
+        }
+      }
+    }
+    return updated;
+  }
+
+  @Override
+  public synchronized List<ExportQueueItem> getItems(ExportQueueItem.ItemStatus arg0) {
+    List<ExportQueueItem> found = new ArrayList<ExportQueueItem>();
+    for (ExportQueueItem item : items.values()) {
+      if (arg0 == item.getStatus()) {
+        found.add(copyOf(item));
+      }
+    }
+    return found;
+  }
+
+  @Override
+  public synchronized QueueStore.ItemCursor getOpenItems(int arg0, long arg1) {
+    long size = 0;
+    for (ExportQueueItem item : items.values()) {
+      if (isOpen(item, arg1)) {
+        size++;
+      }
+    }
+    DfLogger.debug(
+        this, "Returning cursor with size of {0}", new String[] {Long.toString(size)}, null);
+    return new MemoryItemCursor(size, Math.max(1, arg0), arg1);
+  }
+
+  @Override
+  public synchronized Iterator<ExportQueueItem> getLargeItems(long arg0) {
+    List<ExportQueueItem> large = new ArrayList<ExportQueueItem>();
+    for (ExportQueueItem item : items.values()) {
+      if ((ExportQueueItem.ItemStatus.READY == item.getStatus())
+          && (item.getContentSize() >= arg0)) {
+        large.add(copyOf(item));
+      }
+    }
+    large.sort(Comparator.comparingLong(ExportQueueItem::getContentSize).reversed());
+    return large.iterator();
+  }
+
+  private synchronized List<ExportQueueItem> getOpenItemPage(Long arg0, int arg1, long arg2) {
+    List<ExportQueueItem> page = new ArrayList<ExportQueueItem>(arg1);
+    Collection<ExportQueueItem> tail =
+        (null == arg0) ? items.values() : items.tailMap(arg0, false).values();
+    for (ExportQueueItem item : tail) {
+      if (isOpen(item, arg2)) {
+        page.add(copyOf(item));
+        if (page.size() >= arg1) {
+          break;
+        }
+      }
+    }
+    return page;
+  }
+
+  // READY and, if a limit is given, smaller than it
+  private static boolean isOpen(ExportQueueItem arg0, long arg1) {
+    return (ExportQueueItem.ItemStatus.READY == arg0.getStatus())
+        && ((arg1 <= 0) || (arg0.getContentSize() < arg1));
+  }
+
+  // Callers get their own copies, the stored items change under the store lock
+  private static ExportQueueItem copyOf(ExportQueueItem arg0) {
+    ExportQueueItem copy =
+        new ExportQueueItem(
+            arg0.getChronicleId(), arg0.getObjectId(), arg0.getModifiedDate(), arg0.getStatus());
+    copy.setLease(arg0.getOwner(), arg0.getLeaseExpiry());
+    copy.setAttempts(arg0.getAttempts());
+    copy.setLastError(arg0.getLastError());
+    copy.setContentSize(arg0.getContentSize());
+    return copy;
+  }
+
+  @Override
+  public synchronized int loadCompleteItemFilter() {
+    CompleteItemFilter filter = new CompleteItemFilter();
+    for (ExportQueueItem item : items.values()) {
+      if (ExportQueueItem.ItemStatus.COMPLETE == item.getStatus()) {
+        filter.add(item.getChronicleId(), item.getObjectId(), item.getModifiedDate());
+      }
+    }
+    this.completeItems = filter;
+    return filter.size();
+  }
+
+  @Override
+  public synchronized void shutdown() {
+    items.clear();
+    checkpoints.clear();
+  }
+}
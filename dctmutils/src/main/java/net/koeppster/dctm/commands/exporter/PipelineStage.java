@@ -0,0 +1,312 @@
+package net.koeppster.dctm.commands.exporter;
+
+import com.documentum.fc.common.DfLogger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One stage of the {@link ExportPipeline}: a named set of worker threads taking tasks from a
+ * bounded queue.  {@link #execute(Runnable)} blocks while the queue is full, so a fast stage waits
+ * for a slow one instead of piling up work in memory.
+ *
+ * <p>The stage counts the tasks it ran and the time its workers were busy, so {@link #toString()}
+ * shows which stage is the bottleneck: its queue stays full and its workers stay busy.
+ *
+ * <p>Workers can be added while the stage runs, for example to replace one stuck on a stalled
+ * connection, and retired again once they finish their current task.
+ *
+ * <p>Workers are platform threads unless another thread factory is given, such as one creating
+ * virtual threads (see {@link VirtualThreads}).  A worker runs the idle task when it finds the
+ * queue empty and when it exits, so it can give back what it holds for its next task.
+ */
+public class PipelineStage extends AbstractExecutorService {
+
+  // How often an idle worker checks for shutdown
+  private static final long POLL_MILLIS = 200;
+
+  private static final Map<Thread, PipelineStage> WORKERS =
+      new ConcurrentHashMap<Thread, PipelineStage>();
+
+  private final String name;
+  private final BlockingQueue<Runnable> queue;
+  private final ThreadFactory threadFactory;
+  private final Set<Thread> workers = ConcurrentHashMap.newKeySet();
+  private final AtomicInteger retiring = new AtomicInteger(0);
+  private final AtomicInteger busy = new AtomicInteger(0);
+  private final AtomicLong completed = new AtomicLong(0);
+  private final AtomicLong busyNanos = new AtomicLong(0);
+  private final long started = System.nanoTime();
+  private final CountDownLatch terminated = new CountDownLatch(1);
+  private volatile boolean shutdown = false;
+  private volatile Runnable idleTask = null;
+  private int workerCount = 0;
+
+  /**
+   * @param name The stage name, used for the worker threads and the stats
+   * @param threads The number of workers
+   * @param capacity The number of tasks that may wait in the queue
+   */
+  public PipelineStage(String name, int threads, int capacity) {
+    this(name, threads, capacity, Thread::new);
+  }
+
+  /**
+   * @param name The stage name, used for the worker threads and the stats
+   * @param threads The number of workers
+   * @param capacity The number of tasks that may wait in the queue
+   * @param threadFactory Creates the worker threads
+   */
+  public PipelineStage(String name, int threads, int capacity, ThreadFactory threadFactory) {
+    this.name = name;
+    this.threadFactory = threadFactory;
+    this.queue = new ArrayBlockingQueue<Runnable>(Math.max(1, capacity));
+    for (int i = 0; i < Math.max(1, threads); i++) {
+      addWorker();
+    }
+  }
+
+  /** Start one more worker. */
+  public synchronized void addWorker() {
+    if (shutdown) {
+      return;
+    }
+    Thread worker = threadFactory.newThread(this::work);
+    worker.setName(String.format("%s-%d", name, ++workerCount));
+    workers.add(worker);
+    WORKERS.put(worker, this);
+    worker.start();
+  }
+
+  /**
+   * Set the task a worker runs when it finds the queue empty and when it exits.
+   *
+   * @param arg0 The task (null for none)
+   */
+  public void setIdleTask(Runnable arg0) {
+    this.idleTask = arg0;
+  }
+
+  /** Let one worker exit once it has finished its current task. */
+  public void retireWorker() {
+    retiring.incrementAndGet();
+  }
+
+  /**
+   * Start or retire workers until the stage has the given number.  Retired workers finish their
+   * current task first.
+   *
+   * @param arg0 The number of workers
+   */
+  public synchronized void setWorkers(int arg0) {
+    int target = Math.max(1, arg0);
+    int active = workers.size() - retiring.get();
+    // Call off pending retirements before starting new workers
+    while ((active < target) && retire()) {
+      active++;
+    }
+    for (; active < target; active++) {
+      addWorker();
+    }
+    if (active > target) {
+      retiring.addAndGet(active - target);
+    }
+  }
+
+  /**
+   * Returns the stage whose worker is the given thread.
+   *
+   * @param arg0 The thread
+   * @return The stage or null if the thread is not a stage worker
+   */
+  public static PipelineStage of(Thread arg0) {
+    return (null == arg0) ? null : WORKERS.get(arg0);
+  }
+
+  private void work() {
+    Thread self = Thread.currentThread();
+    boolean idle = false;
+    try {
+      while (!retire()) {
+        Runnable task = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+        if (null == task) {
+          if (shutdown) {
+            break;
+          }
+          if (!idle) {
+            idle = true;
+            runIdleTask();
+          }
+          continue;
+        }
+        idle = false;
+        busy.incrementAndGet();
+        long start = System.nanoTime();
+        try {
+          task.run();
+        } catch (RuntimeException e) {
+          DfLogger.error(this, "Unexpected error in {0} stage", new String[] {name}, e);
+        } finally {
+          busyNanos.addAndGet(System.nanoTime() - start);
+          busy.decrementAndGet();
+          completed.incrementAndGet();
+          // An interrupt meant for the last task must not hit the next one
+          if (!shutdown) {
+            Thread.interrupted();
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      DfLogger.debug(this, "{0} interrupted", new String[] {self.getName()}, null);
+    } finally {
+      runIdleTask();
+      WORKERS.remove(self);
+      synchronized (this) {
+        workers.remove(self);
+        if (shutdown && workers.isEmpty()) {
+          terminated.countDown();
+        }
+      }
+    }
+  }
+
+  private void runIdleTask() {
+    Runnable task = idleTask;
+    if (null == task) {
+      return;
+    }
+    try {
+      task.run();
+    } catch (RuntimeException e) {
+      DfLogger.warn(this, "Error in {0} idle task", new String[] {name}, e);
+    }
+  }
+
+  private boolean retire() {
+    int pending = retiring.get();
+    while (pending > 0) {
+      if (retiring.compareAndSet(pending, pending - 1)) {
+        return true;
+      }
+      pending = retiring.get();
+    }
+    return false;
+  }
+
+  /**
+   * Queue a task, blocking while the queue is full.
+   *
+   * @throws RejectedExecutionException If the stage is shut down or the caller is interrupted
+   */
+  @Override
+  public void execute(Runnable arg0) {
+    if (shutdown) {
+      throw new RejectedExecutionException(String.format("The %s stage is shut down", name));
+    }
+    try {
+      queue.put(arg0);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RejectedExecutionException(
+          String.format("Interrupted waiting for the %s stage", name), e);
+    }
+    if (isTerminated() && queue.remove(arg0)) {
+      throw new RejectedExecutionException(String.format("The %s stage is shut down", name));
+    }
+  }
+
+  /** Stop accepting tasks; the workers exit once the queue is empty. */
+  @Override
+  public synchronized void shutdown() {
+    shutdown = true;
+    if (workers.isEmpty()) {
+      terminated.countDown();
+    }
+  }
+
+  /** Drop the queued tasks and interrupt the workers. */
+  @Override
+  public synchronized List<Runnable> shutdownNow() {
+    shutdown();
+    List<Runnable> dropped = new ArrayList<Runnable>();
+    queue.drainTo(dropped);
+    for (Thread worker : workers) {
+      worker.interrupt();
+    }
+    return dropped;
+  }
+
+  @Override
+  public boolean isShutdown() {
+    return shutdown;
+  }
+
+  @Override
+  public boolean isTerminated() {
+    return terminated.getCount() == 0;
+  }
+
+  @Override
+  public boolean awaitTermination(long arg0, TimeUnit arg1) throws InterruptedException {
+    return terminated.await(arg0, arg1);
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public int getThreads() {
+    return workers.size();
+  }
+
+  public int getBusy() {
+    return busy.get();
+  }
+
+  public int getDepth() {
+    return queue.size();
+  }
+
+  public int getCapacity() {
+    return queue.size() + queue.remainingCapacity();
+  }
+
+  public long getCompleted() {
+    return completed.get();
+  }
+
+  /** Returns the total time the workers spent running tasks. */
+  public long getBusyNanos() {
+    return busyNanos.get();
+  }
+
+  /** Returns the share of the workers' time spent running tasks since the stage started. */
+  public double getUtilization() {
+    long elapsed = (System.nanoTime() - started) * Math.max(1, getThreads());
+    return (elapsed > 0) ? (double) busyNanos.get() / elapsed : 0.0;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "%s %d/%d busy, queue %d/%d, %d done, %.0f%% utilized",
+        name,
+        getBusy(),
+        getThreads(),
+        getDepth(),
+        getCapacity(),
+        getCompleted(),
+        getUtilization() * 100);
+  }
+}
@@ -0,0 +1,288 @@
+package net.koeppster.dctm.commands.exporter;
+
+import com.documentum.fc.common.DfLogger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import net.koeppster.dctm.utils.UtilsException;
+
+/**
+ * Applies item status changes to the Queue Items database from a single thread.  Workers queue
+ * their changes and carry on; the writer coalesces them (the last change for a chronicle wins) and
+ * commits them in one transaction once <code>batchSize</code> changes are waiting or the oldest
+ * change has waited <code>maxDelay</code> milliseconds, whichever comes first.
+ *
+ * <p>A change carries the object id and modify date of the item it was made for and is dropped if
+ * the row has since been refreshed by a newer version, so a late COMPLETE never hides a new READY.
+ * {@link #flush()} waits for everything queued so far to be committed, {@link #close()} flushes
+ * and stops the thread.
+ *
+ * <p>An item marked in progress is held by this process until it is marked COMPLETE or FAILED.
+ * The writer renews the lease of the items it holds once half of it has run out, so an item that
+ * takes longer than the lease is not handed to another run while it is still being exported.
+ */
+public class QueueStatusWriter implements Runnable {
+
+  private final QueueStore queueManager;
+  private final int batchSize;
+  private final long maxDelay;
+  private final long leaseTime;
+  private final BlockingQueue<ExportQueueItem> pending;
+  // Last IN_PROESS change of each item held by this process, guarded by itself
+  private final Map<Long, ExportQueueItem> held = new HashMap<Long, ExportQueueItem>();
+  private long nextRenewal;
+  private final Object flushLock = new Object();
+  private long queued = 0;
+  private long applied = 0;
+  private volatile boolean flushRequested = false;
+  private volatile boolean closed = false;
+  private volatile boolean stopped = false;
+  private volatile Throwable failure = null;
+  private Thread thread = null;
+
+  /**
+   * @param queueManager The database the changes are written to
+   * @param batchSize Maximum number of changes committed per transaction
+   * @param maxDelay Maximum milliseconds a change waits before it is committed
+   * @param leaseTime Milliseconds an item marked in progress is held by this process
+   */
+  public QueueStatusWriter(
+      QueueStore queueManager, int batchSize, long maxDelay, long leaseTime) {
+    this.queueManager = queueManager;
+    this.leaseTime = leaseTime;
+    this.batchSize = Math.max(1, batchSize);
+    this.maxDelay = Math.max(1, maxDelay);
+    this.pending = new ArrayBlockingQueue<ExportQueueItem>(this.batchSize * 4);
+    this.nextRenewal = System.currentTimeMillis() + renewalInterval();
+  }
+
+  public synchronized void start() {
+    if (null == thread) {
+      thread = new Thread(this, "queue-status-writer");
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+  public void markItemInprogress(ExportQueueItem arg0)
+      throws UtilsException, InterruptedException {
+    ExportQueueItem change = newChange(arg0, ExportQueueItem.ItemStatus.IN_PROESS);
+    synchronized (held) {
+      held.put(change.getChronicleId(), change);
+    }
+    enqueue(change);
+  }
+
+  public void markItemComplete(ExportQueueItem arg0) throws UtilsException, InterruptedException {
+    release(arg0);
+    enqueue(newChange(arg0, ExportQueueItem.ItemStatus.COMPLETE));
+  }
+
+  /**
+   * Move an item to FAILED, keeping its attempt count and the error.
+   *
+   * @param arg0 The item, with its attempts set
+   * @param arg1 Why the last attempt failed
+   */
+  public void markItemFailed(ExportQueueItem arg0, String arg1)
+      throws UtilsException, InterruptedException {
+    release(arg0);
+    ExportQueueItem change = newChange(arg0, ExportQueueItem.ItemStatus.FAILED);
+    change.setAttempts(arg0.getAttempts());
+    change.setLastError(arg1);
+    enqueue(change);
+  }
+
+  /**
+   * Stop renewing the lease of an item.  Done before its final change is queued, so a renewal is
+   * either queued ahead of that change or not at all.
+   */
+  private void release(ExportQueueItem arg0) {
+    synchronized (held) {
+      ExportQueueItem change = held.get(arg0.getChronicleId());
+      if ((null != change)
+          && (change.getObjectId() == arg0.getObjectId())
+          && (change.getModifiedDate() == arg0.getModifiedDate())) {
+        held.remove(arg0.getChronicleId());
+      }
+    }
+  }
+
+  /** Queue a fresh lease for the held items that have used up half of theirs. */
+  private void renewLeases() {
+    long now = System.currentTimeMillis();
+    if (now < nextRenewal) {
+      return;
+    }
+    nextRenewal = now + renewalInterval();
+    int renewed = 0;
+    synchronized (held) {
+      for (ExportQueueItem change : held.values()) {
+        if (change.getLeaseExpiry() - now > leaseTime / 2) {
+          continue;
+        }
+        ExportQueueItem renewal = newChange(change, ExportQueueItem.ItemStatus.IN_PROESS);
+        // Only the writer thread takes from the queue, so never block here; a full queue just
+        // leaves the item for the next round
+        if (!pending.offer(renewal)) {
+          break;
+        }
+        synchronized (flushLock) {
+          queued++;
+        }
+        change.setLease(renewal.getOwner(), renewal.getLeaseExpiry());
+        renewed++;
+      }
+    }
+    if (renewed > 0) {
+      DfLogger.debug(
+          this, "Renewed the lease of {0} items", new String[] {Integer.toString(renewed)}, null);
+    }
+  }
+
+  private long renewalInterval() {
+    return Math.max(1, leaseTime / 4);
+  }
+
+  private ExportQueueItem newChange(ExportQueueItem arg0, ExportQueueItem.ItemStatus arg1) {
+    ExportQueueItem change =
+        new ExportQueueItem(
+            arg0.getChronicleId(), arg0.getObjectId(), arg0.getModifiedDate(), arg1);
+    if (ExportQueueItem.ItemStatus.IN_PROESS == arg1) {
+      change.setLease(ItemLease.currentOwner(), System.currentTimeMillis() + leaseTime);
+    }
+    return change;
+  }
+
+  private void enqueue(ExportQueueItem arg0) throws UtilsException, InterruptedException {
+    checkFailure();
+    if (closed || stopped) {
+      throw new UtilsException("Queue status writer is closed");
+    }
+    synchronized (flushLock) {
+      queued++;
+    }
+    pending.put(arg0);
+  }
+
+  /**
+   * Wait until every change queued before the call has been committed.
+   *
+   * @throws UtilsException If the writer failed to commit a batch
+   * @throws InterruptedException If interrupted while waiting
+   */
+  public void flush() throws UtilsException, InterruptedException {
+    synchronized (flushLock) {
+      long target = queued;
+      flushRequested = true;
+      while ((applied < target) && !stopped) {
+        flushLock.wait(maxDelay);
+      }
+    }
+    checkFailure();
+  }
+
+  /**
+   * Commit the outstanding changes and stop the writer thread.  Waits even if the calling thread
+   * has been interrupted, since the database must not be closed while the writer is using it.
+   */
+  public void close() throws UtilsException {
+    if (null == thread) {
+      return;
+    }
+    closed = true;
+    boolean interrupted = Thread.interrupted();
+    try {
+      while (thread.isAlive()) {
+        try {
+          thread.join();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    checkFailure();
+  }
+
+  @Override
+  public void run() {
+    List<ExportQueueItem> batch = new ArrayList<ExportQueueItem>(batchSize);
+    try {
+      while (!(closed && pending.isEmpty())) {
+        if (!closed) {
+          renewLeases();
+        }
+        ExportQueueItem first = pending.poll(maxDelay, TimeUnit.MILLISECONDS);
+        if (null == first) {
+          continue;
+        }
+        batch.add(first);
+        long deadline = System.currentTimeMillis() + maxDelay;
+        while (batch.size() < batchSize) {
+          pending.drainTo(batch, batchSize - batch.size());
+          long remaining = deadline - System.currentTimeMillis();
+          if ((batch.size() >= batchSize) || flushRequested || closed || (remaining <= 0)) {
+            break;
+          }
+          ExportQueueItem next = pending.poll(remaining, TimeUnit.MILLISECONDS);
+          if (null == next) {
+            break;
+          }
+          batch.add(next);
+        }
+        apply(batch);
+        batch.clear();
+        if (pending.isEmpty()) {
+          flushRequested = false;
+        }
+      }
+    } catch (InterruptedException e) {
+      DfLogger.warn(this, "Queue status writer interrupted", null, e);
+    } finally {
+      stopped = true;
+      synchronized (flushLock) {
+        flushLock.notifyAll();
+      }
+    }
+  }
+
+  private void apply(List<ExportQueueItem> arg0) {
+    Map<Long, ExportQueueItem> changes = new LinkedHashMap<Long, ExportQueueItem>();
+    for (ExportQueueItem change : arg0) {
+      changes.put(change.getChronicleId(), change);
+    }
+    try {
+      int updated = queueManager.updateItemStatuses(changes.values());
+      DfLogger.debug(
+          this,
+          "Committed {0} status changes as {1} updates",
+          new String[] {Integer.toString(arg0.size()), Integer.toString(updated)},
+          null);
+    } catch (RuntimeException e) {
+      DfLogger.error(this, "Error writing status changes: {0}", new String[] {e.getMessage()}, e);
+      if (null == failure) {
+        failure = e;
+      }
+    }
+    synchronized (flushLock) {
+      applied += arg0.size();
+      flushLock.notifyAll();
+    }
+  }
+
+  private void checkFailure() throws UtilsException {
+    if (null != failure) {
+      throw new UtilsException(
+          String.format("Error writing item status: %s", failure.getMessage()), failure);
+    }
+  }
+}
@@ -0,0 +1,93 @@
+package net.koeppster.dctm.commands.exporter;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Storage for the export queue: one {@link ExportQueueItem} per chronicle plus named checkpoints.
+ * Implementations must be safe to call from several threads.
+ *
+ * <ul>
+ *   <li>{@link ExportDatabaseManager} - Nitrite on a compressed MVStore file (the default)
+ *   <li>{@link JournalQueueStore} - items in memory, changes appended to a journal file
+ *   <li>{@link MemoryQueueStore} - items in memory only, nothing survives the run
+ * </ul>
+ */
+public interface QueueStore {
+
+  /** Iterates the READY items, reading them from the store as it goes. */
+  public interface ItemCursor extends Iterator<ExportQueueItem> {
+    /** The number of READY items when the cursor was opened. */
+    long getNumItems();
+  }
+
+  /**
+   * Returns the value of a checkpoint.
+   *
+   * @param arg0 The checkpoint key
+   * @return The stored value or null if the checkpoint has not been set
+   */
+  String getCheckpoint(String arg0);
+
+  void putCheckpoint(String arg0, String arg1);
+
+  void removeCheckpoint(String arg0);
+
+  /**
+   * Add candidates to the queue or refresh them.  A new chronicle, or one whose object id or modify
+   * date changed, is stored as READY; if a chronicle appears more than once the last one wins.
+   *
+   * @param arg0 The candidate items
+   * @return The items of the batch that are READY once the batch is stored
+   */
+  List<ExportQueueItem> putItems(List<ExportQueueItem> arg0);
+
+  /**
+   * Apply a batch of status changes.  Each change names the version (object id and modify date) it
+   * was made for and is skipped if the stored item no longer holds that version.
+   *
+   * @param arg0 Items carrying the new status, at most one per chronicle
+   * @return The number of items updated
+   */
+  int updateItemStatuses(Collection<ExportQueueItem> arg0);
+
+  void markItemComplete(long arg0);
+
+  void markItemInprogress(long arg0);
+
+  /**
+   * Returns every item with a status.  Meant for the small sets (such as IN_PROESS items at
+   * startup), use {@link #getOpenItems(int, long)} for READY items.
+   *
+   * @param arg0 The status to look for
+   */
+  List<ExportQueueItem> getItems(ExportQueueItem.ItemStatus arg0);
+
+  /**
+   * Returns a cursor over the READY items.  The order depends on the store.
+   *
+   * @param arg0 The number of items read per page, where the store reads in pages
+   * @param arg1 Only items with a content size below this many bytes, 0 for all; leaves out the
+   *     items returned by {@link #getLargeItems(long)}
+   */
+  ItemCursor getOpenItems(int arg0, long arg1);
+
+  /**
+   * Returns the READY items with at least the given content size, largest first.  Meant for the
+   * few very large items, so they can be started before the rest.
+   *
+   * @param arg0 The least content size in bytes
+   */
+  Iterator<ExportQueueItem> getLargeItems(long arg0);
+
+  /**
+   * Keep the versions of the COMPLETE items in memory so {@link #putItems(List)} can drop unchanged
+   * candidates without looking them up.
+   *
+   * @return The number of COMPLETE items loaded
+   */
+  int loadCompleteItemFilter();
+
+  void shutdown();
+}
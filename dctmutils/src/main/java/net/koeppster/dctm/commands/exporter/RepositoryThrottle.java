@@ -0,0 +1,212 @@
+package net.koeppster.dctm.commands.exporter;
+
+import com.documentum.fc.common.DfLogger;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits how hard the export hits the repository, shared by every worker: objects exported,
+ * kilobytes of content downloaded and DQL queries run, each per second.  Each limit is a token
+ * bucket holding at most one second's worth of tokens, so short bursts pass and the average rate
+ * holds.
+ *
+ * <p>A caller only waits for the tokens taken before it, not for its own, so one large download
+ * goes at once and the callers after it wait until the rate has caught up.
+ *
+ * <p>The limits can be changed while the export runs by editing a properties file, which is read
+ * again whenever it changes.  Its keys are {@link #OBJECT_RATE}, {@link #KB_RATE} and {@link
+ * #QUERY_RATE}; a missing key or 0 means no limit.
+ */
+public class RepositoryThrottle {
+
+  public static final String OBJECT_RATE = "objectrate";
+  public static final String KB_RATE = "kbrate";
+  public static final String QUERY_RATE = "queryrate";
+
+  // How often the limits file is checked for changes
+  private static final long RELOAD_MILLIS = 5000;
+
+  /** A token bucket; a rate of 0 or less lets everything through. */
+  static class Bucket {
+    private double rate;
+    private double tokens;
+    private long last = System.nanoTime();
+
+    Bucket(double rate) {
+      setRate(rate);
+    }
+
+    synchronized double getRate() {
+      return rate;
+    }
+
+    synchronized void setRate(double arg0) {
+      refill();
+      this.rate = Math.max(0, arg0);
+      this.tokens = Math.min(tokens, rate);
+    }
+
+    /**
+     * Take tokens if the tokens taken before are paid off within the timeout.
+     *
+     * @return The nanoseconds to wait before going ahead, or -1 if that is longer than the timeout
+     */
+    synchronized long reserve(long arg0, long arg1) {
+      if (rate <= 0) {
+        return 0;
+      }
+      refill();
+      long wait = (tokens >= 0) ? 0 : (long) Math.ceil(-tokens / rate * 1e9);
+      if (wait > arg1) {
+        return -1;
+      }
+      tokens -= arg0;
+      return wait;
+    }
+
+    private void refill() {
+      long now = System.nanoTime();
+      if (rate > 0) {
+        tokens = Math.min(rate, tokens + (now - last) / 1e9 * rate);
+      }
+      last = now;
+    }
+
+    boolean tryAcquire(long arg0, long arg1, TimeUnit arg2) throws InterruptedException {
+      long wait = reserve(arg0, arg2.toNanos(arg1));
+      if (wait < 0) {
+        return false;
+      }
+      if (wait > 0) {
+        TimeUnit.NANOSECONDS.sleep(wait);
+      }
+      return true;
+    }
+
+    void acquire(long arg0) throws InterruptedException {
+      tryAcquire(arg0, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  private final Bucket objects;
+  private final Bucket kilobytes;
+  private final Bucket queries;
+  private final File limitsFile;
+  private final Thread thread;
+  private volatile boolean closed = false;
+  private long loaded = 0;
+
+  /**
+   * @param objectRate Objects per second (0 for no limit)
+   * @param kbRate Kilobytes of content per second (0 for no limit)
+   * @param queryRate DQL queries per second (0 for no limit)
+   * @param limitsFile Properties file overriding the limits, read again when it changes (may be
+   *     null)
+   */
+  public RepositoryThrottle(double objectRate, double kbRate, double queryRate, File limitsFile) {
+    this.objects = new Bucket(objectRate);
+    this.kilobytes = new Bucket(kbRate);
+    this.queries = new Bucket(queryRate);
+    this.limitsFile = limitsFile;
+    this.thread = new Thread(this::run, "repository-throttle");
+    thread.setDaemon(true);
+  }
+
+  /** Read the limits file and start watching it for changes. */
+  public void start() {
+    if (null == limitsFile) {
+      return;
+    }
+    reload();
+    thread.start();
+  }
+
+  private void run() {
+    while (!closed) {
+      try {
+        Thread.sleep(RELOAD_MILLIS);
+      } catch (InterruptedException e) {
+        return;
+      }
+      reload();
+    }
+  }
+
+  private void reload() {
+    long modified = limitsFile.lastModified();
+    if ((0 == modified) || (modified == loaded)) {
+      return;
+    }
+    loaded = modified;
+    Properties props = new Properties();
+    try (InputStream in = new FileInputStream(limitsFile)) {
+      props.load(in);
+      setRates(
+          parseRate(props, OBJECT_RATE), parseRate(props, KB_RATE), parseRate(props, QUERY_RATE));
+    } catch (IOException | NumberFormatException e) {
+      DfLogger.warn(
+          this,
+          "Error reading limits from {0}, keeping {1}",
+          new String[] {limitsFile.getPath(), toString()},
+          e);
+    }
+  }
+
+  private static double parseRate(Properties arg0, String arg1) {
+    String value = arg0.getProperty(arg1);
+    return (null == value || value.trim().isEmpty()) ? 0 : Double.parseDouble(value.trim());
+  }
+
+  /** Change the limits; 0 for no limit. */
+  public void setRates(double objectRate, double kbRate, double queryRate) {
+    objects.setRate(objectRate);
+    kilobytes.setRate(kbRate);
+    queries.setRate(queryRate);
+    DfLogger.info(this, "Repository limits: {0}", new String[] {toString()}, null);
+  }
+
+  /**
+   * Wait for one object's turn, giving up after the timeout.
+   *
+   * @return false if the object would have had to wait longer than the timeout
+   */
+  public boolean tryAcquireObject(long arg0, TimeUnit arg1) throws InterruptedException {
+    return objects.tryAcquire(1, arg0, arg1);
+  }
+
+  /**
+   * Wait until content of the given size may be downloaded.
+   *
+   * @param arg0 The content size in bytes
+   */
+  public void acquireBytes(long arg0) throws InterruptedException {
+    kilobytes.acquire(Math.max(1, arg0 / 1024));
+  }
+
+  /** Wait until a DQL query may be run. */
+  public void acquireQuery() throws InterruptedException {
+    queries.acquire(1);
+  }
+
+  public void close() {
+    closed = true;
+    thread.interrupt();
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "objects %s, content %s, queries %s",
+        describe(objects.getRate(), "/s"),
+        describe(kilobytes.getRate(), " KB/s"),
+        describe(queries.getRate(), "/s"));
+  }
+
+  private static String describe(double arg0, String arg1) {
+    return (arg0 <= 0) ? "unlimited" : String.format("%.1f%s", arg0, arg1);
+  }
+}
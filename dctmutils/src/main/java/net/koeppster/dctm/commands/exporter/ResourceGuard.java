@@ -0,0 +1,302 @@
+package net.koeppster.dctm.commands.exporter;
+
+import com.documentum.fc.common.DfLogger;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.concurrent.TimeUnit;
+import oshi.SystemInfo;
+import oshi.hardware.CentralProcessor;
+import oshi.software.os.OSFileStore;
+
+/**
+ * Watches the host so the export slows down or pauses before it runs out of room, instead of
+ * failing partway with I/O or out of memory errors.  Every few seconds it samples, through OSHI and
+ * the JVM:
+ *
+ * <ul>
+ *   <li>usable space and free inodes of the file system holding the output directory
+ *   <li>JVM heap in use after the last garbage collection, or in use now if there has been no
+ *       collection since the last sample, as a share of the maximum heap
+ *   <li>the one minute system load average per processor
+ * </ul>
+ *
+ * <p>Once any of them crosses its limit new items are held back until it is back inside.  Within
+ * reach of a limit (half the free space or inodes left, the heap within {@link #HEAP_MARGIN} of its
+ * limit, the load past {@link #LOAD_MARGIN} of it) new items are only let through one every {@link
+ * #SLOW_MILLIS} milliseconds.  Items already in flight always finish.  A limit of 0 is not
+ * checked, as are values the platform does not report.
+ */
+public class ResourceGuard implements DispatchGate {
+
+  /** What the guard lets through. */
+  public enum State {
+    NORMAL,
+    SLOW,
+    PAUSED
+  }
+
+  // How close to the heap limit, as a share of the maximum heap, the guard slows down
+  static final double HEAP_MARGIN = 0.1;
+  // Share of the load limit past which the guard slows down
+  static final double LOAD_MARGIN = 0.8;
+  // Milliseconds between items while slowed down
+  static final long SLOW_MILLIS = 250;
+
+  private final File outputDir;
+  private final long minFreeBytes;
+  private final long minFreeInodes;
+  private final double maxHeap;
+  private final double maxLoad;
+  private final long interval;
+  private final PrintStream warningStream;
+  private final Object lock = new Object();
+  private final Thread thread;
+  private CentralProcessor processor = null;
+  private OSFileStore fileStore = null;
+  private volatile boolean closed = false;
+  private State state = State.NORMAL;
+  private String reason = null;
+  private long lastCollections = -1;
+  private long nextSlot = System.nanoTime();
+
+  /**
+   * @param outputDir Directory the content is written to (may be null to not check the disk)
+   * @param minFreeBytes Least usable space left on the output file system
+   * @param minFreeInodes Least free inodes left on the output file system
+   * @param maxHeap Most of the maximum heap in use, between 0 and 1
+   * @param maxLoad Most system load average per processor
+   * @param interval Milliseconds between samples
+   * @param warningStream Told when the export pauses and resumes (may be null)
+   */
+  public ResourceGuard(
+      File outputDir,
+      long minFreeBytes,
+      long minFreeInodes,
+      double maxHeap,
+      double maxLoad,
+      long interval,
+      PrintStream warningStream) {
+    this.outputDir = outputDir;
+    this.minFreeBytes = Math.max(0, minFreeBytes);
+    this.minFreeInodes = Math.max(0, minFreeInodes);
+    this.maxHeap = Math.max(0, maxHeap);
+    this.maxLoad = Math.max(0, maxLoad);
+    this.interval = Math.max(1000, interval);
+    this.warningStream = warningStream;
+    this.thread = new Thread(this::run, "resource-guard");
+    thread.setDaemon(true);
+  }
+
+  /** Find the output file system, take the first sample and keep sampling. */
+  public void start() {
+    try {
+      SystemInfo si = new SystemInfo();
+      processor = si.getHardware().getProcessor();
+      if (null != outputDir) {
+        fileStore = findFileStore(si, outputDir.getCanonicalPath());
+      }
+    } catch (IOException | RuntimeException | LinkageError e) {
+      DfLogger.warn(this, "Error reading the host information, checking less", null, e);
+    }
+    sample();
+    thread.start();
+  }
+
+  private static OSFileStore findFileStore(SystemInfo arg0, String arg1) {
+    OSFileStore best = null;
+    for (OSFileStore store : arg0.getOperatingSystem().getFileSystem().getFileStores()) {
+      String mount = store.getMount();
+      if ((null != mount)
+          && arg1.startsWith(mount)
+          && ((null == best) || (mount.length() > best.getMount().length()))) {
+        best = store;
+      }
+    }
+    return best;
+  }
+
+  private void run() {
+    while (!closed) {
+      try {
+        Thread.sleep(interval);
+      } catch (InterruptedException e) {
+        return;
+      }
+      sample();
+    }
+  }
+
+  private void sample() {
+    long freeBytes = -1;
+    long freeInodes = -1;
+    double load = -1;
+    try {
+      if ((null != fileStore) && fileStore.updateAttributes()) {
+        freeBytes = fileStore.getUsableSpace();
+        freeInodes = (fileStore.getTotalInodes() > 0) ? fileStore.getFreeInodes() : -1;
+      } else if (null != outputDir) {
+        freeBytes = outputDir.getUsableSpace();
+      }
+      if (null != processor) {
+        double average = processor.getSystemLoadAverage(1)[0];
+        load = (average < 0) ? -1 : average / Math.max(1, processor.getLogicalProcessorCount());
+      }
+    } catch (RuntimeException e) {
+      DfLogger.warn(this, "Error sampling the host", null, e);
+    }
+    assess(freeBytes, freeInodes, heapUsed(), load);
+  }
+
+  /**
+   * Returns the share of the maximum heap in use.  After a collection that is what the collection
+   * left, which leaves out garbage.  The pools only report that after a collection though, and a
+   * paused export makes too little garbage to need one, so without a collection since the last
+   * sample it is the heap in use now.
+   */
+  private double heapUsed() {
+    long collections = 0;
+    for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+      collections += Math.max(0, collector.getCollectionCount());
+    }
+    long used = 0;
+    if (collections != lastCollections) {
+      for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+        MemoryUsage usage = (pool.getType() == MemoryType.HEAP) ? pool.getCollectionUsage() : null;
+        if (null != usage) {
+          used += usage.getUsed();
+        }
+      }
+    } else {
+      used = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+    lastCollections = collections;
+    long max = Runtime.getRuntime().maxMemory();
+    return (max <= 0 || max == Long.MAX_VALUE) ? -1 : (double) used / max;
+  }
+
+  /**
+   * Work out the state from a sample and switch to it.  A value of -1 was not sampled.
+   *
+   * @return The new state
+   */
+  State assess(long arg0, long arg1, double arg2, double arg3) {
+    State next = State.NORMAL;
+    String why = null;
+    State check;
+    if ((minFreeBytes > 0) && (arg0 >= 0) && (arg0 < 2 * minFreeBytes)) {
+      check = (arg0 < minFreeBytes) ? State.PAUSED : State.SLOW;
+      next = check;
+      why = String.format("%d MB free on the output file system", arg0 / (1024 * 1024));
+    }
+    if ((minFreeInodes > 0) && (arg1 >= 0) && (arg1 < 2 * minFreeInodes)) {
+      check = (arg1 < minFreeInodes) ? State.PAUSED : State.SLOW;
+      if (check.compareTo(next) > 0) {
+        next = check;
+        why = String.format("%d inodes free on the output file system", arg1);
+      }
+    }
+    if ((maxHeap > 0) && (arg2 >= 0) && (arg2 > maxHeap - HEAP_MARGIN)) {
+      check = (arg2 > maxHeap) ? State.PAUSED : State.SLOW;
+      if (check.compareTo(next) > 0) {
+        next = check;
+        why = String.format("%.0f%% of the heap in use", arg2 * 100);
+      }
+    }
+    if ((maxLoad > 0) && (arg3 >= 0) && (arg3 > maxLoad * LOAD_MARGIN)) {
+      check = (arg3 > maxLoad) ? State.PAUSED : State.SLOW;
+      if (check.compareTo(next) > 0) {
+        next = check;
+        why = String.format("load %.2f per processor", arg3);
+      }
+    }
+    State previous;
+    synchronized (lock) {
+      previous = state;
+      state = next;
+      reason = why;
+      lock.notifyAll();
+    }
+    if (next != previous) {
+      report(previous, next, why);
+    }
+    return next;
+  }
+
+  private void report(State arg0, State arg1, String arg2) {
+    String message;
+    if (State.PAUSED == arg1) {
+      message = String.format("WARN: Pausing the export, %s", arg2);
+      DfLogger.warn(this, "Pausing the export, {0}", new String[] {arg2}, null);
+    } else if (State.SLOW == arg1) {
+      message = String.format("WARN: Slowing the export down, %s", arg2);
+      DfLogger.warn(this, "Slowing the export down, {0}", new String[] {arg2}, null);
+    } else {
+      message = "INFO: Host resources back to normal, resuming the export";
+      DfLogger.info(this, "Host resources back to normal, resuming", null, null);
+    }
+    if (null != warningStream) {
+      warningStream.println(message);
+    }
+  }
+
+  public State getState() {
+    synchronized (lock) {
+      return state;
+    }
+  }
+
+  @Override
+  public boolean awaitOpen(long arg0, TimeUnit arg1) throws InterruptedException {
+    long deadline = System.nanoTime() + arg1.toNanos(arg0);
+    synchronized (lock) {
+      while (!closed) {
+        long now = System.nanoTime();
+        if (State.NORMAL == state) {
+          return true;
+        }
+        if ((State.SLOW == state) && (now - nextSlot >= 0)) {
+          nextSlot = now + TimeUnit.MILLISECONDS.toNanos(SLOW_MILLIS);
+          return true;
+        }
+        if (deadline - now <= 0) {
+          return false;
+        }
+        long remaining = deadline - now;
+        if (State.SLOW == state) {
+          remaining = Math.min(remaining, nextSlot - now);
+        }
+        TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+      }
+      return true;
+    }
+  }
+
+  @Override
+  public boolean isOpen() {
+    synchronized (lock) {
+      return closed || (State.PAUSED != state);
+    }
+  }
+
+  @Override
+  public String toString() {
+    synchronized (lock) {
+      return (null == reason) ? state.name() : String.format("%s (%s)", state, reason);
+    }
+  }
+
+  /** Stop sampling and let everything through. */
+  public void close() {
+    closed = true;
+    thread.interrupt();
+    synchronized (lock) {
+      lock.notifyAll();
+    }
+  }
+}
@@ -0,0 +1,50 @@
+package net.koeppster.dctm.commands.exporter;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates virtual threads on Java 21 or newer.  The build targets Java 11, so the
+ * <code>Thread.ofVirtual()</code> API is looked up at runtime instead of being compiled against.
+ */
+public final class VirtualThreads {
+
+  private static final int MIN_FEATURE_VERSION = 21;
+
+  private VirtualThreads() {}
+
+  /** Returns true if the running JVM supports virtual threads. */
+  public static boolean isSupported() {
+    if (Runtime.version().feature() < MIN_FEATURE_VERSION) {
+      return false;
+    }
+    try {
+      Thread.class.getMethod("ofVirtual");
+      return true;
+    } catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Returns a factory creating virtual threads.
+   *
+   * @throws UnsupportedOperationException If the running JVM has no virtual threads
+   */
+  public static ThreadFactory newFactory() {
+    if (!isSupported()) {
+      throw new UnsupportedOperationException(
+          String.format(
+              "Virtual threads need Java %d or newer, running on %s",
+              MIN_FEATURE_VERSION, Runtime.version()));
+    }
+    try {
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      // Call through the public interface, the builder class itself is not accessible
+      Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+      return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+    } catch (ReflectiveOperationException e) {
+      throw new UnsupportedOperationException(
+          String.format("Error creating virtual threads: %s", e.getMessage()), e);
+    }
+  }
+}
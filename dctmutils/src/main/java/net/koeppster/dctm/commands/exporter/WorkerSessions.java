@@ -0,0 +1,188 @@
+package net.koeppster.dctm.commands.exporter;
+
+import com.documentum.fc.client.IDfSession;
+import com.documentum.fc.client.IDfSessionManager;
+import com.documentum.fc.common.DfException;
+import com.documentum.fc.common.DfLogger;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Keeps one DFC session pinned to each worker thread instead of getting and releasing a session
+ * for every item, so the session's object cache stays warm and the session manager is not churned.
+ * A worker's session is replaced:
+ *
+ * <ul>
+ *   <li>after it has been used for <code>maxItems</code> items
+ *   <li>once it is older than <code>maxAge</code>
+ *   <li>when the item using it failed, or the session was disconnected
+ * </ul>
+ *
+ * <p>Every object fetched through a session stays in its object cache, so a pinned session's cache
+ * is flushed every <code>flushItems</code> items to keep the heap bounded.
+ *
+ * <p>The number of sessions can be capped.  A worker then waits for a session, and a worker that
+ * finishes an item hands its session back if others are waiting, as does a worker that goes idle
+ * (see {@link #releaseIdle()}).  This lets many workers (virtual threads, for example) share a
+ * fixed session budget.
+ *
+ * <p>Sessions still pinned when the export ends are released by {@link #releaseAll()}.
+ */
+public class WorkerSessions {
+
+  /** A session and how much it has been used. */
+  private static class Pinned {
+    private final IDfSession session;
+    private final long created = System.currentTimeMillis();
+    private int items = 0;
+
+    private Pinned(IDfSession session) {
+      this.session = session;
+    }
+  }
+
+  private final IDfSessionManager sessionManager;
+  private final String repo;
+  private final int maxItems;
+  private final long maxAge;
+  private final int flushItems;
+  private final Semaphore budget;
+  private final ThreadLocal<Pinned> current = new ThreadLocal<Pinned>();
+  private final Set<Pinned> pinned = ConcurrentHashMap.newKeySet();
+
+  /**
+   * @param sessionManager The session manager sessions are taken from
+   * @param repo The repository
+   * @param maxItems Items exported with one session before it is replaced (1 to release the
+   *     session after every item)
+   * @param maxAge Milliseconds a session is kept before it is replaced (0 for no limit)
+   * @param flushItems Items after which the session's object cache is flushed (0 to never flush)
+   * @param maxSessions Most sessions pinned at the same time (0 for no limit)
+   */
+  public WorkerSessions(
+      IDfSessionManager sessionManager,
+      String repo,
+      int maxItems,
+      long maxAge,
+      int flushItems,
+      int maxSessions) {
+    this.sessionManager = sessionManager;
+    this.repo = repo;
+    this.maxItems = Math.max(1, maxItems);
+    this.maxAge = Math.max(0, maxAge);
+    this.flushItems = Math.max(0, flushItems);
+    this.budget = (maxSessions > 0) ? new Semaphore(maxSessions, true) : null;
+  }
+
+  /**
+   * Returns the calling worker's session, replacing it first if it is used up or too old.
+   *
+   * @throws InterruptedException If interrupted while waiting for the session budget
+   */
+  public IDfSession acquire() throws DfException, InterruptedException {
+    Pinned pin = current.get();
+    if ((null != pin)
+        && (!pin.session.isConnected()
+            || (pin.items >= maxItems)
+            || ((maxAge > 0) && (System.currentTimeMillis() - pin.created > maxAge)))) {
+      unpin(pin);
+      pin = null;
+    }
+    if (null == pin) {
+      if (null != budget) {
+        budget.acquire();
+      }
+      try {
+        pin = new Pinned(sessionManager.getSession(repo));
+      } catch (DfException | RuntimeException e) {
+        if (null != budget) {
+          budget.release();
+        }
+        throw e;
+      }
+      current.set(pin);
+      pinned.add(pin);
+      DfLogger.debug(
+          this,
+          "Pinned a new session to {0}",
+          new String[] {Thread.currentThread().getName()},
+          null);
+    }
+    pin.items++;
+    return pin.session;
+  }
+
+  /**
+   * Called once the worker is done with an item.
+   *
+   * @param arg0 If true the session is released instead of being kept for the next item
+   */
+  public void done(boolean arg0) {
+    Pinned pin = current.get();
+    if (null == pin) {
+      return;
+    }
+    if (arg0 || (pin.items >= maxItems) || ((null != budget) && budget.hasQueuedThreads())) {
+      unpin(pin);
+    } else if ((flushItems > 0) && (pin.items % flushItems == 0)) {
+      try {
+        pin.session.flushCache(false);
+      } catch (DfException e) {
+        DfLogger.warn(this, "Error flushing the session cache, releasing the session", null, e);
+        unpin(pin);
+      }
+    }
+  }
+
+  /** Returns true if the number of sessions is capped. */
+  public boolean isBudgeted() {
+    return null != budget;
+  }
+
+  /** Release the calling worker's session, if it has one, because it has no work. */
+  public void releaseIdle() {
+    Pinned pin = current.get();
+    if (null != pin) {
+      unpin(pin);
+    }
+  }
+
+  private void unpin(Pinned arg0) {
+    current.remove();
+    if (pinned.remove(arg0)) {
+      release(arg0);
+    }
+  }
+
+  private void release(Pinned arg0) {
+    try {
+      if (arg0.session.isConnected()) {
+        sessionManager.release(arg0.session);
+      }
+    } finally {
+      if (null != budget) {
+        budget.release();
+      }
+    }
+  }
+
+  /** Returns the number of sessions pinned to workers. */
+  public int size() {
+    return pinned.size();
+  }
+
+  /** Disconnect the session manager's unused sessions, such as one released after a stall. */
+  public void flushIdle() {
+    sessionManager.flushSessions();
+  }
+
+  /** Release every pinned session.  Call once the workers have stopped. */
+  public void releaseAll() {
+    for (Pinned pin : pinned) {
+      if (pinned.remove(pin)) {
+        release(pin);
+      }
+    }
+  }
+}
@@ -0,0 +1,56 @@
+package net.koeppster.dctm.commands.exporter;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+class CandidateQueryBuilderTest {
+
+    @Test
+    void buildsQualificationWithoutWhere() {
+        String dql = new CandidateQueryBuilder("dm_document")
+            .select("i_chronicle_id", "r_object_id")
+            .build();
+        assertEquals("SELECT i_chronicle_id, r_object_id FROM dm_document", dql);
+    }
+
+    @Test
+    void keepsQualificationWhereWhenNoConditions() {
+        String dql = new CandidateQueryBuilder("dm_document where owner_name = 'dmadmin'")
+            .select("r_object_id")
+            .build();
+        assertEquals("SELECT r_object_id FROM dm_document WHERE owner_name = 'dmadmin'", dql);
+    }
+
+    @Test
+    void andsConditionsWithQualificationWhere() {
+        String dql = new CandidateQueryBuilder("dm_document WHERE a = 1 OR b = 2")
+            .select("r_object_id")
+            .addCondition("r_object_id > '0900000180001234'")
+            .orderBy("r_object_id")
+            .returnTop(100)
+            .build();
+        assertEquals(
+            "SELECT r_object_id FROM dm_document WHERE (a = 1 OR b = 2)"
+                + " AND r_object_id > '0900000180001234'"
+                + " ORDER BY r_object_id ENABLE (RETURN_TOP 100)",
+            dql);
+    }
+
+    @Test
+    void addsWhereForConditionsOnly() {
+        String dql = new CandidateQueryBuilder("dm_document (ALL)")
+            .select("r_object_id")
+            .addCondition("a = 1")
+            .addCondition("b = 2")
+            .build();
+        assertEquals("SELECT r_object_id FROM dm_document (ALL) WHERE a = 1 AND b = 2", dql);
+    }
+
+    @Test
+    void detectsTrailingClauses() {
+        assertTrue(CandidateQueryBuilder.canExtend("dm_document WHERE a = 1"));
+        assertFalse(CandidateQueryBuilder.canExtend("dm_document ORDER BY r_object_id"));
+        assertFalse(CandidateQueryBuilder.canExtend("dm_document enable (RETURN_TOP 10)"));
+    }
+}
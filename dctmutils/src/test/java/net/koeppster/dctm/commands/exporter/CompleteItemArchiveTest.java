@@ -0,0 +1,72 @@
+package net.koeppster.dctm.commands.exporter;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class CompleteItemArchiveTest {
+
+    @TempDir
+    File dir;
+
+    private static ExportQueueItem item(long chronicleId, long objectId, long modified) {
+        return new ExportQueueItem(
+            chronicleId, objectId, modified, ExportQueueItem.ItemStatus.COMPLETE);
+    }
+
+    @Test
+    void mergesNewItemsOverExistingArchive() throws Exception {
+        File file = CompleteItemArchive.fileFor(new File(dir, "items.db"));
+        CompleteItemArchive.write(file, null, Arrays.asList(
+            item(1L, 11L, 100L), item(3L, 31L, 300L), item(5L, 51L, 500L)));
+        CompleteItemArchive first = new CompleteItemArchive(file);
+        assertEquals(3, first.size());
+
+        assertEquals(4, CompleteItemArchive.write(file, first, Arrays.asList(
+            item(2L, 21L, 200L), item(3L, 32L, 301L))));
+        CompleteItemArchive merged = new CompleteItemArchive(file);
+        assertEquals(4, merged.size());
+        assertTrue(merged.contains(1L, 11L, 100L));
+        assertTrue(merged.contains(2L, 21L, 200L));
+        assertTrue(merged.contains(3L, 32L, 301L));
+        assertFalse(merged.contains(3L, 31L, 300L));
+        assertTrue(merged.contains(5L, 51L, 500L));
+        assertFalse(merged.contains(4L, 41L, 400L));
+    }
+
+    @Test
+    void writerMergesUnsortedRunsOverExistingArchive() throws Exception {
+        File file = CompleteItemArchive.fileFor(new File(dir, "items.db"));
+        CompleteItemArchive.write(
+            file, null, Arrays.asList(item(2L, 21L, 200L), item(9L, 91L, 900L)));
+        CompleteItemArchive first = new CompleteItemArchive(file);
+
+        try (CompleteItemArchive.Writer writer = new CompleteItemArchive.Writer(file, 2)) {
+            for (long id : new long[] {7L, 3L, 2L, -5L, 8L}) {
+                writer.add(item(id, id * 10 + 2, id * 100 + 1));
+            }
+            assertEquals(5, writer.getAdded());
+            assertEquals(6, writer.finish(first));
+        }
+        assertEquals(1, dir.listFiles().length);
+        CompleteItemArchive merged = new CompleteItemArchive(file);
+        assertEquals(6, merged.size());
+        assertTrue(merged.contains(-5L, -48L, -499L));
+        assertTrue(merged.contains(2L, 22L, 201L));
+        assertFalse(merged.contains(2L, 21L, 200L));
+        assertTrue(merged.contains(9L, 91L, 900L));
+        assertTrue(merged.contains(8L, 82L, 801L));
+        assertFalse(merged.contains(4L, 42L, 401L));
+    }
+
+    @Test
+    void handlesEmptyArchive() throws Exception {
+        File file = new File(dir, "empty.archive");
+        assertEquals(0, CompleteItemArchive.write(file, null, Collections.emptyList()));
+        assertFalse(new CompleteItemArchive(file).contains(1L, 1L, 1L));
+    }
+}
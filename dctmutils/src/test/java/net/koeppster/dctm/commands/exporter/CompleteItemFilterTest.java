@@ -0,0 +1,68 @@
+package net.koeppster.dctm.commands.exporter;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class CompleteItemFilterTest {
+
+    @Test
+    void findsEveryItemAfterGrowing() {
+        CompleteItemFilter filter = new CompleteItemFilter();
+        // Well past the initial table, so it resizes several times
+        int count = 200000;
+        for (long i = 0; i < count; i++) {
+            filter.add(i, -i, i * 1000L);
+        }
+        filter.add(0L, 0L, 0L);
+        assertEquals(count, filter.size());
+        for (long i = 0; i < count; i++) {
+            assertTrue(filter.contains(i, -i, i * 1000L), Long.toString(i));
+        }
+        assertFalse(filter.contains(1L, -1L, 1001L));
+        assertFalse(filter.contains(count, -count, count * 1000L));
+    }
+
+    @Test
+    void onlyMatchesTheExactVersion() {
+        CompleteItemFilter filter = new CompleteItemFilter();
+        filter.add(7L, 71L, 700L);
+        assertTrue(filter.contains(7L, 71L, 700L));
+        assertFalse(filter.contains(7L, 72L, 700L));
+        assertFalse(filter.contains(7L, 71L, 701L));
+        // A newer version replaces the chronicle's earlier one
+        filter.add(7L, 72L, 800L);
+        assertEquals(1, filter.size());
+        assertTrue(filter.contains(7L, 72L, 800L));
+        assertFalse(filter.contains(7L, 71L, 700L));
+    }
+
+    @Test
+    void putItemsDropsUnchangedCompleteItems() {
+        MemoryQueueStore store = new MemoryQueueStore();
+        ExportQueueItem done = new ExportQueueItem(1L, 11L, 100L, null);
+        ExportQueueItem open = new ExportQueueItem(2L, 21L, 200L, null);
+        store.putItems(Arrays.asList(done, open));
+        assertEquals(1, store.updateItemStatuses(Collections.singletonList(
+            new ExportQueueItem(1L, 11L, 100L, ExportQueueItem.ItemStatus.COMPLETE))));
+        assertEquals(1, store.loadCompleteItemFilter());
+
+        List<ExportQueueItem> ready = store.putItems(Arrays.asList(
+            new ExportQueueItem(1L, 11L, 100L, null), new ExportQueueItem(2L, 21L, 200L, null)));
+        assertEquals(1, ready.size());
+        assertEquals(2L, ready.get(0).getChronicleId());
+
+        // Completed once the filter is loaded, then listed again unchanged and changed
+        assertEquals(1, store.updateItemStatuses(Collections.singletonList(
+            new ExportQueueItem(2L, 21L, 200L, ExportQueueItem.ItemStatus.COMPLETE))));
+        assertTrue(store.putItems(
+            Collections.singletonList(new ExportQueueItem(2L, 21L, 200L, null))).isEmpty());
+        ready = store.putItems(
+            Collections.singletonList(new ExportQueueItem(1L, 12L, 150L, null)));
+        assertEquals(1, ready.size());
+        assertEquals(ExportQueueItem.ItemStatus.READY, ready.get(0).getStatus());
+    }
+}
@@ -0,0 +1,48 @@
+package net.koeppster.dctm.commands.exporter;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class ConcurrencyControllerTest {
+
+    private PipelineStage stage;
+
+    @BeforeEach
+    void startStage() {
+        stage = new PipelineStage("test", 8, 4);
+    }
+
+    @AfterEach
+    void stopStage() {
+        stage.shutdownNow();
+    }
+
+    private ConcurrencyController controller() {
+        return new ConcurrencyController(stage, () -> 0L, 2, 10, 1000L);
+    }
+
+    @Test
+    void addsWorkerWhileSaturatedAndHealthy() {
+        ConcurrencyController controller = controller();
+        assertEquals(9, controller.nextLimit(100, 50.0, 0, true));
+        assertEquals(8, controller.nextLimit(100, 50.0, 0, false));
+    }
+
+    @Test
+    void cutsWorkersOnErrorsOrSlowItems() {
+        ConcurrencyController controller = controller();
+        assertEquals(6, controller.nextLimit(100, 50.0, 10, true));
+        assertEquals(9, controller.nextLimit(100, 90.0, 0, true));
+        assertEquals(6, controller.nextLimit(100, 500.0, 0, true));
+    }
+
+    @Test
+    void staysWithinBounds() {
+        ConcurrencyController low = new ConcurrencyController(stage, () -> 0L, 7, 8, 1000L);
+        assertEquals(7, low.nextLimit(10, 50.0, 10, true));
+        assertEquals(8, low.nextLimit(10, 50.0, 0, true));
+    }
+}
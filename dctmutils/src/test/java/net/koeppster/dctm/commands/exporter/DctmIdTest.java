@@ -0,0 +1,27 @@
+package net.koeppster.dctm.commands.exporter;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+class DctmIdTest {
+
+    @Test
+    void roundTripsUnsignedIds() {
+        for (String id : new String[] {
+                "0000000000000000", "0900000180000001", "7fffffffffffffff", "8000000000000000",
+                "f9000001800000ff", "ffffffffffffffff"}) {
+            assertEquals(id, DctmId.toString(DctmId.toLong(id)));
+        }
+        assertEquals(DctmId.NULL_ID, DctmId.toLong("0000000000000000"));
+        assertTrue(DctmId.toLong("f900000180000001") < 0);
+        assertEquals("09000001800000ab", DctmId.toString(DctmId.toLong("09000001800000AB")));
+    }
+
+    @Test
+    void rejectsInvalidIds() {
+        assertThrows(NumberFormatException.class, () -> DctmId.toLong("09000001"));
+        assertThrows(NumberFormatException.class, () -> DctmId.toLong("09000001800000001"));
+        assertThrows(NumberFormatException.class, () -> DctmId.toLong("090000018000000g"));
+    }
+}
@@ -0,0 +1,50 @@
+package net.koeppster.dctm.commands.exporter;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.time.LocalDateTime;
+import org.junit.jupiter.api.Test;
+
+class ExportScheduleTest {
+
+    // 2024-01-01 is a Monday
+    private static LocalDateTime at(int day, int hour, int minute) {
+        return LocalDateTime.of(2024, 1, day, hour, minute);
+    }
+
+    @Test
+    void overnightWindowRunsIntoTheNextMorning() {
+        ExportSchedule schedule = new ExportSchedule(
+            "Mon-Fri 20:00-06:00 threads=4 objectrate=20; Sat,Sun 00:00-24:00", null);
+        ExportSchedule.Window weekday = schedule.getWindows().get(0);
+        assertSame(weekday, schedule.find(at(1, 20, 0)));
+        assertSame(weekday, schedule.find(at(2, 5, 59)));
+        assertNull(schedule.find(at(2, 6, 0)));
+        assertNull(schedule.find(at(1, 5, 0)));
+        // Friday night runs into Saturday, which is also a window of its own
+        assertSame(weekday, schedule.find(at(6, 3, 0)));
+        assertSame(schedule.getWindows().get(1), schedule.find(at(6, 12, 0)));
+        assertSame(schedule.getWindows().get(1), schedule.find(at(7, 23, 59)));
+        assertEquals(4, weekday.getThreads());
+        assertEquals(20, weekday.getObjectRate());
+        assertEquals(-1, weekday.getKbRate());
+    }
+
+    @Test
+    void everyDayWindow() {
+        ExportSchedule schedule = new ExportSchedule("* 9-17 kbrate=1024", null);
+        assertNotNull(schedule.find(at(3, 9, 0)));
+        assertNull(schedule.find(at(3, 17, 0)));
+        assertEquals(1024, schedule.getWindows().get(0).getKbRate());
+    }
+
+    @Test
+    void rejectsInvalidWindows() {
+        assertThrows(IllegalArgumentException.class, () -> new ExportSchedule("", null));
+        assertThrows(IllegalArgumentException.class, () -> new ExportSchedule("Mon 20:00", null));
+        assertThrows(IllegalArgumentException.class, () -> new ExportSchedule("Xyz 1-2", null));
+        assertThrows(IllegalArgumentException.class, () -> new ExportSchedule("Mon 25:00-2", null));
+        assertThrows(
+            IllegalArgumentException.class, () -> new ExportSchedule("Mon 1-2 speed=3", null));
+    }
+}
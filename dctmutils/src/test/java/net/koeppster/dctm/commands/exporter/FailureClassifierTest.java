@@ -0,0 +1,51 @@
+package net.koeppster.dctm.commands.exporter;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.documentum.fc.common.DfException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.file.AccessDeniedException;
+import java.util.concurrent.TimeoutException;
+import org.junit.jupiter.api.Test;
+
+class FailureClassifierTest {
+
+    private static DfException dfException(String messageId) {
+        return new DfException() {
+            @Override
+            public String getMessageId() {
+                return messageId;
+            }
+        };
+    }
+
+    @Test
+    void networkAndTimeoutFailuresAreTransient() {
+        assertTrue(FailureClassifier.isTransient(new SocketTimeoutException("read timed out")));
+        assertTrue(FailureClassifier.isTransient(new IOException("connection reset")));
+        assertTrue(FailureClassifier.isTransient(new TimeoutException()));
+        assertTrue(FailureClassifier.isTransient(dfException("DM_SESSION_E_RPC_ERROR")));
+        assertTrue(FailureClassifier.isTransient(dfException("DM_SYSOBJECT_E_LOCKED")));
+    }
+
+    @Test
+    void localFileAndRepositoryErrorsArePermanent() {
+        assertFalse(FailureClassifier.isTransient(new FileNotFoundException("out/doc.pdf")));
+        assertFalse(FailureClassifier.isTransient(new AccessDeniedException("out/doc.pdf")));
+        assertFalse(FailureClassifier.isTransient(dfException("DM_API_E_EXIST")));
+        assertFalse(FailureClassifier.isTransient(dfException(null)));
+        assertFalse(FailureClassifier.isTransient(new IllegalStateException("bug")));
+    }
+
+    @Test
+    void checksTheWholeCauseChain() {
+        assertTrue(
+            FailureClassifier.isTransient(
+                new ItemFailedException("export", new RuntimeException(new IOException("reset")))));
+        assertFalse(
+            FailureClassifier.isTransient(
+                new RuntimeException(new FileNotFoundException("out/doc.pdf"))));
+    }
+}
@@ -0,0 +1,59 @@
+package net.koeppster.dctm.commands.exporter;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class ItemLeaseTest {
+
+    private static final long NOW = 1_000_000L;
+
+    private static ExportQueueItem leased(String owner, long expiry) {
+        ExportQueueItem item =
+            new ExportQueueItem(1L, 2L, 3L, ExportQueueItem.ItemStatus.IN_PROESS);
+        item.setLease(owner, expiry);
+        return item;
+    }
+
+    private static String localOwner(long pid) {
+        String current = ItemLease.currentOwner();
+        return current.substring(0, current.lastIndexOf('/') + 1).concat(Long.toString(pid));
+    }
+
+    @Test
+    void expiredOrUnownedItemIsAbandoned() {
+        assertTrue(ItemLease.isAbandoned(leased(ItemLease.currentOwner(), NOW), NOW));
+        assertTrue(ItemLease.isAbandoned(leased("otherhost/1", NOW - 1), NOW));
+        assertTrue(ItemLease.isAbandoned(leased(null, NOW + 60000L), NOW));
+    }
+
+    @Test
+    void liveOwnerKeepsItem() {
+        assertFalse(ItemLease.isAbandoned(leased(ItemLease.currentOwner(), NOW + 60000L), NOW));
+        long parent = ProcessHandle.current().parent().map(ProcessHandle::pid).orElse(1L);
+        assertFalse(ItemLease.isAbandoned(leased(localOwner(parent), NOW + 60000L), NOW));
+    }
+
+    @Test
+    void deadLocalOwnerLosesItemBeforeExpiry() throws Exception {
+        String java = ProcessHandle.current().info().command().orElse("java");
+        Process process = new ProcessBuilder(java, "-version").start();
+        assertTrue(process.waitFor(30, TimeUnit.SECONDS));
+        assertTrue(ItemLease.isAbandoned(leased(localOwner(process.pid()), NOW + 60000L), NOW));
+    }
+
+    @Test
+    void foreignOwnerKeepsItemUntilExpiry() {
+        assertFalse(ItemLease.isAbandoned(leased("otherhost.example/1", NOW + 60000L), NOW));
+        assertFalse(ItemLease.isAbandoned(leased("no-pid", NOW + 60000L), NOW));
+    }
+
+    @Test
+    void renewalNeedsTheSameOwner() {
+        ExportQueueItem stored = leased(ItemLease.currentOwner(), NOW);
+        assertTrue(ItemLease.isRenewal(stored, leased(ItemLease.currentOwner(), NOW + 1)));
+        assertFalse(ItemLease.isRenewal(stored, leased("otherhost/1", NOW + 1)));
+        assertFalse(ItemLease.isRenewal(stored, leased(ItemLease.currentOwner(), NOW - 1)));
+    }
+}
@@ -0,0 +1,47 @@
+package net.koeppster.dctm.commands.exporter;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class ItemRetryPolicyTest {
+
+    private final ItemRetryPolicy policy = new ItemRetryPolicy(3, 1000L, 10000L);
+
+    @AfterEach
+    void shutdown() {
+        policy.shutdown();
+    }
+
+    @Test
+    void retriesTransientFailuresUpToMaxRetries() {
+        IOException transientFailure = new IOException("connection reset");
+        assertTrue(policy.shouldRetry(1, transientFailure));
+        assertTrue(policy.shouldRetry(3, transientFailure));
+        assertFalse(policy.shouldRetry(4, transientFailure));
+    }
+
+    @Test
+    void neverRetriesPermanentFailures() {
+        assertFalse(policy.shouldRetry(1, new IllegalArgumentException("bad content")));
+    }
+
+    @Test
+    void delayDoublesWithEachAttemptUpToTheCap() {
+        for (int i = 0; i < 100; i++) {
+            assertBetween(500L, 1000L, policy.getDelay(1));
+            assertBetween(1000L, 2000L, policy.getDelay(2));
+            assertBetween(4000L, 8000L, policy.getDelay(4));
+            assertBetween(5000L, 10000L, policy.getDelay(5));
+            assertBetween(5000L, 10000L, policy.getDelay(100));
+        }
+    }
+
+    private static void assertBetween(long low, long high, long actual) {
+        assertTrue(
+            (actual >= low) && (actual <= high),
+            String.format("%d is not between %d and %d", actual, low, high));
+    }
+}
@@ -0,0 +1,87 @@
+package net.koeppster.dctm.commands.exporter;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.Test;
+
+class ItemWatchdogTest {
+
+    private static ExportQueueItem item() {
+        return new ExportQueueItem(1L, 2L, 3L, ExportQueueItem.ItemStatus.READY);
+    }
+
+    @Test
+    void abandonsItemStuckInStage() throws Exception {
+        ItemWatchdog watchdog = new ItemWatchdog(0L, 100L);
+        watchdog.start();
+        CountDownLatch stalled = new CountDownLatch(1);
+        AtomicReference<String> stage = new AtomicReference<>();
+        AtomicBoolean finished = new AtomicBoolean(true);
+        AtomicBoolean interrupted = new AtomicBoolean(false);
+        AtomicBoolean abandoned = new AtomicBoolean(false);
+        Thread worker = new Thread(() -> {
+            ItemWatchdog.Ticket ticket = watchdog.begin(item(), (item, name, elapsed, stuck) -> {
+                stage.set(name);
+                stalled.countDown();
+            });
+            try {
+                ItemWatchdog.enterStage("getFile");
+                Thread.sleep(10000);
+            } catch (InterruptedException e) {
+                interrupted.set(true);
+            }
+            abandoned.set(ItemWatchdog.isCurrentAbandoned());
+            finished.set(ticket.finish());
+            interrupted.set(interrupted.get() && !Thread.currentThread().isInterrupted());
+        });
+        worker.start();
+        assertTrue(stalled.await(5, TimeUnit.SECONDS));
+        worker.join(5000);
+        watchdog.close();
+
+        assertEquals("getFile", stage.get());
+        assertTrue(interrupted.get());
+        assertTrue(abandoned.get());
+        assertFalse(finished.get());
+        assertEquals(1, watchdog.getStalled());
+    }
+
+    @Test
+    void leavesItemFinishedInTimeAlone() throws Exception {
+        ItemWatchdog watchdog = new ItemWatchdog(60000L, 60000L);
+        watchdog.start();
+        ItemWatchdog.Ticket ticket = watchdog.begin(item(), (item, name, elapsed, stuck) -> fail());
+        ItemWatchdog.enterStage("getObject");
+        assertTrue(ticket.finish());
+        assertFalse(ItemWatchdog.isCurrentAbandoned());
+        watchdog.close();
+        assertEquals(0, watchdog.getStalled());
+    }
+
+    @Test
+    void queuedItemIsOnlyHeldToItemDeadline() throws Exception {
+        ItemWatchdog watchdog = new ItemWatchdog(1500L, 100L);
+        watchdog.start();
+        CountDownLatch stalled = new CountDownLatch(1);
+        AtomicReference<Thread> stuck = new AtomicReference<>(Thread.currentThread());
+        ItemWatchdog.Ticket ticket = watchdog.begin(item(), (item, name, elapsed, worker) -> {
+            stuck.set(worker);
+            stalled.countDown();
+        });
+        ItemWatchdog.enterStage("getObject");
+        ItemWatchdog.detach();
+        assertFalse(stalled.await(500, TimeUnit.MILLISECONDS));
+        assertTrue(stalled.await(5, TimeUnit.SECONDS));
+        watchdog.close();
+
+        assertNull(stuck.get());
+        ItemWatchdog.attach(ticket);
+        assertThrows(InterruptedException.class, () -> ItemWatchdog.enterStage("getFile"));
+        assertFalse(ticket.finish());
+        assertFalse(Thread.currentThread().isInterrupted());
+    }
+}
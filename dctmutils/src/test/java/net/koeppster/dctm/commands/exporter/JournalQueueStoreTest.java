@@ -0,0 +1,131 @@
+package net.koeppster.dctm.commands.exporter;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class JournalQueueStoreTest {
+
+    private static final String CHRONICLE_1 = "0900000180000001";
+    private static final String CHRONICLE_2 = "0900000180000002";
+
+    @TempDir
+    File dir;
+
+    private static ExportQueueItem candidate(String chronicleId, String objectId, long modified) {
+        return new ExportQueueItem(
+            DctmId.toLong(chronicleId), DctmId.toLong(objectId), modified, null);
+    }
+
+    @Test
+    void replaysItemsStatusesAndCheckpoints() throws Exception {
+        File file = new File(dir, "queue.journal");
+        JournalQueueStore store = new JournalQueueStore(file, false);
+        List<ExportQueueItem> ready = store.putItems(Arrays.asList(
+            candidate(CHRONICLE_1, CHRONICLE_1, 1000L),
+            candidate(CHRONICLE_2, CHRONICLE_2, 2000L)));
+        assertEquals(2, ready.size());
+        ExportQueueItem done = ready.get(0);
+        done.setStatus(ExportQueueItem.ItemStatus.COMPLETE);
+        assertEquals(1, store.updateItemStatuses(Collections.singletonList(done)));
+        store.putCheckpoint("listing:test", "0900000180000002");
+        store.putCheckpoint("other", "x");
+        store.removeCheckpoint("other");
+        store.shutdown();
+
+        JournalQueueStore reopened = new JournalQueueStore(file, false);
+        assertEquals("0900000180000002", reopened.getCheckpoint("listing:test"));
+        assertNull(reopened.getCheckpoint("other"));
+        QueueStore.ItemCursor open = reopened.getOpenItems(10, 0L);
+        assertEquals(1, open.getNumItems());
+        assertEquals(CHRONICLE_2, open.next().getChronicleIdString());
+        assertFalse(open.hasNext());
+        reopened.shutdown();
+    }
+
+    @Test
+    void keepsContentSizeAndListsLargeItemsFirst() throws Exception {
+        File file = new File(dir, "queue.journal");
+        JournalQueueStore store = new JournalQueueStore(file, false);
+        ExportQueueItem small = candidate(CHRONICLE_1, CHRONICLE_1, 1000L);
+        small.setContentSize(10L);
+        ExportQueueItem medium = candidate(CHRONICLE_2, CHRONICLE_2, 1000L);
+        medium.setContentSize(500L);
+        ExportQueueItem large = candidate("0900000180000003", "0900000180000003", 1000L);
+        large.setContentSize(9000L);
+        store.putItems(Arrays.asList(small, medium, large));
+        store.shutdown();
+
+        JournalQueueStore reopened = new JournalQueueStore(file, false);
+        Iterator<ExportQueueItem> items = reopened.getLargeItems(100L);
+        assertEquals(9000L, items.next().getContentSize());
+        assertEquals(500L, items.next().getContentSize());
+        assertFalse(items.hasNext());
+        assertEquals(3, reopened.getOpenItems(10, 0L).getNumItems());
+        QueueStore.ItemCursor open = reopened.getOpenItems(10, 100L);
+        assertEquals(1, open.getNumItems());
+        assertEquals(10L, open.next().getContentSize());
+        assertFalse(open.hasNext());
+        reopened.shutdown();
+    }
+
+    @Test
+    void ignoresStatusChangeForOlderVersion() throws Exception {
+        JournalQueueStore store = new JournalQueueStore(new File(dir, "queue.journal"), false);
+        ExportQueueItem first = store.putItems(
+            Collections.singletonList(candidate(CHRONICLE_1, CHRONICLE_1, 1000L))).get(0);
+        store.putItems(Collections.singletonList(candidate(CHRONICLE_1, "0900000180000009", 3000L)));
+        first.setStatus(ExportQueueItem.ItemStatus.COMPLETE);
+        assertEquals(0, store.updateItemStatuses(Collections.singletonList(first)));
+        assertEquals(1, store.getOpenItems(10, 0L).getNumItems());
+        store.shutdown();
+    }
+
+    @Test
+    void dropsPartialRecordAndCompacts() throws Exception {
+        File file = new File(dir, "queue.journal");
+        JournalQueueStore store = new JournalQueueStore(file, false);
+        store.putItems(Collections.singletonList(candidate(CHRONICLE_1, CHRONICLE_1, 1000L)));
+        store.putItems(Collections.singletonList(candidate(CHRONICLE_1, CHRONICLE_1, 2000L)));
+        store.shutdown();
+        long length = file.length();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(length - 5);
+        }
+
+        JournalQueueStore reopened = new JournalQueueStore(file, false);
+        assertEquals(1, reopened.getOpenItems(10, 0L).getNumItems());
+        assertEquals(1000L, reopened.getOpenItems(10, 0L).next().getModifiedDate());
+        reopened.compact();
+        reopened.shutdown();
+        assertTrue(file.length() < length);
+        assertFalse(new File(dir, "queue.journal.compact").exists());
+    }
+
+    @Test
+    void treatsBadStatusAsEndOfJournal() throws Exception {
+        File file = new File(dir, "queue.journal");
+        JournalQueueStore store = new JournalQueueStore(file, false);
+        store.putItems(Collections.singletonList(candidate(CHRONICLE_1, CHRONICLE_1, 1000L)));
+        store.putItems(Collections.singletonList(candidate(CHRONICLE_1, CHRONICLE_1, 2000L)));
+        store.shutdown();
+        long length = file.length();
+        // The status byte of the last record, followed by its content size
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(length - 9);
+            raf.writeByte(0x7f);
+        }
+
+        JournalQueueStore reopened = new JournalQueueStore(file, false);
+        assertEquals(1000L, reopened.getOpenItems(10, 0L).next().getModifiedDate());
+        reopened.shutdown();
+        assertTrue(file.length() < length);
+    }
+}
@@ -0,0 +1,75 @@
+package net.koeppster.dctm.commands.exporter;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+class PipelineStageTest {
+
+    @Test
+    void runsQueuedTasksBeforeTerminating() throws Exception {
+        PipelineStage stage = new PipelineStage("test", 2, 4);
+        AtomicInteger ran = new AtomicInteger();
+        for (int i = 0; i < 20; i++) {
+            stage.execute(ran::incrementAndGet);
+        }
+        stage.shutdown();
+        assertTrue(stage.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(20, ran.get());
+        assertEquals(20, stage.getCompleted());
+        assertThrows(RejectedExecutionException.class, () -> stage.execute(ran::incrementAndGet));
+    }
+
+    @Test
+    void addedWorkerReplacesBlockedOne() throws Exception {
+        PipelineStage stage = new PipelineStage("test", 1, 4);
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        stage.execute(() -> {
+            blocked.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+        assertEquals(1, stage.getBusy());
+
+        stage.addWorker();
+        CountDownLatch ran = new CountDownLatch(1);
+        stage.execute(ran::countDown);
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertEquals(2, stage.getThreads());
+
+        stage.retireWorker();
+        release.countDown();
+        long deadline = System.currentTimeMillis() + 5000;
+        while ((stage.getThreads() > 1) && (System.currentTimeMillis() < deadline)) {
+            Thread.sleep(20);
+        }
+        assertEquals(1, stage.getThreads());
+        stage.shutdown();
+        assertTrue(stage.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void idleTaskRunsOnceWhenQueueEmptiesAndOnExit() throws Exception {
+        PipelineStage stage = new PipelineStage("test", 1, 4);
+        AtomicInteger idle = new AtomicInteger();
+        stage.setIdleTask(idle::incrementAndGet);
+        CountDownLatch ran = new CountDownLatch(1);
+        stage.execute(ran::countDown);
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        Thread.sleep(1000);
+        assertEquals(1, idle.get());
+
+        stage.shutdown();
+        assertTrue(stage.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(2, idle.get());
+    }
+}
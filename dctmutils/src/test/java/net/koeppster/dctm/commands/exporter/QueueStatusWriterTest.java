@@ -0,0 +1,143 @@
+package net.koeppster.dctm.commands.exporter;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import net.koeppster.dctm.utils.UtilsException;
+import org.junit.jupiter.api.Test;
+
+class QueueStatusWriterTest {
+
+    /** Records every batch the writer commits, optionally holding the writer back. */
+    private static class RecordingStore extends MemoryQueueStore {
+        final List<List<ExportQueueItem>> batches = new ArrayList<>();
+        final List<Integer> updated = new ArrayList<>();
+        final CountDownLatch entered = new CountDownLatch(1);
+        volatile CountDownLatch release = null;
+
+        @Override
+        public int updateItemStatuses(Collection<ExportQueueItem> arg0) {
+            entered.countDown();
+            try {
+                if (null != release) {
+                    release.await();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            int count = super.updateItemStatuses(arg0);
+            synchronized (this) {
+                batches.add(new ArrayList<>(arg0));
+                updated.add(count);
+            }
+            return count;
+        }
+
+        ExportQueueItem stored(long arg0) {
+            return items.get(arg0);
+        }
+    }
+
+    private static ExportQueueItem item(long objectId, long modified) {
+        return new ExportQueueItem(1L, objectId, modified, ExportQueueItem.ItemStatus.READY);
+    }
+
+    @Test
+    void lastChangeForAChronicleWins() throws Exception {
+        RecordingStore store = new RecordingStore();
+        store.putItems(Collections.singletonList(item(11L, 100L)));
+        QueueStatusWriter writer = new QueueStatusWriter(store, 100, 60000L, 60000L);
+        // Queued before the thread starts, so both land in its first batch
+        writer.markItemInprogress(item(11L, 100L));
+        writer.markItemComplete(item(11L, 100L));
+        writer.start();
+        writer.flush();
+
+        assertEquals(1, store.batches.size());
+        assertEquals(1, store.batches.get(0).size());
+        assertEquals(ExportQueueItem.ItemStatus.COMPLETE, store.batches.get(0).get(0).getStatus());
+        assertEquals(ExportQueueItem.ItemStatus.COMPLETE, store.stored(1L).getStatus());
+        writer.close();
+    }
+
+    @Test
+    void dropsChangeForAnOlderVersion() throws Exception {
+        RecordingStore store = new RecordingStore();
+        store.putItems(Collections.singletonList(item(11L, 100L)));
+        QueueStatusWriter writer = new QueueStatusWriter(store, 100, 10L, 60000L);
+        writer.start();
+        writer.markItemInprogress(item(11L, 100L));
+        writer.flush();
+        assertEquals(ExportQueueItem.ItemStatus.IN_PROESS, store.stored(1L).getStatus());
+
+        // A new version is listed while the old one is still being exported
+        store.putItems(Collections.singletonList(item(12L, 200L)));
+        writer.markItemComplete(item(11L, 100L));
+        writer.flush();
+
+        assertEquals(Integer.valueOf(0), store.updated.get(store.updated.size() - 1));
+        assertEquals(ExportQueueItem.ItemStatus.READY, store.stored(1L).getStatus());
+        assertEquals(12L, store.stored(1L).getObjectId());
+        writer.close();
+    }
+
+    @Test
+    void flushWaitsForQueuedChangesAndCloseStopsTheWriter() throws Exception {
+        RecordingStore store = new RecordingStore();
+        store.putItems(Collections.singletonList(item(11L, 100L)));
+        store.release = new CountDownLatch(1);
+        QueueStatusWriter writer = new QueueStatusWriter(store, 100, 10L, 60000L);
+        writer.start();
+        writer.markItemComplete(item(11L, 100L));
+        assertTrue(store.entered.await(5, TimeUnit.SECONDS));
+
+        CountDownLatch flushed = new CountDownLatch(1);
+        Thread flusher = new Thread(() -> {
+            try {
+                writer.flush();
+                flushed.countDown();
+            } catch (UtilsException | InterruptedException e) {
+                fail(e);
+            }
+        });
+        flusher.start();
+        assertFalse(flushed.await(200, TimeUnit.MILLISECONDS));
+        assertEquals(ExportQueueItem.ItemStatus.READY, store.stored(1L).getStatus());
+
+        store.release.countDown();
+        assertTrue(flushed.await(5, TimeUnit.SECONDS));
+        assertEquals(ExportQueueItem.ItemStatus.COMPLETE, store.stored(1L).getStatus());
+
+        writer.close();
+        assertThrows(UtilsException.class, () -> writer.markItemComplete(item(11L, 100L)));
+    }
+
+    @Test
+    void renewsLeaseUntilTheItemIsFinished() throws Exception {
+        RecordingStore store = new RecordingStore();
+        store.putItems(Collections.singletonList(item(11L, 100L)));
+        QueueStatusWriter writer = new QueueStatusWriter(store, 100, 10L, 200L);
+        writer.start();
+        writer.markItemInprogress(item(11L, 100L));
+        writer.flush();
+        long firstExpiry = store.stored(1L).getLeaseExpiry();
+
+        Thread.sleep(400);
+        writer.flush();
+        assertEquals(ExportQueueItem.ItemStatus.IN_PROESS, store.stored(1L).getStatus());
+        assertTrue(store.stored(1L).getLeaseExpiry() > firstExpiry);
+        assertTrue(store.stored(1L).getLeaseExpiry() > System.currentTimeMillis());
+
+        writer.markItemComplete(item(11L, 100L));
+        writer.flush();
+        Thread.sleep(300);
+        writer.flush();
+        assertEquals(ExportQueueItem.ItemStatus.COMPLETE, store.stored(1L).getStatus());
+        writer.close();
+    }
+}
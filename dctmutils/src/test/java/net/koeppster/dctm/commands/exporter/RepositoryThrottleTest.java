@@ -0,0 +1,41 @@
+package net.koeppster.dctm.commands.exporter;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class RepositoryThrottleTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    void callerWaitsForTheTokensTakenBeforeIt() {
+        RepositoryThrottle.Bucket bucket = new RepositoryThrottle.Bucket(10);
+        assertEquals(0, bucket.reserve(1, 0));
+        assertEquals(-1, bucket.reserve(1, 0));
+        long wait = bucket.reserve(1, SECOND);
+        assertTrue(wait > 0 && wait <= SECOND / 10, "waited " + wait);
+    }
+
+    @Test
+    void largeRequestGoesAtOnceAndDelaysTheNext() {
+        RepositoryThrottle.Bucket bucket = new RepositoryThrottle.Bucket(100);
+        assertEquals(0, bucket.reserve(500, 0));
+        long wait = bucket.reserve(1, 10 * SECOND);
+        assertTrue(wait > 4 * SECOND && wait <= 5 * SECOND, "waited " + wait);
+    }
+
+    @Test
+    void zeroRateIsUnlimitedAndRatesCanChange() {
+        RepositoryThrottle.Bucket bucket = new RepositoryThrottle.Bucket(0);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(0, bucket.reserve(1, 0));
+        }
+        bucket.setRate(1);
+        assertEquals(0, bucket.reserve(1, 0));
+        assertEquals(-1, bucket.reserve(1, 0));
+        bucket.setRate(0);
+        assertEquals(0, bucket.reserve(1, 0));
+    }
+}
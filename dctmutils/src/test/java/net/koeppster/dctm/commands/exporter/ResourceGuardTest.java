@@ -0,0 +1,49 @@
+package net.koeppster.dctm.commands.exporter;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class ResourceGuardTest {
+
+    private static final long MB = 1024L * 1024L;
+
+    private final ResourceGuard guard =
+        new ResourceGuard(null, 100 * MB, 1000, 0.9, 2.0, 1000, null);
+
+    @Test
+    void slowsDownNearALimitAndPausesPastIt() {
+        assertEquals(ResourceGuard.State.NORMAL, guard.assess(500 * MB, 5000, 0.5, 0.5));
+        assertEquals(ResourceGuard.State.SLOW, guard.assess(150 * MB, 5000, 0.5, 0.5));
+        assertEquals(ResourceGuard.State.PAUSED, guard.assess(50 * MB, 5000, 0.5, 0.5));
+        assertEquals(ResourceGuard.State.PAUSED, guard.assess(500 * MB, 5000, 0.95, 0.5));
+        assertEquals(ResourceGuard.State.SLOW, guard.assess(500 * MB, 1500, 0.5, 0.5));
+        assertEquals(ResourceGuard.State.PAUSED, guard.assess(500 * MB, 5000, 0.5, 2.5));
+        assertEquals(ResourceGuard.State.NORMAL, guard.assess(-1, -1, -1, -1));
+    }
+
+    @Test
+    void worstLimitGivesTheReason() {
+        guard.assess(150 * MB, 5000, 0.95, 0.5);
+        assertTrue(guard.toString().startsWith("PAUSED"));
+        assertTrue(guard.toString().contains("heap"), guard.toString());
+    }
+
+    @Test
+    void pausedHoldsItemsBackAndSlowPacesThem() throws Exception {
+        guard.assess(50 * MB, -1, -1, -1);
+        assertFalse(guard.isOpen());
+        assertFalse(guard.awaitOpen(50, TimeUnit.MILLISECONDS));
+
+        guard.assess(150 * MB, -1, -1, -1);
+        assertTrue(guard.isOpen());
+        assertTrue(guard.awaitOpen(1, TimeUnit.SECONDS));
+        assertFalse(guard.awaitOpen(50, TimeUnit.MILLISECONDS));
+        assertTrue(guard.awaitOpen(1, TimeUnit.SECONDS));
+
+        guard.assess(500 * MB, -1, -1, -1);
+        assertTrue(guard.awaitOpen(0, TimeUnit.MILLISECONDS));
+        assertTrue(guard.awaitOpen(0, TimeUnit.MILLISECONDS));
+    }
+}